@@ -11,7 +11,10 @@ import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
@@ -26,10 +29,13 @@ import android.widget.EditText;
 
 import net.ossrs.sea.R;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends Activity {
     // audio device.
@@ -69,13 +75,141 @@ public class MainActivity extends Activity {
     // the bitrate in kbps.
     private int vbitrate_kbps = 300;
     private final static int VFPS = 20;
-    private final static int VGOP = 5;
+    // the muxer requests a sync frame when reconnected, so the large gop
+    // does not hurt the recovery time.
+    private final static int VGOP = 10;
+    // the sync frame request requires KITKAT, the recovery waits for the keyframe of gop.
+    private final static int VGOP_NO_SYNC_REQUEST = 5;
+
+    // the low latency profile, shorter gop and drain the encoders without waiting for next input.
+    private boolean low_latency = false;
+    private int vgop = VGOP;
+    private final static int VGOP_LOW_LATENCY = 1;
+    // the max time in us to wait for the encoded frame of current input, the audio worker
+    // waits in dequeue, the video polls every DRAIN_POLL_MS in the main looper.
+    private final static int DRAIN_TIMEOUT_US = 20000;
+    private final static int DRAIN_POLL_MS = 2;
+    private Handler vdrainer;
+
+    // recreate the encoder when no output for the time, 0 to disable.
+    private int encoder_stall_ms = ENCODER_STALL_MS;
+    private SrsCodecWatchdog vwatchdog;
+    private SrsCodecWatchdog vwatchdog_low;
+    private SrsCodecWatchdog awatchdog;
+    private final static int ENCODER_STALL_MS = 2000;
+    // the max time in us to wait for the input buffer, the input is dropped when timeout,
+    // not too long for the camera callback in main looper.
+    private final static int ENCODER_INPUT_TIMEOUT_US = 200000;
+    // for zero copy, the stalled vencoder is recreated when the muxer copied its buffers.
+    private boolean vrecreating;
+
+    // spool the stream to disk when disconnected, upload to the dvr url after reconnect.
+    private boolean spool = false;
+    private final static int SPOOL_MAX_BYTES = 64 * 1024 * 1024;
+
+    // the output format, HTTP FLV, CMAF(fmp4) chunks to the .mp4 url, or TS to the .ts url.
+    private int output_format = SrsHttpFlv.OutputFormat.MUXER_OUTPUT_HTTP_FLV;
+    private final static int CMAF_CHUNK_FRAMES = 10;
+    private final static int CMAF_CHUNK_MS = 500;
     private final static int VWIDTH = 640;
     private final static int VHEIGHT = 480;
 
+    // the simulcast low rendition, 2:1 downscaled from the camera frame,
+    // published to its own url, for example, sea.flv to sea_low.flv
+    private boolean simulcast = false;
+    private String flv_url_low;
+    private MediaCodec vencoder_low;
+    private MediaCodec.BufferInfo vebi_low;
+    // read into locals by the camera callback, which runs when the low rendition is disposed.
+    private volatile byte[] vbuffer_low;
+    private Camera.Size vsize_low;
+    private int vtrack_low;
+    private int atrack_low;
+    // read into a local by the audio worker, which runs when the low rendition is disposed.
+    private volatile SrsHttpFlv muxer_low;
+    private MediaFormat vformat_low;
+    // the number of yuv frames fed to vencoder, to align the keyframes of renditions.
+    private long vframes;
+    private final static int VBITRATE_LOW_MIN_KBPS = 32;
+
+    // admit the camera frames at VFPS, decrease to VFPS_MIN when backing up.
+    private SrsFramePacer vpacer;
+    // the number of vencoder without input buffer for the last frame.
+    private int vbacklog;
+    private final static int VFPS_MIN = 5;
+
+    // the memory budget of all muxer queues, caches and the yuv buffers, the muxers drop
+    // until keyframe and the pacer decreases fps when pressured, @see SrsMemoryBudget
+    private SrsMemoryBudget budget;
+    private SrsMemoryBudget.Account myuv;
+    // the reused buffers of color transform, the vencoder copies the frame into its input buffer.
+    private byte[] vframe;
+    private volatile byte[] vframe_low;
+    private final static int MEMORY_BUDGET_KB = 16 * 1024;
+
+    // skip the unchanged frames of static scene, send at VFPS_STATIC or keepalive.
+    private boolean scene_detect = false;
+    private SrsSceneDetector vscene;
+    private final static int VFPS_STATIC = 0;
+    private final static int VKEEPALIVE_MS = 500;
+
+    // the discontinuous transmission, send the silent aac frame without encoding when silent.
+    private boolean dtx = false;
+    private SrsSilenceDetector asilence;
+    // the pts in us of the last aac frame to muxer, for the silent frames to continue.
+    private long alast_pts;
+    private SrsBufferInfo asbi;
+    private final static int ADTX_HANGOVER_MS = 300;
+
+    // send the vencoder output to socket without copy, the buffer is released when sent.
+    private boolean zero_copy = false;
+
     // encoding params.
     private long presentationTimeUs;
     private SrsHttpFlv muxer;
+    // the encoded sample to muxer, copied from the BufferInfo of encoder,
+    // for the video in the camera thread and the audio in its worker thread.
+    private SrsBufferInfo vmbi;
+    private SrsBufferInfo ambi;
+
+    // the stopped encoders to restart fast, and the params of current session,
+    // to apply the changed url and bitrate without restart.
+    private SrsCodecPool codecs;
+    private String published_url;
+    private int published_vbitrate_kbps;
+    // the time in ms of publish, to measure the latency to the first keyframe.
+    private long republish_start_ms;
+    private boolean republish_warm;
+    // warn with the startup report when the first keyframe is later than it.
+    private int ttff_max_ms = TTFF_MAX_MS;
+    private final static int TTFF_MAX_MS = 1500;
+    private final static int CODEC_POOL_MAX_IDLE = 2;
+
+    // the publish steps run in the executor, @see publish
+    private ExecutorService executor;
+    // stop the muxers in order off the UI thread, for the stop waits for the network, @see disposeMuxer
+    private ExecutorService disposer;
+    private SrsStartupGraph startup;
+    // the canceled startup is running, disposed when done, then run the last action.
+    private boolean disposing;
+    private Runnable disposed_then;
+    private MediaFormat aformat;
+    private MediaFormat vformat;
+    private final static int STARTUP_THREADS = 4;
+
+    // trace the pipeline, dump to the Chrome trace json when stopped.
+    private boolean trace = false;
+    // record the encoded samples of the muxer, to replay by SrsSampleReplayer.
+    private boolean record = false;
+    // publish the base.h264 and base.aac files instead of camera and mic, empty to disable.
+    private String file_source = "";
+    private SrsFileSource source;
+    // serve the stream over HTTP FLV to the viewers on LAN, 0 to disable.
+    private int play_port = 0;
+    private SrsFlvPlayServer play;
+    // insert the capture time SEI to each video frame, to measure by SrsLatencyAnalyzer.
+    private boolean latency_sei = false;
+    private final static int PLAY_RING_KB = 4096;
 
     // settings storage
     private SharedPreferences sp;
@@ -89,13 +223,29 @@ public class MainActivity extends Activity {
         camera = null;
         vencoder = null;
         muxer = null;
+        vmbi = new SrsBufferInfo();
+        ambi = new SrsBufferInfo();
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // the muxer is plain java, log to the logcat.
+        SrsLog.setBackend(new SrsLog.Backend() {
+            @Override
+            public void println(int priority, String tag, String msg) {
+                Log.println(priority, tag, msg);
+            }
+        });
+
         sp = getSharedPreferences("SrsPublisher", MODE_PRIVATE);
+        codecs = new SrsCodecPool(CODEC_POOL_MAX_IDLE);
+        budget = new SrsMemoryBudget(sp.getInt("MEMORY_BUDGET_KB", MEMORY_BUDGET_KB) * 1024L);
+        myuv = budget.account("yuv", SrsMemoryBudget.POLICY_DEGRADE);
+        executor = Executors.newFixedThreadPool(STARTUP_THREADS);
+        disposer = Executors.newSingleThreadExecutor();
+        vdrainer = new Handler(Looper.getMainLooper());
 
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
         setContentView(R.layout.activity_main);
@@ -103,7 +253,23 @@ public class MainActivity extends Activity {
         // restore data.
         flv_url = sp.getString("FLV_URL", flv_url);
         vbitrate_kbps = sp.getInt("VBITRATE", vbitrate_kbps);
-        Log.i(TAG, String.format("initialize flv url to %s, vbitrate=%dkbps", flv_url, vbitrate_kbps));
+        simulcast = sp.getBoolean("SIMULCAST", simulcast);
+        scene_detect = sp.getBoolean("SCENE_DETECT", scene_detect);
+        dtx = sp.getBoolean("DTX", dtx);
+        zero_copy = sp.getBoolean("ZERO_COPY", zero_copy);
+        low_latency = sp.getBoolean("LOW_LATENCY", low_latency);
+        spool = sp.getBoolean("SPOOL", spool);
+        output_format = sp.getInt("OUTPUT_FORMAT", output_format);
+        trace = sp.getBoolean("TRACE", trace);
+        SrsTracer.setEnabled(trace);
+        record = sp.getBoolean("RECORD", record);
+        file_source = sp.getString("FILE_SOURCE", file_source);
+        play_port = sp.getInt("PLAY_PORT", play_port);
+        latency_sei = sp.getBoolean("LATENCY_SEI", latency_sei);
+        encoder_stall_ms = sp.getInt("ENCODER_STALL_MS", encoder_stall_ms);
+        ttff_max_ms = sp.getInt("TTFF_MAX_MS", ttff_max_ms);
+        Log.i(TAG, String.format("initialize flv url to %s, vbitrate=%dkbps, simulcast=%b, scene_detect=%b, low_latency=%b",
+            flv_url, vbitrate_kbps, simulcast, scene_detect, low_latency));
 
         // initialize url.
         final EditText efu = (EditText) findViewById(R.id.flv_url);
@@ -177,73 +343,295 @@ public class MainActivity extends Activity {
             }
         });
 
+        // when publishing, publish again to apply the changed url or bitrate.
         btnPublish.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                dispose();
-                publish(fetchVideoFromDevice(), preview.getHolder());
-                btnPublish.setEnabled(false);
+                republish_start_ms = System.nanoTime() / 1000000;
+                republish_warm = republish();
+                if (!republish_warm) {
+                    dispose(new Runnable() {
+                        @Override
+                        public void run() {
+                            publish(fetchVideoFromDevice(), preview.getHolder());
+                        }
+                    });
+                }
                 btnStop.setEnabled(true);
             }
         });
     }
 
-    private void publish(Object onYuvFrame, SurfaceHolder holder) {
+    private boolean validateParams() {
         if (vbitrate_kbps <= 10) {
             Log.e(TAG, String.format("video bitrate must 10kbps+, actual is %d", vbitrate_kbps));
-            return;
+            return false;
         }
-        if (!flv_url.startsWith("http://")) {
-            Log.e(TAG, String.format("flv url must starts with http://, actual is %s", flv_url));
-            return;
+        if (!flv_url.startsWith("http://") && !flv_url.startsWith("https://")) {
+            Log.e(TAG, String.format("flv url must starts with http:// or https://, actual is %s", flv_url));
+            return false;
         }
-        if (!flv_url.endsWith(".flv")) {
-            Log.e(TAG, String.format("flv url must ends with .flv, actual is %s", flv_url));
-            return;
+        String ext = urlExtension();
+        if (!flv_url.endsWith(ext)) {
+            Log.e(TAG, String.format("flv url must ends with %s, actual is %s", ext, flv_url));
+            return false;
+        }
+        return true;
+    }
+
+    // apply the changed url and bitrate to the publishing session, the mic, camera
+    // and encoders are kept, only the muxer reconnects for the url changed.
+    // @return false if not publishing or the change cannot be applied.
+    private boolean republish() {
+        if (startup == null || !startup.isSucceeded() || !validateParams()) {
+            return false;
+        }
+
+        boolean bitrate_changed = vbitrate_kbps != published_vbitrate_kbps;
+        if (bitrate_changed && (vencoder == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)) {
+            return false;
+        }
+        if (bitrate_changed) {
+            setBitrate(vencoder, vbitrate_kbps);
+            if (vencoder_low != null) {
+                setBitrate(vencoder_low, lowBitrate());
+            }
+            // the encoder recreated by watchdog uses the current bitrate.
+            vformat.setInteger(MediaFormat.KEY_BIT_RATE, 1000 * vbitrate_kbps);
+            if (vformat_low != null) {
+                vformat_low.setInteger(MediaFormat.KEY_BIT_RATE, 1000 * lowBitrate());
+            }
+            published_vbitrate_kbps = vbitrate_kbps;
+        }
+
+        // the new stream starts at the sync frame requested by muxer.
+        if (flv_url.equals(published_url)) {
+            republish_start_ms = 0;
+        } else {
+            muxer.setUrl(flv_url);
+            if (muxer_low != null) {
+                flv_url_low = lowRenditionUrl();
+                muxer_low.setUrl(flv_url_low);
+            }
+            published_url = flv_url;
         }
 
-        // start the muxer to POST stream to SRS over HTTP FLV.
-        muxer = new SrsHttpFlv(flv_url, SrsHttpFlv.OutputFormat.MUXER_OUTPUT_HTTP_FLV);
+        Log.i(TAG, String.format("republish warm, url=%s, vbitrate=%dkbps, bitrate_changed=%b",
+            flv_url, vbitrate_kbps, bitrate_changed));
+        return true;
+    }
+
+    // change the bitrate of vencoder on the fly,
+    // requires sdk level 19+, Android 4.4, the KITKAT
+    private void setBitrate(MediaCodec enc, int kbps) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, 1000 * kbps);
         try {
-            muxer.start();
-        } catch (IOException e) {
-            Log.e(TAG, "start muxer failed.");
-            e.printStackTrace();
+            enc.setParameters(params);
+        } catch (IllegalStateException e) {
+            // released by watchdog, the new one uses the format.
+        }
+    }
+
+    // the startup is a graph of steps, the independent steps run in parallel
+    // in the executor, so the UI thread is never blocked:
+    //      muxer -------------------------------------+
+    //      mic ------> aencoder ----------------------+-> tracks -> start
+    //      camera ---------------------+-> vencoder --+
+    //      vcodec(choose and create) --+
+    // @remark the camera is opened in the executor thread without looper,
+    //      so the preview callback is invoked in the main looper.
+    private void publish(final Object onYuvFrame, final SurfaceHolder holder) {
+        if (!validateParams()) {
             return;
         }
-        Log.i(TAG, String.format("start muxer to SRS over HTTP FLV, url=%s", flv_url));
+        final String ext = urlExtension();
+        published_url = flv_url;
+        published_vbitrate_kbps = vbitrate_kbps;
+        if (low_latency) {
+            vgop = VGOP_LOW_LATENCY;
+        } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            vgop = VGOP_NO_SYNC_REQUEST;
+        } else {
+            vgop = VGOP;
+        }
 
         // the pts for video and audio encoder.
         presentationTimeUs = new Date().getTime() * 1000;
 
-        // open mic, to find the work one.
-        if ((mic = chooseAudioDevice()) == null) {
-            Log.e(TAG, String.format("mic find device mode failed."));
+        final SrsStartupGraph graph = new SrsStartupGraph("publish");
+        graph.add("muxer", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                startMuxer(ext);
+            }
+        });
+        if (!file_source.isEmpty()) {
+            graph.add("source", new SrsStartupGraph.Step() {
+                @Override
+                public void run() throws Exception {
+                    startFileSource();
+                }
+            }, "muxer");
+            startGraph(graph);
             return;
         }
+        graph.add("mic", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                // open mic, to find the work one.
+                if (chooseAudioDevice() == null) {
+                    throw new IOException("mic find device mode failed.");
+                }
+            }
+        });
+        graph.add("aencoder", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                openAudioEncoder();
+            }
+        }, "mic");
+        graph.add("camera", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                openCamera();
+            }
+        });
+        graph.add("vcodec", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                // choose the right vencoder, perfer qcom then google.
+                vcolor = chooseVideoEncoder();
+                // vencoder yuv to 264 es stream.
+                // requires sdk level 16+, Android 4.1, 4.1.1, the JELLY_BEAN
+                vencoder = codecs.obtainByCodecName(vmci.getName());
+                vebi = new MediaCodec.BufferInfo();
+            }
+        });
+        graph.add("vencoder", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                configureVideoEncoder();
+            }
+        }, "camera", "vcodec");
+        graph.add("tracks", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                addTracks();
+            }
+        }, "muxer", "aencoder", "vencoder");
+        graph.add("start", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                startDevices(onYuvFrame, holder);
+            }
+        }, "tracks");
+        startGraph(graph);
+    }
+
+    private void startGraph(final SrsStartupGraph graph) {
+        startup = graph;
+        graph.start(executor, new SrsStartupGraph.OnCompleteListener() {
+            @Override
+            public void onComplete(boolean ok, String report) {
+                Log.i(TAG, report);
+                if (ok) {
+                    return;
+                }
+
+                // release the created devices and encoders.
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (startup == graph) {
+                            dispose();
+                        }
+                    }
+                });
+            }
+        });
+    }
 
+    // start the muxer to POST stream to SRS over HTTP FLV.
+    private void startMuxer(String ext) throws IOException {
+        SrsHttpFlv m = new SrsHttpFlv(flv_url, output_format);
+        m.setLowLatency(low_latency);
+        m.setInterleave(sp.getBoolean("INTERLEAVE", !low_latency));
+        setCmafChunk(m);
+        m.setOnSyncFrameListener(onSyncFrameRequest());
+        m.setFlushPolicy(sp.getInt("FLUSH_MAX_BYTES", 16 * 1024), sp.getInt("FLUSH_MAX_DELAY_MS", 40));
+        m.setMemoryBudget(budget, "muxer", SrsMemoryBudget.POLICY_DROP);
+        // the capture time of the frame is the wall-clock time of pts 0 plus the pts.
+        if (latency_sei) {
+            m.setLatencySei(presentationTimeUs);
+        }
+        // the hot standby to the backup edge, switched to when the primary failed.
+        String backup_url = sp.getString("FLV_URL_BACKUP", "");
+        if (!backup_url.isEmpty()) {
+            m.setBackupUrl(backup_url);
+        }
+        if (spool) {
+            String dvr_url = sp.getString("FLV_URL_DVR", flv_url.substring(0, flv_url.length() - ext.length()) + "_dvr.flv");
+            try {
+                m.setSpool(new File(getCacheDir(), "sea.spool"), SPOOL_MAX_BYTES, dvr_url);
+                Log.i(TAG, String.format("spool %dMB to %s when disconnected", SPOOL_MAX_BYTES / 1024 / 1024, dvr_url));
+            } catch (IOException e) {
+                Log.e(TAG, "create spool failed, ignore.");
+                e.printStackTrace();
+            }
+        }
+        if (record) {
+            try {
+                m.setRecorder(new SrsSampleRecorder(new File(getExternalFilesDir(null), "sea.rec")));
+            } catch (IOException e) {
+                Log.e(TAG, "create recorder failed, ignore.");
+                e.printStackTrace();
+            }
+        }
+        if (play_port > 0) {
+            try {
+                if (play == null) {
+                    SrsFlvPlayServer s = new SrsFlvPlayServer(play_port, sp.getInt("PLAY_RING_KB", PLAY_RING_KB) * 1024);
+                    s.start();
+                    play = s;
+                }
+                m.setPlayServer(play);
+            } catch (IOException e) {
+                Log.e(TAG, "start play server failed, ignore.");
+                e.printStackTrace();
+            }
+        }
+        muxer = m;
+        m.start();
+        Log.i(TAG, String.format("start muxer to SRS over HTTP FLV, url=%s", flv_url));
+    }
+
+    // publish the files in realtime and loop, without camera and mic.
+    private void startFileSource() throws IOException {
+        File h264 = new File(file_source + ".h264");
+        File aac = new File(file_source + ".aac");
+        SrsFileSource s = new SrsFileSource(muxer, h264.exists() ? h264 : null, aac.exists() ? aac : null,
+            sp.getInt("FILE_SOURCE_FPS", VFPS));
+        s.setLoop(true);
+        source = s;
+        s.start();
+    }
+
+    private void openAudioEncoder() throws IOException {
         // aencoder yuv to aac raw stream.
         // requires sdk level 16+, Android 4.1, 4.1.1, the JELLY_BEAN
-        try {
-            aencoder = MediaCodec.createEncoderByType(ACODEC);
-        } catch (IOException e) {
-            Log.e(TAG, "create aencoder failed.");
-            e.printStackTrace();
-            return;
-        }
+        aencoder = codecs.obtainEncoderByType(ACODEC);
         aebi = new MediaCodec.BufferInfo();
 
         // setup the aencoder.
         // @see https://developer.android.com/reference/android/media/MediaCodec.html
-        MediaFormat aformat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, asample_rate, achannel);
+        aformat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, asample_rate, achannel);
         aformat.setInteger(MediaFormat.KEY_BIT_RATE, 1000 * ABITRATE_KBPS);
         aformat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
         aencoder.configure(aformat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
 
-        // add the video tracker to muxer.
-        atrack = muxer.addTrack(aformat);
-        Log.i(TAG, String.format("muxer add audio track index=%d", atrack));
-
+    private void openCamera() {
         // open camera.
         camera = Camera.open(0);
         Camera.Parameters parameters = camera.getParameters();
@@ -297,58 +685,88 @@ public class MainActivity extends Activity {
 
         camera.setDisplayOrientation(90);
         camera.setParameters(parameters);
+    }
 
-        // choose the right vencoder, perfer qcom then google.
-        vcolor = chooseVideoEncoder();
-        // vencoder yuv to 264 es stream.
-        // requires sdk level 16+, Android 4.1, 4.1.1, the JELLY_BEAN
-        try {
-            vencoder = MediaCodec.createByCodecName(vmci.getName());
-        } catch (IOException e) {
-            Log.e(TAG, "create vencoder failed.");
-            e.printStackTrace();
-            return;
-        }
-        vebi = new MediaCodec.BufferInfo();
-
+    private void configureVideoEncoder() {
         // setup the vencoder.
         // @see https://developer.android.com/reference/android/media/MediaCodec.html
-        MediaFormat vformat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, vsize.width, vsize.height);
+        vformat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, vsize.width, vsize.height);
         vformat.setInteger(MediaFormat.KEY_COLOR_FORMAT, vcolor);
         vformat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
         vformat.setInteger(MediaFormat.KEY_BIT_RATE, 1000 * vbitrate_kbps);
         vformat.setInteger(MediaFormat.KEY_FRAME_RATE, VFPS);
-        vformat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VGOP);
+        vformat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, vgop);
         Log.i(TAG, String.format("vencoder %s, color=%d, bitrate=%d, fps=%d, gop=%d, size=%dx%d",
-            vmci.getName(), vcolor, vbitrate_kbps, VFPS, VGOP, vsize.width, vsize.height));
+            vmci.getName(), vcolor, vbitrate_kbps, VFPS, vgop, vsize.width, vsize.height));
         // the following error can be ignored:
         // 1. the storeMetaDataInBuffers error:
         //      [OMX.qcom.video.encoder.avc] storeMetaDataInBuffers (output) failed w/ err -2147483648
         //      @see http://bigflake.com/mediacodec/#q12
         vencoder.configure(vformat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
 
+    private void addTracks() {
         // add the video tracker to muxer.
-        vtrack = muxer.addTrack(vformat);
+        atrack = muxer.addAudioTrack(asample_rate, achannel);
+        Log.i(TAG, String.format("muxer add audio track index=%d", atrack));
+
+        // add the video tracker to muxer.
+        vtrack = muxer.addVideoTrack(vsize.width, vsize.height);
         Log.i(TAG, String.format("muxer add video track index=%d", vtrack));
 
+        vwatchdog = new SrsCodecWatchdog("vencoder", encoder_stall_ms);
+        vrecreating = false;
+        awatchdog = new SrsCodecWatchdog("aencoder", encoder_stall_ms);
+
+        // the pacer before color transform.
+        vpacer = new SrsFramePacer(VFPS, VFPS_MIN);
+        vbacklog = 0;
+        if (scene_detect) {
+            int stride = (int) Math.ceil(vsize.width / 16.0) * 16;
+            vscene = new SrsSceneDetector(vsize.width, vsize.height, stride, VFPS_STATIC, VKEEPALIVE_MS);
+        }
+        alast_pts = -1;
+        if (dtx) {
+            asilence = new SrsSilenceDetector(asample_rate, achannel, ADTX_HANGOVER_MS);
+            asbi = new SrsBufferInfo();
+        }
+
+        // the low rendition is optional, ignore when failed.
+        // the keyframes of renditions are aligned by request, which requires sdk level 19+.
+        vframes = 0;
+        if (simulcast && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            Log.w(TAG, "simulcast disabled for keyframe request requires KITKAT.");
+        } else if (simulcast && !openLowRendition()) {
+            Log.w(TAG, "simulcast disabled for open low rendition failed.");
+            disposeLowRendition();
+        }
+    }
+
+    private void startDevices(Object onYuvFrame, SurfaceHolder holder) throws IOException {
         // set the callback and start the preview.
-        vbuffer = new byte[getYuvBuffer(size.width, size.height)];
+        vbuffer = new byte[getYuvBuffer(vsize.width, vsize.height)];
+        vframe = new byte[vbuffer.length];
+        myuv.force(vbuffer.length + vframe.length);
         camera.addCallbackBuffer(vbuffer);
         camera.setPreviewCallbackWithBuffer((Camera.PreviewCallback) onYuvFrame);
-        try {
-            camera.setPreviewDisplay(holder);
-        } catch (IOException e) {
-            Log.e(TAG, "preview video failed.");
-            e.printStackTrace();
-            return;
-        }
+        camera.setPreviewDisplay(holder);
 
         // start device and encoder.
         Log.i(TAG, "start avc vencoder");
         vencoder.start();
+        if (zero_copy) {
+            // keep half of the output buffers for vencoder, copy when exceed.
+            int max = Math.max(1, vencoder.getOutputBuffers().length / 2);
+            muxer.setZeroCopy(max);
+            Log.i(TAG, String.format("zero copy the vencoder output, max retained %d buffers", max));
+        }
+        if (vencoder_low != null) {
+            Log.i(TAG, "start avc vencoder for low rendition");
+            vencoder_low.start();
+        }
         Log.i(TAG, "start aac aencoder");
         aencoder.start();
-        Log.i(TAG, String.format("start to preview video in %dx%d, vbuffer %dB", size.width, size.height, vbuffer.length));
+        Log.i(TAG, String.format("start to preview video in %dx%d, vbuffer %dB", vsize.width, vsize.height, vbuffer.length));
         camera.startPreview();
         Log.i(TAG, String.format("start the mic in rate=%dHZ, channels=%d, format=%d", asample_rate, achannel, abits));
         mic.startRecording();
@@ -365,27 +783,187 @@ public class MainActivity extends Activity {
         aworker.start();
     }
 
+    // the extension of url for the output format, the spool is always flv.
+    private String urlExtension() {
+        if (output_format == SrsHttpFlv.OutputFormat.MUXER_OUTPUT_CMAF) {
+            return ".mp4";
+        } else if (output_format == SrsHttpFlv.OutputFormat.MUXER_OUTPUT_TS) {
+            return ".ts";
+        }
+        return ".flv";
+    }
+
+    // for low latency, a chunk per frame.
+    private void setCmafChunk(SrsHttpFlv m) {
+        m.setCmafChunk(sp.getInt("CMAF_CHUNK_FRAMES", low_latency ? 1 : CMAF_CHUNK_FRAMES),
+            sp.getInt("CMAF_CHUNK_MS", CMAF_CHUNK_MS));
+    }
+
+    private String lowRenditionUrl() {
+        String ext = urlExtension();
+        return sp.getString("FLV_URL_LOW", flv_url.substring(0, flv_url.length() - ext.length()) + "_low" + ext);
+    }
+
+    private int lowBitrate() {
+        return Math.max(VBITRATE_LOW_MIN_KBPS, vbitrate_kbps / 4);
+    }
+
+    // open the muxer and vencoder for the simulcast low rendition,
+    // which use the same vencoder and color format to the main rendition.
+    private boolean openLowRendition() {
+        flv_url_low = lowRenditionUrl();
+        if (!flv_url_low.startsWith("http") || flv_url_low.equals(flv_url)) {
+            Log.e(TAG, String.format("low rendition url must starts with http and not %s, actual is %s", flv_url, flv_url_low));
+            return false;
+        }
+
+        muxer_low = new SrsHttpFlv(flv_url_low, output_format);
+        muxer_low.setLowLatency(low_latency);
+        muxer_low.setInterleave(sp.getBoolean("INTERLEAVE", !low_latency));
+        setCmafChunk(muxer_low);
+        muxer_low.setOnSyncFrameListener(onSyncFrameRequest());
+        muxer_low.setFlushPolicy(sp.getInt("FLUSH_MAX_BYTES", 16 * 1024), sp.getInt("FLUSH_MAX_DELAY_MS", 40));
+        muxer_low.setMemoryBudget(budget, "muxer_low", SrsMemoryBudget.POLICY_DROP);
+        if (latency_sei) {
+            muxer_low.setLatencySei(presentationTimeUs);
+        }
+        try {
+            muxer_low.start();
+        } catch (IOException e) {
+            Log.e(TAG, "start muxer for low rendition failed.");
+            e.printStackTrace();
+            return false;
+        }
+        atrack_low = muxer_low.addAudioTrack(asample_rate, achannel);
+
+        try {
+            vencoder_low = codecs.obtainByCodecName(vmci.getName());
+        } catch (IOException e) {
+            Log.e(TAG, "create vencoder for low rendition failed.");
+            e.printStackTrace();
+            return false;
+        }
+        vebi_low = new MediaCodec.BufferInfo();
+
+        // the 2:1 downscaled size, the chroma of YV12 requires the width aligned to 32.
+        vsize_low = camera.new Size(vsize.width / 2, vsize.height / 2);
+        if ((vsize_low.width % 32) != 0 || (vsize_low.height % 2) != 0) {
+            Log.e(TAG, String.format("low rendition size %dx%d not supported", vsize_low.width, vsize_low.height));
+            return false;
+        }
+        vbuffer_low = new byte[vsize_low.width * vsize_low.height * 3 / 2];
+        vframe_low = new byte[vbuffer_low.length];
+        myuv.force(vbuffer_low.length + vframe_low.length);
+
+        // the same gop to the main rendition, the keyframes are aligned by vframes.
+        int vbitrate_low_kbps = lowBitrate();
+        MediaFormat vformat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, vsize_low.width, vsize_low.height);
+        vformat.setInteger(MediaFormat.KEY_COLOR_FORMAT, vcolor);
+        vformat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
+        vformat.setInteger(MediaFormat.KEY_BIT_RATE, 1000 * vbitrate_low_kbps);
+        vformat.setInteger(MediaFormat.KEY_FRAME_RATE, VFPS);
+        vformat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, vgop);
+        vformat_low = vformat;
+        vwatchdog_low = new SrsCodecWatchdog("vencoder_low", encoder_stall_ms);
+        Log.i(TAG, String.format("vencoder %s for low rendition, color=%d, bitrate=%d, fps=%d, gop=%d, size=%dx%d, url=%s",
+            vmci.getName(), vcolor, vbitrate_low_kbps, VFPS, vgop, vsize_low.width, vsize_low.height, flv_url_low));
+        vencoder_low.configure(vformat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+        vtrack_low = muxer_low.addVideoTrack(vsize_low.width, vsize_low.height);
+        Log.i(TAG, String.format("muxer add low rendition track audio=%d, video=%d", atrack_low, vtrack_low));
+        return true;
+    }
+
+    private void disposeLowRendition() {
+        if (vencoder_low != null) {
+            Log.i(TAG, "stop vencoder for low rendition");
+            codecs.recycle(vencoder_low);
+            vencoder_low = null;
+        }
+
+        // cleared before stopped, so the audio worker no longer writes to it.
+        SrsHttpFlv m = muxer_low;
+        if (m != null) {
+            Log.i(TAG, "stop muxer for low rendition");
+            muxer_low = null;
+            disposeMuxer(m, null);
+        }
+
+        if (vwatchdog_low != null) {
+            Log.i(TAG, String.format("watchdog %s", vwatchdog_low));
+            vwatchdog_low = null;
+        }
+        vformat_low = null;
+        byte[] buffer = vbuffer_low;
+        byte[] frame = vframe_low;
+        vbuffer_low = null;
+        vframe_low = null;
+        if (buffer != null && frame != null) {
+            myuv.release(buffer.length + frame.length);
+        }
+    }
+
+    // stop the muxer in the disposer, not to block the UI thread by the last chunk and
+    // the TLS close_notify on a stalled network, then recycle the vencoder, null to ignore.
+    private void disposeMuxer(final SrsHttpFlv m, final MediaCodec enc) {
+        disposer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (m != null) {
+                    m.stop();
+                    m.release();
+                }
+                if (enc != null) {
+                    codecs.recycle(enc);
+                }
+            }
+        });
+    }
+
     // when got YUV frame from camera.
     // @see https://developer.android.com/reference/android/media/MediaCodec.html
     private Object fetchVideoFromDevice() {
         return new Camera.PreviewCallback() {
             @Override
             public void onPreviewFrame(byte[] data, Camera camera) {
+                // drop the frame not admitted by pacer, return it to camera untouched.
+                long now_ms = System.nanoTime() / 1000000;
+                if (vpacer != null && !vpacer.admit(now_ms)) {
+                    camera.addCallbackBuffer(data);
+                    return;
+                }
+
+                // skip the unchanged frame, only sample the Y plane.
+                if (vscene != null && !vscene.admit(data, now_ms)) {
+                    camera.addCallbackBuffer(data);
+                    return;
+                }
+
+                // the renditions use the same pts and keyframe position,
+                // so the server can switch between them at keyframe.
+                long pts = new Date().getTime() * 1000 - presentationTimeUs;
+                int dts = (int) (pts / 1000);
+                SrsTracer.begin(SrsTracer.CAPTURE, dts);
+
                 // color space transform.
-                byte[] frame = new byte[data.length];
-                if (vcolor == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
-                    YV12toYUV420Planar(data, frame, vsize.width, vsize.height);
-                } else if (vcolor == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar) {
-                    YV12toYUV420PackedSemiPlanar(data, frame, vsize.width, vsize.height);
-                } else if (vcolor == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
-                    YV12toYUV420PackedSemiPlanar(data, frame, vsize.width, vsize.height);
+                SrsTracer.begin(SrsTracer.CONVERT, dts);
+                byte[] frame = vframe;
+                YV12toEncoderColor(data, frame, vsize.width, vsize.height);
+
+                // downscale before the camera buffer returned, then transform.
+                byte[] buffer_low = vbuffer_low;
+                byte[] frame_low = vframe_low;
+                if (vencoder_low != null && buffer_low != null && frame_low != null) {
+                    YV12Downscale2x(data, buffer_low, vsize.width, vsize.height);
+                    YV12toEncoderColor(buffer_low, frame_low, vsize_low.width, vsize_low.height);
                 } else {
-                    System.arraycopy(data, 0, frame, 0, data.length);
+                    frame_low = null;
                 }
+                SrsTracer.end(SrsTracer.CONVERT, dts);
 
                 // feed the frame to vencoder and muxer.
                 try {
-                    onGetYuvFrame(frame);
+                    onGetYuvFrame(frame, frame_low, pts);
                 } catch (Exception e) {
                     Log.e(TAG, String.format("consume yuv frame failed. e=%s", e.toString()));
                     e.printStackTrace();
@@ -394,6 +972,7 @@ public class MainActivity extends Activity {
 
                 // to fetch next frame.
                 camera.addCallbackBuffer(vbuffer);
+                SrsTracer.end(SrsTracer.CAPTURE, dts);
             }
         };
     }
@@ -406,14 +985,74 @@ public class MainActivity extends Activity {
                 break;
             }
 
-            byte[] audio = new byte[size];
-            System.arraycopy(abuffer, 0, audio, 0, size);
+            // bypass the aencoder when silent, after the first aac frame.
+            if (asilence != null && asilence.isSilent(abuffer, size) && alast_pts >= 0) {
+                onSilentPcmFrame();
+                continue;
+            }
 
-            onGetPcmFrame(audio);
+            // the aencoder copies the pcm into its input buffer, so the abuffer is reused.
+            onGetPcmFrame(abuffer, size);
         }
     }
 
     private void dispose() {
+        dispose(null);
+    }
+
+    // @param then run in the UI thread when disposed, null to ignore.
+    private void dispose(Runnable then) {
+        vdrainer.removeCallbacksAndMessages(null);
+
+        // cancel the startup, and dispose when the running steps done, to release what they
+        // created, not to wait for them in the UI thread. the last action is run when disposed.
+        if (startup != null || disposing) {
+            disposed_then = then;
+            if (!disposing) {
+                disposing = true;
+                SrsStartupGraph graph = startup;
+                startup = null;
+                graph.cancel(new SrsStartupGraph.OnCompleteListener() {
+                    @Override
+                    public void onComplete(boolean ok, String report) {
+                        Log.i(TAG, report);
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                disposing = false;
+                                Runnable r = disposed_then;
+                                disposed_then = null;
+                                dispose(r);
+                            }
+                        });
+                    }
+                });
+            }
+            return;
+        }
+
+        if (source != null) {
+            Log.i(TAG, "stop file source");
+            source.stop();
+            source = null;
+        }
+
+        disposeLowRendition();
+        if (vpacer != null) {
+            Log.i(TAG, String.format("pacer admitted %d frames, dropped %d frames, fps=%.1f",
+                vpacer.getAdmitted(), vpacer.getDropped(), vpacer.getFps()));
+            vpacer = null;
+        }
+        if (vscene != null) {
+            Log.i(TAG, String.format("scene detector got %d static frames, skipped %d frames",
+                vscene.getStatic(), vscene.getSkipped()));
+            vscene = null;
+        }
+        if (vwatchdog != null) {
+            Log.i(TAG, String.format("watchdog %s", vwatchdog));
+            vwatchdog = null;
+        }
+
         aloop = false;
         if (aworker != null) {
             Log.i(TAG, "stop audio worker thread");
@@ -425,6 +1064,12 @@ public class MainActivity extends Activity {
             }
             aworker = null;
         }
+        // cleared after the audio worker quit, which checks it for each pcm buffer.
+        if (asilence != null) {
+            Log.i(TAG, String.format("silence detector got %d silent buffers, sent %d silent frames",
+                asilence.getSilent(), asilence.getFrames()));
+            asilence = null;
+        }
 
         if (mic != null) {
             Log.i(TAG, "stop mic");
@@ -441,26 +1086,67 @@ public class MainActivity extends Activity {
             camera.release();
             camera = null;
         }
+        myuv.releaseAll();
+        vframe = null;
+
+        // stop muxer before vencoder, for the zero copy frames refer to the vencoder buffers.
+        if (muxer != null || vencoder != null) {
+            Log.i(TAG, "stop muxer to SRS over HTTP FLV and vencoder");
+            disposeMuxer(muxer, vencoder);
+            muxer = null;
+            vencoder = null;
+        }
+
+        if (play != null) {
+            Log.i(TAG, "stop play server");
+            final SrsFlvPlayServer p = play;
+            disposer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    p.stop();
+                }
+            });
+            play = null;
+        }
 
         if (aencoder != null) {
             Log.i(TAG, "stop aencoder");
-            aencoder.stop();
-            aencoder.release();
+            codecs.recycle(aencoder);
             aencoder = null;
         }
+        if (awatchdog != null) {
+            Log.i(TAG, String.format("watchdog %s", awatchdog));
+            awatchdog = null;
+        }
 
-        if (vencoder != null) {
-            Log.i(TAG, "stop vencoder");
-            vencoder.stop();
-            vencoder.release();
-            vencoder = null;
+        disposer.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, String.format("memory %s", budget));
+            }
+        });
+
+        // pull by adb from Android/data/net.ossrs.sea/files, then open in https://ui.perfetto.dev
+        // the trace is written in the disposer after the muxers stopped, not in the UI thread.
+        if (trace) {
+            disposer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SrsTracer.setEnabled(false);
+                    SrsTracer.Snapshot snapshot = SrsTracer.snapshot();
+                    SrsTracer.setEnabled(true);
+                    try {
+                        snapshot.write(new File(getExternalFilesDir(null), "sea.trace.json"));
+                    } catch (IOException e) {
+                        Log.e(TAG, "dump trace failed.");
+                        e.printStackTrace();
+                    }
+                }
+            });
         }
 
-        if (muxer != null) {
-            Log.i(TAG, "stop muxer to SRS over HTTP FLV");
-            muxer.stop();
-            muxer.release();
-            muxer = null;
+        if (then != null) {
+            then.run();
         }
     }
 
@@ -478,6 +1164,20 @@ public class MainActivity extends Activity {
         dispose();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        executor.shutdown();
+        // release the codecs recycled by the disposer.
+        disposer.execute(new Runnable() {
+            @Override
+            public void run() {
+                codecs.release();
+            }
+        });
+        disposer.shutdown();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -501,52 +1201,300 @@ public class MainActivity extends Activity {
     }
 
     // when got encoded h264 es stream.
-    private void onEncodedAnnexbFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
+    private void onEncodedAnnexbFrame(SrsHttpFlv mux, int track, MediaCodec enc, int index, ByteBuffer es, MediaCodec.BufferInfo ebi) {
+        SrsBufferInfo bi = vmbi;
+        bi.set(ebi.offset, ebi.size, ebi.presentationTimeUs, ebi.flags);
+
+        // for zero copy, the muxer releases the buffer when sent.
+        boolean retained = false;
         try {
-            muxer.writeSampleData(vtrack, es, bi);
+            // not retain the buffers of the stalled vencoder, which is recreated when copied.
+            if (zero_copy && mux == muxer && !vrecreating) {
+                retained = mux.writeSampleData(track, es.duplicate(), bi, index, onBufferRelease(enc));
+            } else {
+                mux.writeSampleData(track, es, bi);
+            }
         } catch (Exception e) {
             Log.e(TAG, "muxer write video sample failed.");
             e.printStackTrace();
         }
+
+        if (!retained) {
+            enc.releaseOutputBuffer(index, false);
+        }
     }
 
-    private void onGetYuvFrame(byte[] data) {
+    // release the output buffer of the vencoder, which maybe stopped.
+    private SrsHttpFlv.OnBufferReleaseListener onBufferRelease(final MediaCodec enc) {
+        return new SrsHttpFlv.OnBufferReleaseListener() {
+            @Override
+            public void onBufferRelease(int index) {
+                try {
+                    enc.releaseOutputBuffer(index, false);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, String.format("release the output buffer %d failed, e=%s", index, e.toString()));
+                }
+            }
+        };
+    }
+
+    private void onGetYuvFrame(byte[] data, byte[] data_low, long pts) {
         //Log.i(TAG, String.format("got YUV image, size=%d", data.length));
 
+        if (vencoder_low != null && (vframes % (VFPS * vgop)) == 0) {
+            requestKeyFrame(vencoder);
+            requestKeyFrame(vencoder_low);
+        }
+        vframes++;
+
+        vbacklog = 0;
+        encodeYuvFrame(vencoder, vebi, muxer, vtrack, data, pts, vwatchdog);
+        if (vencoder_low != null && data_low != null) {
+            encodeYuvFrame(vencoder_low, vebi_low, muxer_low, vtrack_low, data_low, pts, vwatchdog_low);
+        }
+
+        // recreate the stalled vencoder, the camera and muxer keep going.
+        long now = System.nanoTime() / 1000000;
+        if (!vrecreating && vwatchdog.isStalled(now)) {
+            if (zero_copy) {
+                // the muxer must not refer to the buffers of the stalled vencoder, copy them in
+                // the worker and recreate when done, or retry in next frame when the worker quit.
+                vrecreating = muxer.copyRetained(onRetainedCopied(vencoder, vwatchdog));
+            } else {
+                recreateVideoEncoder();
+            }
+        }
+        if (vencoder_low != null && vwatchdog_low.isStalled(now)) {
+            try {
+                vencoder_low = recreateEncoder(vencoder_low, vformat_low, vwatchdog_low);
+                muxer_low.resetSequenceHeader(vtrack_low);
+                requestKeyFrame(vencoder);
+            } catch (Exception e) {
+                Log.e(TAG, "recreate vencoder for low rendition failed.");
+                e.printStackTrace();
+            }
+        }
+
+        // feedback the pressure of encoder and network to pacer.
+        int pending = muxer.getPendingFrames();
+        if (muxer_low != null) {
+            pending = Math.max(pending, muxer_low.getPendingFrames());
+        }
+        vpacer.update(vbacklog, pending, budget.isPressured());
+    }
+
+    // recreate the stalled vencoder in main looper, when the muxer copied its retained buffers.
+    private Runnable onRetainedCopied(final MediaCodec enc, final SrsCodecWatchdog watchdog) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                vdrainer.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // disposed, or published again.
+                        if (enc != vencoder || watchdog != vwatchdog) {
+                            return;
+                        }
+                        vrecreating = false;
+                        recreateVideoEncoder();
+                    }
+                });
+            }
+        };
+    }
+
+    private void recreateVideoEncoder() {
+        try {
+            vencoder = recreateEncoder(vencoder, vformat, vwatchdog);
+            muxer.resetSequenceHeader(vtrack);
+            // the new keyframe of low rendition, to keep aligned.
+            if (vencoder_low != null) {
+                requestKeyFrame(vencoder_low);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "recreate vencoder failed.");
+            e.printStackTrace();
+        }
+    }
+
+    private void encodeYuvFrame(MediaCodec enc, MediaCodec.BufferInfo ebi, SrsHttpFlv mux, int track, byte[] data, long pts,
+        SrsCodecWatchdog watchdog) {
+        // the failed vencoder is recreated by watchdog.
+        try {
+            encodeYuvFrame0(enc, ebi, mux, track, data, pts, watchdog);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, String.format("%s failed, e=%s", watchdog.getName(), e.toString()));
+            watchdog.onError(System.nanoTime() / 1000000);
+        }
+    }
+
+    private void encodeYuvFrame0(MediaCodec enc, MediaCodec.BufferInfo ebi, SrsHttpFlv mux, int track, byte[] data, long pts,
+        SrsCodecWatchdog watchdog) {
         // feed the vencoder with yuv frame, got the encoded 264 es stream.
-        ByteBuffer[] inBuffers = vencoder.getInputBuffers();
-        ByteBuffer[] outBuffers = vencoder.getOutputBuffers();
+        ByteBuffer[] inBuffers = enc.getInputBuffers();
+        int dts = (int) (pts / 1000);
 
+        SrsTracer.begin(SrsTracer.ENCODE_SUBMIT, dts);
         if (true) {
-            int inBufferIndex = vencoder.dequeueInputBuffer(-1);
+            // when no input buffer, the vencoder is backing up, wait for it,
+            // but not forever, for the stalled vencoder never returns.
+            int inBufferIndex = enc.dequeueInputBuffer(0);
+            if (inBufferIndex < 0) {
+                vbacklog++;
+                inBufferIndex = enc.dequeueInputBuffer(ENCODER_INPUT_TIMEOUT_US);
+            }
             //Log.i(TAG, String.format("try to dequeue input vbuffer, ii=%d", inBufferIndex));
             if (inBufferIndex >= 0) {
                 ByteBuffer bb = inBuffers[inBufferIndex];
                 bb.clear();
                 bb.put(data, 0, data.length);
-                long pts = new Date().getTime() * 1000 - presentationTimeUs;
                 //Log.i(TAG, String.format("feed YUV to encode %dB, pts=%d", data.length, pts / 1000));
-                vencoder.queueInputBuffer(inBufferIndex, 0, data.length, pts, 0);
+                enc.queueInputBuffer(inBufferIndex, 0, data.length, pts, 0);
+                watchdog.onInput(System.nanoTime() / 1000000);
+            } else {
+                watchdog.onInputTimeout(System.nanoTime() / 1000000);
             }
         }
+        SrsTracer.end(SrsTracer.ENCODE_SUBMIT, dts);
 
-        for (;;) {
-            int outBufferIndex = vencoder.dequeueOutputBuffer(vebi, 0);
-            //Log.i(TAG, String.format("try to dequeue output vbuffer, ii=%d, oi=%d", inBufferIndex, outBufferIndex));
-            if (outBufferIndex >= 0) {
-                ByteBuffer bb = outBuffers[outBufferIndex];
-                onEncodedAnnexbFrame(bb, vebi);
-                vencoder.releaseOutputBuffer(outBufferIndex, false);
-            }
+        SrsTracer.begin(SrsTracer.ENCODE_DRAIN, dts);
+        int drained = drainYuvEncoder(enc, ebi, mux, track, watchdog);
+        SrsTracer.end(SrsTracer.ENCODE_DRAIN, dts);
+
+        // for low latency, poll the frame of this input, not drained until next input,
+        // and not wait here, for the camera callback runs in the main looper.
+        if (low_latency && drained == 0) {
+            drainLater(enc, ebi, mux, track, watchdog, System.nanoTime() / 1000000 + DRAIN_TIMEOUT_US / 1000);
+        }
+    }
 
+    // write the encoded frames to muxer, without waiting.
+    // @return the number of frames drained.
+    private int drainYuvEncoder(MediaCodec enc, MediaCodec.BufferInfo ebi, SrsHttpFlv mux, int track, SrsCodecWatchdog watchdog) {
+        ByteBuffer[] outBuffers = enc.getOutputBuffers();
+        int drained = 0;
+        for (;;) {
+            int outBufferIndex = enc.dequeueOutputBuffer(ebi, 0);
+            //Log.i(TAG, String.format("try to dequeue output vbuffer, oi=%d", outBufferIndex));
             if (outBufferIndex < 0) {
                 break;
             }
+
+            watchdog.onOutput(System.nanoTime() / 1000000);
+            ByteBuffer bb = outBuffers[outBufferIndex];
+            onEncodedAnnexbFrame(mux, track, enc, outBufferIndex, bb, ebi);
+            drained++;
+
+            // the stream is resumed from the first keyframe after publish.
+            if (republish_start_ms > 0 && mux == muxer && (ebi.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                long ttff = System.nanoTime() / 1000000 - republish_start_ms;
+                Log.i(TAG, String.format("publish to first keyframe %dms, warm=%b, codecs created=%d, reused=%d",
+                    ttff, republish_warm, codecs.getCreated(), codecs.getReused()));
+                if (ttff > ttff_max_ms) {
+                    SrsStartupGraph graph = startup;
+                    Log.w(TAG, String.format("time to first keyframe %dms exceeds %dms, %s",
+                        ttff, ttff_max_ms, (graph != null) ? graph.getReport() : "no startup"));
+                }
+                republish_start_ms = 0;
+            }
+        }
+        return drained;
+    }
+
+    // poll the vencoder in the main looper, until got the frame or timeout.
+    private void drainLater(final MediaCodec enc, final MediaCodec.BufferInfo ebi, final SrsHttpFlv mux, final int track,
+        final SrsCodecWatchdog watchdog, final long deadline_ms) {
+        vdrainer.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                // disposed, or recreated by watchdog.
+                if (enc != vencoder && enc != vencoder_low) {
+                    return;
+                }
+                try {
+                    if (drainYuvEncoder(enc, ebi, mux, track, watchdog) == 0 && System.nanoTime() / 1000000 < deadline_ms) {
+                        drainLater(enc, ebi, mux, track, watchdog, deadline_ms);
+                    }
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, String.format("%s failed, e=%s", watchdog.getName(), e.toString()));
+                    watchdog.onError(System.nanoTime() / 1000000);
+                }
+            }
+        }, DRAIN_POLL_MS);
+    }
+
+    // when muxer reconnected, request the keyframe for all renditions, to keep them aligned.
+    private SrsHttpFlv.OnSyncFrameListener onSyncFrameRequest() {
+        return new SrsHttpFlv.OnSyncFrameListener() {
+            @Override
+            public void onSyncFrameRequest() {
+                MediaCodec enc = vencoder;
+                if (enc != null) {
+                    requestKeyFrame(enc);
+                }
+                enc = vencoder_low;
+                if (enc != null) {
+                    requestKeyFrame(enc);
+                }
+            }
+        };
+    }
+
+    // request the vencoder to generate a keyframe right now,
+    // requires sdk level 19+, Android 4.4, the KITKAT
+    private void requestKeyFrame(MediaCodec enc) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            enc.setParameters(params);
+        } catch (IllegalStateException e) {
+            // released by watchdog, the new one starts with keyframe.
         }
     }
 
+    // stop, release and create the stalled encoder, then configure by the same format and start,
+    // the muxer should send the sequence header again, for the codec config of the new encoder.
+    private MediaCodec recreateEncoder(MediaCodec enc, MediaFormat format, SrsCodecWatchdog watchdog) throws IOException {
+        long start = System.nanoTime() / 1000000;
+        watchdog.onStall(start);
+        Log.w(TAG, String.format("%s stalled for %dms, recreate it", watchdog.getName(), encoder_stall_ms));
+
+        MediaCodec codec = codecs.replace(enc);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        codec.start();
+
+        long elapsed = System.nanoTime() / 1000000 - start;
+        watchdog.onRecreated(elapsed);
+        Log.i(TAG, String.format("%s recreated in %dms, %s", watchdog.getName(), elapsed, watchdog));
+        return codec;
+    }
+
     // when got encoded aac raw stream.
-    private void onEncodedAacFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
+    private void onEncodedAacFrame(ByteBuffer es, SrsBufferInfo bi) {
+        // when resumed from silence, drop the frames of the samples buffered in aencoder,
+        // which are older than the silent frames sent.
+        if (asilence != null && (bi.flags & SrsBufferInfo.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            if (bi.presentationTimeUs <= alast_pts) {
+                return;
+            }
+            alast_pts = bi.presentationTimeUs;
+        }
+
+        // the low rendition shares the aac stream, use its own view of buffer.
+        SrsHttpFlv mlow = muxer_low;
+        if (mlow != null) {
+            try {
+                mlow.writeSampleData(atrack_low, es.duplicate(), bi);
+            } catch (Exception e) {
+                Log.e(TAG, "muxer write audio sample for low rendition failed.");
+                e.printStackTrace();
+            }
+        }
+
         try {
             muxer.writeSampleData(atrack, es, bi);
         } catch (Exception e) {
@@ -555,40 +1503,90 @@ public class MainActivity extends Activity {
         }
     }
 
-    private void onGetPcmFrame(byte[] data) {
+    // send the silent aac frames until now, each frame follows the last one.
+    private void onSilentPcmFrame() {
+        long pts = new Date().getTime() * 1000 - presentationTimeUs;
+        long duration = asilence.getFrameDuration();
+
+        while (alast_pts + duration <= pts) {
+            byte[] frame = asilence.getSilentFrame();
+            asbi.set(0, frame.length, alast_pts + duration, 0);
+            onEncodedAacFrame(ByteBuffer.wrap(frame), asbi);
+        }
+    }
+
+    private void onGetPcmFrame(byte[] data, int size) {
         //Log.i(TAG, String.format("got PCM audio, size=%d", data.length));
 
+        // the failed aencoder is recreated by watchdog.
+        try {
+            encodePcmFrame(data, size);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, String.format("aencoder failed, e=%s", e.toString()));
+            awatchdog.onError(System.nanoTime() / 1000000);
+        }
+
+        // recreate the stalled aencoder, the mic and muxer keep going.
+        if (awatchdog.isStalled(System.nanoTime() / 1000000)) {
+            try {
+                aencoder = recreateEncoder(aencoder, aformat, awatchdog);
+                muxer.resetSequenceHeader(atrack);
+                SrsHttpFlv mlow = muxer_low;
+                if (mlow != null) {
+                    mlow.resetSequenceHeader(atrack_low);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "recreate aencoder failed.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void encodePcmFrame(byte[] data, int size) {
         // feed the aencoder with yuv frame, got the encoded 264 es stream.
         ByteBuffer[] inBuffers = aencoder.getInputBuffers();
         ByteBuffer[] outBuffers = aencoder.getOutputBuffers();
+        long pts = new Date().getTime() * 1000 - presentationTimeUs;
+        int dts = (int) (pts / 1000);
 
+        SrsTracer.begin(SrsTracer.ENCODE_SUBMIT, dts);
         if (true) {
-            int inBufferIndex = aencoder.dequeueInputBuffer(-1);
+            // not wait forever, for the stalled aencoder never returns.
+            int inBufferIndex = aencoder.dequeueInputBuffer(ENCODER_INPUT_TIMEOUT_US);
             //Log.i(TAG, String.format("try to dequeue input vbuffer, ii=%d", inBufferIndex));
             if (inBufferIndex >= 0) {
                 ByteBuffer bb = inBuffers[inBufferIndex];
                 bb.clear();
-                bb.put(data, 0, data.length);
-                long pts = new Date().getTime() * 1000 - presentationTimeUs;
-                //Log.i(TAG, String.format("feed PCM to encode %dB, pts=%d", data.length, pts / 1000));
-                //SrsHttpFlv.srs_print_bytes(TAG, data, data.length);
-                aencoder.queueInputBuffer(inBufferIndex, 0, data.length, pts, 0);
+                bb.put(data, 0, size);
+                //Log.i(TAG, String.format("feed PCM to encode %dB, pts=%d", size, pts / 1000));
+                //SrsHttpFlv.srs_print_bytes(TAG, data, size);
+                aencoder.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
+                awatchdog.onInput(System.nanoTime() / 1000000);
+            } else {
+                awatchdog.onInputTimeout(System.nanoTime() / 1000000);
             }
         }
+        SrsTracer.end(SrsTracer.ENCODE_SUBMIT, dts);
 
+        SrsTracer.begin(SrsTracer.ENCODE_DRAIN, dts);
+        long timeoutUs = low_latency ? DRAIN_TIMEOUT_US : 0;
         for (;;) {
-            int outBufferIndex = aencoder.dequeueOutputBuffer(aebi, 0);
+            int outBufferIndex = aencoder.dequeueOutputBuffer(aebi, timeoutUs);
+            timeoutUs = 0;
             //Log.i(TAG, String.format("try to dequeue output vbuffer, ii=%d, oi=%d", inBufferIndex, outBufferIndex));
             if (outBufferIndex >= 0) {
+                awatchdog.onOutput(System.nanoTime() / 1000000);
                 ByteBuffer bb = outBuffers[outBufferIndex];
                 //Log.i(TAG, String.format("encoded aac %dB, pts=%d", aebi.size, aebi.presentationTimeUs / 1000));
                 //SrsHttpFlv.srs_print_bytes(TAG, bb, aebi.size);
-                onEncodedAacFrame(bb, aebi);
+                ambi.set(aebi.offset, aebi.size, aebi.presentationTimeUs, aebi.flags);
+                onEncodedAacFrame(bb, ambi);
                 aencoder.releaseOutputBuffer(outBufferIndex, false);
             } else {
                 break;
             }
         }
+        SrsTracer.end(SrsTracer.ENCODE_DRAIN, dts);
     }
 
     // @remark thanks for baozi.
@@ -709,6 +1707,57 @@ public class MainActivity extends Activity {
         return matchedColorFormat;
     }
 
+    // transform the YV12 to the color format of vencoder.
+    private void YV12toEncoderColor(byte[] input, byte[] output, int width, int height) {
+        if (vcolor == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+            YV12toYUV420Planar(input, output, width, height);
+        } else if (vcolor == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar) {
+            YV12toYUV420PackedSemiPlanar(input, output, width, height);
+        } else if (vcolor == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+            YV12toYUV420PackedSemiPlanar(input, output, width, height);
+        } else {
+            System.arraycopy(input, 0, output, 0, Math.min(input.length, output.length));
+        }
+    }
+
+    // downscale the YV12 2:1 by 2x2 box filter, the output is a packed YV12 of width/2 x height/2.
+    // the input is the camera YV12, @see getYuvBuffer for the stride of planes.
+    // we read two source rows and write one output row, so the rows are accessed sequentially.
+    private static byte[] YV12Downscale2x(final byte[] input, final byte[] output, final int width, final int height) {
+        final int stride = (int) Math.ceil(width / 16.0) * 16;
+        final int c_stride = (int) Math.ceil(width / 32.0) * 16;
+        final int y_size = stride * height;
+        final int c_size = c_stride * height / 2;
+
+        final int owidth = width / 2;
+        final int oheight = height / 2;
+        final int oy_size = owidth * oheight;
+        final int oc_size = oy_size / 4;
+
+        PlaneDownscale2x(input, 0, stride, output, 0, owidth, owidth, oheight); // Y
+        PlaneDownscale2x(input, y_size, c_stride, output, oy_size, owidth / 2, owidth / 2, oheight / 2); // Cr (V)
+        PlaneDownscale2x(input, y_size + c_size, c_stride, output, oy_size + oc_size, owidth / 2, owidth / 2, oheight / 2); // Cb (U)
+
+        return output;
+    }
+
+    private static void PlaneDownscale2x(final byte[] input, final int ioffset, final int istride,
+                                         final byte[] output, final int ooffset, final int ostride,
+                                         final int owidth, final int oheight) {
+        for (int y = 0; y < oheight; y++) {
+            int r0 = ioffset + 2 * y * istride;
+            int r1 = r0 + istride;
+            int o = ooffset + y * ostride;
+            for (int x = 0; x < owidth; x++) {
+                int sum = (input[r0] & 0xff) + (input[r0 + 1] & 0xff)
+                        + (input[r1] & 0xff) + (input[r1 + 1] & 0xff);
+                output[o++] = (byte) ((sum + 2) >> 2);
+                r0 += 2;
+                r1 += 2;
+            }
+        }
+    }
+
     // the color transform, @see http://stackoverflow.com/questions/15739684/mediacodec-and-camera-color-space-incorrect
     private static byte[] YV12toYUV420PackedSemiPlanar(final byte[] input, final byte[] output, final int width, final int height) {
         /*
@@ -0,0 +1,151 @@
+package net.ossrs.sea;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * the pool of the stopped codecs, to restart without create the codec,
+ * which allocates the hardware component and costs hundreds of ms.
+ * the codec is stopped when recycled, and must be configured again when obtained.
+ * @remark the pool is thread-safe, and the codecs are created out of lock,
+ *      for the encoders are created by the startup steps in parallel.
+ */
+public class SrsCodecPool {
+    // the idle codecs of each key, the codec name or "type:" + mime.
+    private HashMap<String, ArrayList<MediaCodec>> idle;
+    // the key of the codecs obtained from pool.
+    private HashMap<MediaCodec, String> keys;
+    private int max_idle;
+
+    private long nb_created;
+    private long nb_reused;
+
+    private final static String TAG = "SrsCodecPool";
+
+    /**
+     * constructor.
+     * @param max the max idle codecs of each key, the others are released.
+     */
+    public SrsCodecPool(int max) {
+        idle = new HashMap<String, ArrayList<MediaCodec>>();
+        keys = new HashMap<MediaCodec, String>();
+        max_idle = max;
+    }
+
+    /**
+     * get a codec by name, @see MediaCodec.createByCodecName
+     */
+    public MediaCodec obtainByCodecName(String name) throws IOException {
+        MediaCodec codec = reuse(name);
+        if (codec == null) {
+            codec = MediaCodec.createByCodecName(name);
+            created(name, codec);
+        }
+        return codec;
+    }
+
+    /**
+     * get an encoder by mime type, @see MediaCodec.createEncoderByType
+     */
+    public MediaCodec obtainEncoderByType(String mime) throws IOException {
+        String key = "type:" + mime;
+        MediaCodec codec = reuse(key);
+        if (codec == null) {
+            codec = MediaCodec.createEncoderByType(mime);
+            created(key, codec);
+        }
+        return codec;
+    }
+
+    /**
+     * stop the codec and put it back to pool, or release it when pool is full.
+     */
+    public synchronized void recycle(MediaCodec codec) {
+        String key = keys.get(codec);
+
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // in error state, must release.
+            key = null;
+        }
+
+        ArrayList<MediaCodec> codecs = (key == null) ? null : idle.get(key);
+        if (codecs == null || codecs.size() >= max_idle) {
+            keys.remove(codec);
+            codec.release();
+            return;
+        }
+        codecs.add(codec);
+    }
+
+    /**
+     * release the codec without recycle, for example, the stalled encoder,
+     * and get a new one of the same name or type, which must be configured.
+     */
+    public MediaCodec replace(MediaCodec codec) throws IOException {
+        String key;
+        synchronized (this) {
+            key = keys.remove(codec);
+        }
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+        }
+        codec.release();
+
+        if (key == null) {
+            throw new IOException("codec not obtained from pool");
+        }
+        if (key.startsWith("type:")) {
+            return obtainEncoderByType(key.substring("type:".length()));
+        }
+        return obtainByCodecName(key);
+    }
+
+    /**
+     * release all idle codecs.
+     */
+    public synchronized void release() {
+        for (ArrayList<MediaCodec> codecs : idle.values()) {
+            for (int i = 0; i < codecs.size(); i++) {
+                MediaCodec codec = codecs.get(i);
+                keys.remove(codec);
+                codec.release();
+            }
+            codecs.clear();
+        }
+        Log.i(TAG, String.format("codec pool released, created=%d, reused=%d", nb_created, nb_reused));
+    }
+
+    public synchronized long getCreated() {
+        return nb_created;
+    }
+
+    public synchronized long getReused() {
+        return nb_reused;
+    }
+
+    private synchronized MediaCodec reuse(String key) {
+        ArrayList<MediaCodec> codecs = idle.get(key);
+        if (codecs == null || codecs.isEmpty()) {
+            return null;
+        }
+
+        nb_reused++;
+        Log.i(TAG, String.format("reuse codec %s, idle=%d", key, codecs.size() - 1));
+        return codecs.remove(codecs.size() - 1);
+    }
+
+    private synchronized void created(String key, MediaCodec codec) {
+        if (!idle.containsKey(key)) {
+            idle.put(key, new ArrayList<MediaCodec>());
+        }
+        keys.put(codec, key);
+        nb_created++;
+    }
+}
@@ -0,0 +1,143 @@
+package net.ossrs.sea;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * read the raw aac frames from an adts file, which is memory-mapped,
+ * each frame is a slice of the mapped file without the adts header, without copy.
+ * the format of the first frame is used for the stream, @see getAudioSpecificConfig
+ * @remark the file must less than 2GB, which is the max size of mapping.
+ */
+public class SrsAdtsReader {
+    private File path;
+    private MappedByteBuffer map;
+    private int size;
+    private SrsHttpFlv.SrsUtils utils;
+    // for the utils, the size is the end of file.
+    private SrsBufferInfo bi;
+
+    // the codec of the first frame, and the last frame read.
+    private SrsHttpFlv.SrsRawAacStreamCodec format;
+    private SrsHttpFlv.SrsRawAacStreamCodec codec;
+    private long nb_frames;
+
+    // the sample rate of sampling_frequency_index, @see aac-iso-13818-7.pdf, page 35.
+    private final static int[] SAMPLE_RATES = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350,
+    };
+    // each aac frame is 1024 samples.
+    public final static int SAMPLES_PER_FRAME = 1024;
+
+    /**
+     * constructor, map the file.
+     * @param p the adts file, for example, the .aac file.
+     * @param u the utils to demux the adts header.
+     */
+    public SrsAdtsReader(File p, SrsHttpFlv.SrsUtils u) throws IOException {
+        path = p;
+        utils = u;
+        RandomAccessFile file = new RandomAccessFile(p, "r");
+        try {
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s is too large, %dB", p, file.length()));
+            }
+            size = (int) file.length();
+            map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            // the mapping is valid after closed.
+            file.close();
+        }
+
+        bi = new SrsBufferInfo();
+        bi.set(0, size, 0, 0);
+        format = utils.srs_aac_adts_demux(map, bi);
+        if (format == null || format.sampling_frequency_index >= SAMPLE_RATES.length) {
+            throw new IOException(String.format("%s is not adts", p));
+        }
+    }
+
+    /**
+     * get the size of file.
+     */
+    public int length() {
+        return size;
+    }
+
+    /**
+     * get the number of frames read.
+     */
+    public long getFrames() {
+        return nb_frames;
+    }
+
+    public int getSampleRate() {
+        return SAMPLE_RATES[format.sampling_frequency_index];
+    }
+
+    public int getChannels() {
+        return format.channel_configuration;
+    }
+
+    /**
+     * get the AudioSpecificConfig of stream, which is the codec config of the aac encoder,
+     * @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf, page 33.
+     */
+    public byte[] getAudioSpecificConfig() {
+        byte[] asc = new byte[2];
+        // audioObjectType 5bits, samplingFrequencyIndex 4bits, channelConfiguration 4bits.
+        asc[0] = (byte)(((format.aac_object << 3) & 0xf8) | ((format.sampling_frequency_index >> 1) & 0x07));
+        asc[1] = (byte)(((format.sampling_frequency_index << 7) & 0x80) | ((format.channel_configuration << 3) & 0x78));
+        return asc;
+    }
+
+    /**
+     * get the codec of the last frame read.
+     */
+    public SrsHttpFlv.SrsRawAacStreamCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * rewind to the first frame, for example, to loop the file.
+     */
+    public void rewind() {
+        map.position(0);
+        nb_frames = 0;
+    }
+
+    /**
+     * read the next raw aac frame, the position is 0 and the limit is the size of frame,
+     * which is a slice of file.
+     * @return the frame, or null when no more or the rest is not a complete frame.
+     */
+    public ByteBuffer next() {
+        int pos = map.position();
+        codec = utils.srs_aac_adts_demux(map, bi);
+        if (codec == null) {
+            return null;
+        }
+
+        // the header is 7B, 9B when with CRC.
+        int header = (codec.protection_absent == 1) ? 7 : 9;
+        if (codec.frame_length < header || pos + codec.frame_length > size) {
+            return null;
+        }
+        map.position(pos + codec.frame_length);
+        nb_frames++;
+
+        ByteBuffer bb = map.duplicate();
+        bb.position(pos + header);
+        bb.limit(pos + codec.frame_length);
+        return bb.slice();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %dB, %d frames, %dHz %dch", path, size, nb_frames, getSampleRate(), getChannels());
+    }
+}
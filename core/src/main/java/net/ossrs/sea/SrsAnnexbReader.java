@@ -0,0 +1,149 @@
+package net.ossrs.sea;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * read the h.264 access units from an annexb file, which is memory-mapped,
+ * each access unit is a slice of the mapped file, without copy.
+ * the access unit starts with an AUD, SPS, PPS or SEI after a slice,
+ * or the first slice of picture, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 102.
+ * @remark the file must less than 2GB, which is the max size of mapping.
+ */
+public class SrsAnnexbReader {
+    private File path;
+    private MappedByteBuffer map;
+    private int size;
+    // the start of next access unit.
+    private int pos;
+    private long nb_frames;
+
+    /**
+     * constructor, map the file.
+     * @param p the annexb file, for example, the .h264 file.
+     */
+    public SrsAnnexbReader(File p) throws IOException {
+        path = p;
+        RandomAccessFile file = new RandomAccessFile(p, "r");
+        try {
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s is too large, %dB", p, file.length()));
+            }
+            size = (int) file.length();
+            map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            // the mapping is valid after closed.
+            file.close();
+        }
+
+        pos = findStartCode(0);
+        if (pos < 0) {
+            throw new IOException(String.format("%s is not annexb", p));
+        }
+    }
+
+    /**
+     * get the size of file.
+     */
+    public int length() {
+        return size;
+    }
+
+    /**
+     * get the number of access units read.
+     */
+    public long getFrames() {
+        return nb_frames;
+    }
+
+    /**
+     * rewind to the first access unit, for example, to loop the file.
+     */
+    public void rewind() {
+        pos = findStartCode(0);
+        nb_frames = 0;
+    }
+
+    /**
+     * read the next access unit with the start codes, the position is 0 and the limit
+     * is the size of access unit, which is a slice of file.
+     * @return the access unit, or null when no more.
+     */
+    public ByteBuffer next() {
+        if (pos < 0 || pos >= size) {
+            return null;
+        }
+
+        int start = pos;
+        boolean has_slice = false;
+        int nalu = start;
+        while (nalu >= 0) {
+            int next = findStartCode(nalu + 3);
+
+            // the nalu header is after the 00 00 01, when 4B start code, skip the zero_byte.
+            int header = nalu + ((map.get(nalu + 2) == 0) ? 4 : 3);
+            if (header < size) {
+                int type = map.get(header) & 0x1f;
+                boolean is_slice = type >= SrsHttpFlv.SrsAvcNaluType.NonIDR && type <= SrsHttpFlv.SrsAvcNaluType.IDR;
+                if (has_slice && isFirstOfAccessUnit(type, header)) {
+                    break;
+                }
+                has_slice |= is_slice;
+            }
+            nalu = next;
+        }
+
+        int end = (nalu < 0) ? size : nalu;
+        pos = nalu;
+        nb_frames++;
+
+        ByteBuffer bb = map.duplicate();
+        bb.position(start);
+        bb.limit(end);
+        return bb.slice();
+    }
+
+    // whether the nalu starts a new access unit after a slice.
+    private boolean isFirstOfAccessUnit(int type, int header) {
+        if (type == SrsHttpFlv.SrsAvcNaluType.AccessUnitDelimiter || type == SrsHttpFlv.SrsAvcNaluType.SPS
+            || type == SrsHttpFlv.SrsAvcNaluType.PPS || type == SrsHttpFlv.SrsAvcNaluType.SEI) {
+            return true;
+        }
+        if (type < SrsHttpFlv.SrsAvcNaluType.NonIDR || type > SrsHttpFlv.SrsAvcNaluType.IDR || header + 1 >= size) {
+            return false;
+        }
+        // the first_mb_in_slice is ue(v), the value 0 is coded as a single bit 1.
+        return (map.get(header + 1) & 0x80) != 0;
+    }
+
+    /**
+     * find the start code from the position, 00 00 01 or 00 00 00 01.
+     * @return the position of start code, the 4B start code if there is a zero before,
+     *      or -1 when not found.
+     */
+    private int findStartCode(int from) {
+        int i = from;
+        while (i + 2 < size) {
+            byte b = map.get(i + 2);
+            // the third byte must be 01, or skip 3 bytes.
+            if (b != 0 && b != 1) {
+                i += 3;
+                continue;
+            }
+            if (b == 1 && map.get(i + 1) == 0 && map.get(i) == 0) {
+                return (i > from && map.get(i - 1) == 0) ? i - 1 : i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %dB, %d frames", path, size, nb_frames);
+    }
+}
@@ -0,0 +1,23 @@
+package net.ossrs.sea;
+
+/**
+ * the metadata of a sample written to muxer, the same fields and flags to
+ * android.media.MediaCodec.BufferInfo, which the app copies by set.
+ */
+public class SrsBufferInfo {
+    // the same values to MediaCodec.BUFFER_FLAG_*
+    public final static int BUFFER_FLAG_KEY_FRAME = 1;
+    public final static int BUFFER_FLAG_CODEC_CONFIG = 2;
+
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+
+    public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+        offset = newOffset;
+        size = newSize;
+        presentationTimeUs = newTimeUs;
+        flags = newFlags;
+    }
+}
@@ -0,0 +1,627 @@
+package net.ossrs.sea;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * remux the flv tags to CMAF(fragmented mp4) chunks.
+ * the init segment(ftyp+moov) is built from the avc and aac sequence headers,
+ * that is, the AVCDecoderConfigurationRecord and AudioSpecificConfig, then each
+ * chunk(moof+mdat) contains several frames, and a new chunk starts at keyframe.
+ * @see ISO_IEC_14496-12 ISO base media file format, ISO_IEC_23000-19 CMAF.
+ * @remark the timescale of both tracks is 1000, the same to flv dts.
+ */
+public class SrsCmafMuxer implements SrsHttpFlv.SrsFrameMuxer {
+    // the avcC and AudioSpecificConfig from sequence headers.
+    private byte[] avcc;
+    private byte[] asc;
+    private int width;
+    private int height;
+    private int sample_rate;
+    private int channels;
+    private boolean init_ok;
+
+    // the samples of current chunk, the last sample of each track is
+    // kept to the next chunk, until its duration is known.
+    private ArrayList<Sample> videos;
+    private ArrayList<Sample> audios;
+    private int chunk_bytes;
+    private int sequence_number;
+
+    private int max_frames;
+    private int max_duration_ms;
+
+    private Buffer buf;
+
+    private final static int VIDEO_TRACK_ID = 1;
+    private final static int AUDIO_TRACK_ID = 2;
+    private final static int TIMESCALE = 1000;
+    private final static String TAG = "SrsCmaf";
+
+    private class Sample {
+        public byte[] data;
+        public int offset;
+        public int size;
+        public int dts;
+        public int cts;
+        public int duration;
+        public boolean keyframe;
+    }
+
+    /**
+     * the growable buffer to build the boxes.
+     */
+    private static class Buffer {
+        public byte[] data = new byte[64 * 1024];
+        public int size;
+
+        public void ensure(int n) {
+            if (size + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+            }
+        }
+
+        public void u8(int v) {
+            ensure(1);
+            data[size++] = (byte) v;
+        }
+
+        public void u16(int v) {
+            u8(v >> 8);
+            u8(v);
+        }
+
+        public void u24(int v) {
+            u8(v >> 16);
+            u16(v);
+        }
+
+        public void u32(int v) {
+            u16(v >> 16);
+            u16(v);
+        }
+
+        public void u64(long v) {
+            u32((int) (v >> 32));
+            u32((int) v);
+        }
+
+        public void put(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, data, size, len);
+            size += len;
+        }
+
+        public void fourcc(String v) {
+            for (int i = 0; i < 4; i++) {
+                u8(v.charAt(i));
+            }
+        }
+
+        public void set32(int pos, int v) {
+            data[pos] = (byte) (v >> 24);
+            data[pos + 1] = (byte) (v >> 16);
+            data[pos + 2] = (byte) (v >> 8);
+            data[pos + 3] = (byte) v;
+        }
+
+        // start a box, return the position to patch the size.
+        public int box(String type) {
+            int pos = size;
+            u32(0);
+            fourcc(type);
+            return pos;
+        }
+
+        public int fullbox(String type, int version, int flags) {
+            int pos = box(type);
+            u8(version);
+            u24(flags);
+            return pos;
+        }
+
+        public void end(int pos) {
+            set32(pos, size - pos);
+        }
+    }
+
+    public SrsCmafMuxer() {
+        videos = new ArrayList<Sample>();
+        audios = new ArrayList<Sample>();
+        buf = new Buffer();
+
+        max_frames = 10;
+        max_duration_ms = 500;
+    }
+
+    /**
+     * set the size of chunk, the chunk is flushed when exceed any of them.
+     * @param frames the max frames of all tracks in a chunk.
+     * @param duration_ms the max duration in ms of a chunk.
+     */
+    public void setChunk(int frames, int duration_ms) {
+        max_frames = frames;
+        max_duration_ms = duration_ms;
+    }
+
+    /**
+     * set the video size for the avc1 sample entry.
+     */
+    public void setVideo(int w, int h) {
+        width = w;
+        height = h;
+    }
+
+    /**
+     * set the audio params for the mp4a sample entry.
+     */
+    public void setAudio(int rate, int ch) {
+        sample_rate = rate;
+        channels = ch;
+    }
+
+    /**
+     * reset for a new stream, the init segment is written again.
+     */
+    @Override
+    public void reset() {
+        videos.clear();
+        audios.clear();
+        chunk_bytes = 0;
+        sequence_number = 0;
+        init_ok = false;
+    }
+
+    /**
+     * write the flv tag as CMAF, the chunk is written when full.
+     */
+    @Override
+    public void write(OutputStream os, SrsHttpFlv.SrsFlvFrame frame) throws IOException {
+        byte[] tag = frame.tag.frame.array();
+        int size = frame.tag.size;
+
+        if (frame.is_video()) {
+            // 5bytes header: FrameType|CodecID, AVCPacketType, CompositionTime
+            if (size < 5) {
+                return;
+            }
+            if (frame.avc_aac_type == SrsHttpFlv.SrsCodecVideoAVCType.SequenceHeader) {
+                byte[] v = Arrays.copyOfRange(tag, 5, size);
+                if (avcc != null && !Arrays.equals(avcc, v)) {
+                    // the sps/pps changed, start a new stream.
+                    writeChunk(os, true);
+                    init_ok = false;
+                }
+                avcc = v;
+                return;
+            }
+            if (frame.avc_aac_type != SrsHttpFlv.SrsCodecVideoAVCType.NALU) {
+                return;
+            }
+
+            int cts = ((tag[2] & 0xff) << 16) | ((tag[3] & 0xff) << 8) | (tag[4] & 0xff);
+            if ((cts & 0x800000) != 0) {
+                cts |= 0xff000000;
+            }
+
+            // a new chunk starts at keyframe.
+            if (frame.is_keyframe()) {
+                writeChunk(os, false);
+            }
+            addSample(videos, tag, 5, size - 5, frame.dts, cts, frame.is_keyframe());
+        } else if (frame.is_audio()) {
+            // 2bytes header: SoundFormat|SoundRate|SoundSize|SoundType, AACPacketType
+            if (size < 2) {
+                return;
+            }
+            if (frame.avc_aac_type == 0) {
+                asc = Arrays.copyOfRange(tag, 2, size);
+                return;
+            }
+            addSample(audios, tag, 2, size - 2, frame.dts, 0, true);
+        } else {
+            return;
+        }
+
+        if (chunk_frames() >= max_frames || chunk_duration() >= max_duration_ms) {
+            writeChunk(os, false);
+        }
+    }
+
+    private void addSample(ArrayList<Sample> samples, byte[] data, int offset, int size, int dts, int cts, boolean keyframe) {
+        // the duration of previous sample is known now.
+        if (!samples.isEmpty()) {
+            Sample prev = samples.get(samples.size() - 1);
+            prev.duration = Math.max(0, dts - prev.dts);
+        }
+
+        Sample s = new Sample();
+        s.data = data;
+        s.offset = offset;
+        s.size = size;
+        s.dts = dts;
+        s.cts = cts;
+        s.keyframe = keyframe;
+        samples.add(s);
+        chunk_bytes += size;
+    }
+
+    private int chunk_frames() {
+        return videos.size() + audios.size();
+    }
+
+    private int chunk_duration() {
+        ArrayList<Sample> samples = videos.isEmpty() ? audios : videos;
+        if (samples.size() < 2) {
+            return 0;
+        }
+        return samples.get(samples.size() - 1).dts - samples.get(0).dts;
+    }
+
+    /**
+     * write the samples whose duration is known, as a chunk.
+     * @param all whether write all samples, the duration of last sample is guessed.
+     */
+    private void writeChunk(OutputStream os, boolean all) throws IOException {
+        int nb_videos = all ? videos.size() : Math.max(0, videos.size() - 1);
+        int nb_audios = all ? audios.size() : Math.max(0, audios.size() - 1);
+        if (all) {
+            guessLastDuration(videos);
+            guessLastDuration(audios);
+        }
+        if (nb_videos == 0 && nb_audios == 0) {
+            return;
+        }
+        // the chunk must start with the keyframe.
+        if (!init_ok && (nb_videos == 0 || !videos.get(0).keyframe)) {
+            videos.subList(0, nb_videos).clear();
+            audios.subList(0, nb_audios).clear();
+            return;
+        }
+
+        buf.size = 0;
+        if (!init_ok) {
+            if (avcc == null) {
+                return;
+            }
+            writeInitSegment();
+            init_ok = true;
+            SrsLog.i(TAG, String.format("cmaf: init segment %dB, video %dx%d, audio %dHZ %dch",
+                buf.size, width, height, sample_rate, channels));
+        }
+
+        int moof = buf.box("moof");
+        int mfhd = buf.fullbox("mfhd", 0, 0);
+        buf.u32(++sequence_number);
+        buf.end(mfhd);
+
+        int video_offset_pos = -1;
+        int audio_offset_pos = -1;
+        if (nb_videos > 0) {
+            video_offset_pos = writeTraf(VIDEO_TRACK_ID, videos, nb_videos);
+        }
+        if (nb_audios > 0 && asc != null) {
+            audio_offset_pos = writeTraf(AUDIO_TRACK_ID, audios, nb_audios);
+        }
+        buf.end(moof);
+
+        // the data offset is from the start of moof to the samples in mdat.
+        int mdat_size = 8;
+        for (int i = 0; i < nb_videos; i++) {
+            mdat_size += videos.get(i).size;
+        }
+        int audio_start = mdat_size;
+        for (int i = 0; i < nb_audios && audio_offset_pos > 0; i++) {
+            mdat_size += audios.get(i).size;
+        }
+        int moof_size = buf.size - moof;
+        if (video_offset_pos > 0) {
+            buf.set32(video_offset_pos, moof_size + 8);
+        }
+        if (audio_offset_pos > 0) {
+            buf.set32(audio_offset_pos, moof_size + audio_start);
+        }
+
+        buf.u32(mdat_size);
+        buf.fourcc("mdat");
+        os.write(buf.data, 0, buf.size);
+
+        // write the samples directly, without copy to buffer.
+        for (int i = 0; i < nb_videos; i++) {
+            Sample s = videos.get(i);
+            os.write(s.data, s.offset, s.size);
+            chunk_bytes -= s.size;
+        }
+        for (int i = 0; i < nb_audios; i++) {
+            Sample s = audios.get(i);
+            if (audio_offset_pos > 0) {
+                os.write(s.data, s.offset, s.size);
+            }
+            chunk_bytes -= s.size;
+        }
+
+        videos.subList(0, nb_videos).clear();
+        audios.subList(0, nb_audios).clear();
+    }
+
+    private void guessLastDuration(ArrayList<Sample> samples) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        Sample last = samples.get(samples.size() - 1);
+        last.duration = (samples.size() > 1) ? samples.get(samples.size() - 2).duration : 0;
+    }
+
+    // write the traf, return the position of data_offset in trun.
+    private int writeTraf(int track_id, ArrayList<Sample> samples, int count) {
+        int traf = buf.box("traf");
+
+        // default-base-is-moof
+        int tfhd = buf.fullbox("tfhd", 0, 0x020000);
+        buf.u32(track_id);
+        buf.end(tfhd);
+
+        int tfdt = buf.fullbox("tfdt", 1, 0);
+        buf.u64(samples.get(0).dts & 0xffffffffL);
+        buf.end(tfdt);
+
+        // data-offset, sample-duration, sample-size, sample-flags, sample-composition-time-offset
+        int trun = buf.fullbox("trun", 1, 0x000001 | 0x000100 | 0x000200 | 0x000400 | 0x000800);
+        buf.u32(count);
+        int offset_pos = buf.size;
+        buf.u32(0);
+        for (int i = 0; i < count; i++) {
+            Sample s = samples.get(i);
+            buf.u32(s.duration);
+            buf.u32(s.size);
+            // sync sample: depends_on=2; others: depends_on=1, is_non_sync_sample=1
+            buf.u32(s.keyframe ? 0x02000000 : 0x01010000);
+            buf.u32(s.cts);
+        }
+        buf.end(trun);
+
+        buf.end(traf);
+        return offset_pos;
+    }
+
+    private void writeInitSegment() {
+        int ftyp = buf.box("ftyp");
+        buf.fourcc("iso6");
+        buf.u32(0);
+        buf.fourcc("iso6");
+        buf.fourcc("cmfc");
+        buf.fourcc("isom");
+        buf.fourcc("avc1");
+        buf.end(ftyp);
+
+        int moov = buf.box("moov");
+
+        int mvhd = buf.fullbox("mvhd", 0, 0);
+        buf.u32(0); // creation_time
+        buf.u32(0); // modification_time
+        buf.u32(TIMESCALE);
+        buf.u32(0); // duration
+        buf.u32(0x00010000); // rate 1.0
+        buf.u16(0x0100); // volume 1.0
+        buf.u16(0);
+        buf.u64(0);
+        writeMatrix();
+        for (int i = 0; i < 6; i++) {
+            buf.u32(0); // pre_defined
+        }
+        buf.u32(AUDIO_TRACK_ID + 1); // next_track_ID
+        buf.end(mvhd);
+
+        writeVideoTrak();
+        if (asc != null) {
+            writeAudioTrak();
+        }
+
+        int mvex = buf.box("mvex");
+        writeTrex(VIDEO_TRACK_ID);
+        if (asc != null) {
+            writeTrex(AUDIO_TRACK_ID);
+        }
+        buf.end(mvex);
+
+        buf.end(moov);
+    }
+
+    private void writeMatrix() {
+        int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int i = 0; i < matrix.length; i++) {
+            buf.u32(matrix[i]);
+        }
+    }
+
+    private void writeTrex(int track_id) {
+        int trex = buf.fullbox("trex", 0, 0);
+        buf.u32(track_id);
+        buf.u32(1); // default_sample_description_index
+        buf.u32(0);
+        buf.u32(0);
+        buf.u32(0);
+        buf.end(trex);
+    }
+
+    private void writeTkhd(int track_id, boolean audio) {
+        // track_enabled, track_in_movie
+        int tkhd = buf.fullbox("tkhd", 0, 0x000003);
+        buf.u32(0);
+        buf.u32(0);
+        buf.u32(track_id);
+        buf.u32(0); // reserved
+        buf.u32(0); // duration
+        buf.u64(0);
+        buf.u16(0); // layer
+        buf.u16(0); // alternate_group
+        buf.u16(audio ? 0x0100 : 0); // volume
+        buf.u16(0);
+        writeMatrix();
+        buf.u32(audio ? 0 : width << 16);
+        buf.u32(audio ? 0 : height << 16);
+        buf.end(tkhd);
+    }
+
+    private void writeMdhdHdlr(String handler, String name) {
+        int mdhd = buf.fullbox("mdhd", 0, 0);
+        buf.u32(0);
+        buf.u32(0);
+        buf.u32(TIMESCALE);
+        buf.u32(0);
+        buf.u16(0x55c4); // und
+        buf.u16(0);
+        buf.end(mdhd);
+
+        int hdlr = buf.fullbox("hdlr", 0, 0);
+        buf.u32(0);
+        buf.fourcc(handler);
+        buf.u32(0);
+        buf.u32(0);
+        buf.u32(0);
+        for (int i = 0; i < name.length(); i++) {
+            buf.u8(name.charAt(i));
+        }
+        buf.u8(0);
+        buf.end(hdlr);
+    }
+
+    // the data reference to the same file.
+    private void writeDinf() {
+        int dinf = buf.box("dinf");
+        int dref = buf.fullbox("dref", 0, 0);
+        buf.u32(1);
+        int url = buf.fullbox("url ", 0, 0x000001);
+        buf.end(url);
+        buf.end(dref);
+        buf.end(dinf);
+    }
+
+    private void writeEmptyTables() {
+        String[] tables = {"stts", "stsc", "stco"};
+        for (int i = 0; i < tables.length; i++) {
+            int box = buf.fullbox(tables[i], 0, 0);
+            buf.u32(0);
+            buf.end(box);
+        }
+        int stsz = buf.fullbox("stsz", 0, 0);
+        buf.u32(0);
+        buf.u32(0);
+        buf.end(stsz);
+    }
+
+    private void writeVideoTrak() {
+        int trak = buf.box("trak");
+        writeTkhd(VIDEO_TRACK_ID, false);
+
+        int mdia = buf.box("mdia");
+        writeMdhdHdlr("vide", "VideoHandler");
+
+        int minf = buf.box("minf");
+        int vmhd = buf.fullbox("vmhd", 0, 0x000001);
+        buf.u64(0);
+        buf.end(vmhd);
+        writeDinf();
+
+        int stbl = buf.box("stbl");
+        int stsd = buf.fullbox("stsd", 0, 0);
+        buf.u32(1);
+
+        int avc1 = buf.box("avc1");
+        buf.u32(0);
+        buf.u16(0);
+        buf.u16(1); // data_reference_index
+        buf.u16(0);
+        buf.u16(0);
+        buf.u32(0);
+        buf.u32(0);
+        buf.u32(0);
+        buf.u16(width);
+        buf.u16(height);
+        buf.u32(0x00480000); // 72dpi
+        buf.u32(0x00480000);
+        buf.u32(0);
+        buf.u16(1); // frame_count
+        for (int i = 0; i < 32; i++) {
+            buf.u8(0); // compressorname
+        }
+        buf.u16(0x0018); // depth
+        buf.u16(0xffff); // pre_defined = -1
+
+        int avcC = buf.box("avcC");
+        buf.put(avcc, 0, avcc.length);
+        buf.end(avcC);
+        buf.end(avc1);
+
+        buf.end(stsd);
+        writeEmptyTables();
+        buf.end(stbl);
+
+        buf.end(minf);
+        buf.end(mdia);
+        buf.end(trak);
+    }
+
+    private void writeAudioTrak() {
+        int trak = buf.box("trak");
+        writeTkhd(AUDIO_TRACK_ID, true);
+
+        int mdia = buf.box("mdia");
+        writeMdhdHdlr("soun", "SoundHandler");
+
+        int minf = buf.box("minf");
+        int smhd = buf.fullbox("smhd", 0, 0);
+        buf.u32(0);
+        buf.end(smhd);
+        writeDinf();
+
+        int stbl = buf.box("stbl");
+        int stsd = buf.fullbox("stsd", 0, 0);
+        buf.u32(1);
+
+        int mp4a = buf.box("mp4a");
+        buf.u32(0);
+        buf.u16(0);
+        buf.u16(1); // data_reference_index
+        buf.u64(0);
+        buf.u16(channels);
+        buf.u16(16); // samplesize
+        buf.u32(0);
+        buf.u32(sample_rate << 16);
+
+        // ES_Descriptor, @see ISO_IEC_14496-1 7.2.6.5
+        int esds = buf.fullbox("esds", 0, 0);
+        buf.u8(0x03);
+        buf.u8(3 + 2 + 13 + 2 + asc.length + 3);
+        buf.u16(0); // ES_ID
+        buf.u8(0);
+        // DecoderConfigDescriptor
+        buf.u8(0x04);
+        buf.u8(13 + 2 + asc.length);
+        buf.u8(0x40); // objectTypeIndication, Audio ISO/IEC 14496-3
+        buf.u8(0x15); // streamType audio, upStream 0, reserved 1
+        buf.u24(0); // bufferSizeDB
+        buf.u32(0); // maxBitrate
+        buf.u32(0); // avgBitrate
+        // DecoderSpecificInfo
+        buf.u8(0x05);
+        buf.u8(asc.length);
+        buf.put(asc, 0, asc.length);
+        // SLConfigDescriptor
+        buf.u8(0x06);
+        buf.u8(1);
+        buf.u8(0x02);
+        buf.end(esds);
+        buf.end(mp4a);
+
+        buf.end(stsd);
+        writeEmptyTables();
+        buf.end(stbl);
+
+        buf.end(minf);
+        buf.end(mdia);
+        buf.end(trak);
+    }
+}
@@ -0,0 +1,162 @@
+package net.ossrs.sea;
+
+/**
+ * the watchdog of an encoder, to detect the stall that some vendor encoders stop to produce
+ * output while still accept input, or never return an input buffer. the progress is the time
+ * of the first input not followed by any output, and the encoder is stalled when it exceeds
+ * the threshold, then the caller recreates the encoder, @see MainActivity.recreateEncoder
+ * the recovery time is from the stall detected to the first output of the new encoder,
+ * and the outage is from the last output of the stalled encoder.
+ * @remark not thread-safe, used in the thread which feeds the encoder.
+ */
+public class SrsCodecWatchdog {
+    private String name;
+    private int threshold_ms;
+
+    // the time in ms of the first input since the last output, -1 when no input pending.
+    private long waiting_since_ms;
+    private long last_output_ms;
+    // the time in ms the stall detected, -1 when not recovering.
+    private long stalled_ms;
+    // the last output before the stall.
+    private long stalled_output_ms;
+
+    private long nb_input_timeouts;
+    private long nb_stalls;
+    private long nb_recovered;
+    private long recreate_ms;
+    private long recovery_ms;
+    private long max_recovery_ms;
+    private long last_outage_ms;
+
+    /**
+     * constructor.
+     * @param n the name of encoder, for log.
+     * @param threshold the max time in ms without output, 0 to disable.
+     */
+    public SrsCodecWatchdog(String n, int threshold) {
+        name = n;
+        threshold_ms = threshold;
+        waiting_since_ms = -1;
+        last_output_ms = -1;
+        stalled_ms = -1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * when the input is queued to encoder.
+     */
+    public void onInput(long now_ms) {
+        if (waiting_since_ms < 0) {
+            waiting_since_ms = now_ms;
+        }
+    }
+
+    /**
+     * when no input buffer in time, the input is dropped, and the encoder is not consuming.
+     */
+    public void onInputTimeout(long now_ms) {
+        nb_input_timeouts++;
+        onInput(now_ms);
+    }
+
+    /**
+     * when the encoder failed, for example, the IllegalStateException, stalled right now.
+     */
+    public void onError(long now_ms) {
+        waiting_since_ms = now_ms - threshold_ms;
+    }
+
+    /**
+     * when got the output of encoder.
+     */
+    public void onOutput(long now_ms) {
+        if (stalled_ms >= 0) {
+            long v = now_ms - stalled_ms;
+            nb_recovered++;
+            recovery_ms += v;
+            max_recovery_ms = Math.max(max_recovery_ms, v);
+            last_outage_ms = (stalled_output_ms >= 0) ? now_ms - stalled_output_ms : v;
+            stalled_ms = -1;
+        }
+        last_output_ms = now_ms;
+        waiting_since_ms = -1;
+    }
+
+    /**
+     * whether the encoder produces no output for the threshold.
+     */
+    public boolean isStalled(long now_ms) {
+        return threshold_ms > 0 && waiting_since_ms >= 0 && now_ms - waiting_since_ms >= threshold_ms;
+    }
+
+    /**
+     * when the stall detected, before recreate the encoder. when the recreate failed,
+     * the stall is detected again after the threshold.
+     */
+    public void onStall(long now_ms) {
+        nb_stalls++;
+        if (stalled_ms < 0) {
+            stalled_ms = now_ms;
+            stalled_output_ms = last_output_ms;
+        }
+        waiting_since_ms = now_ms;
+    }
+
+    /**
+     * when the encoder recreated and started.
+     * @param ms the time in ms to stop, release, create, configure and start the encoder.
+     */
+    public void onRecreated(long ms) {
+        recreate_ms += ms;
+        waiting_since_ms = -1;
+    }
+
+    public long getInputTimeouts() {
+        return nb_input_timeouts;
+    }
+
+    public long getStalls() {
+        return nb_stalls;
+    }
+
+    public long getRecovered() {
+        return nb_recovered;
+    }
+
+    /**
+     * get the average time in ms to recreate the encoder.
+     */
+    public long getAverageRecreateTime() {
+        return (nb_stalls <= 0) ? 0 : recreate_ms / nb_stalls;
+    }
+
+    /**
+     * get the average time in ms from the stall detected to the first output.
+     */
+    public long getAverageRecoveryTime() {
+        return (nb_recovered <= 0) ? 0 : recovery_ms / nb_recovered;
+    }
+
+    public long getMaxRecoveryTime() {
+        return max_recovery_ms;
+    }
+
+    /**
+     * get the time in ms without output of the last stall, from the last output
+     * of the stalled encoder to the first output of the new one.
+     */
+    public long getLastOutage() {
+        return last_outage_ms;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s stalls=%d, recovered=%d, input_timeouts=%d, recreate=%dms, recovery=%d/%dms, outage=%dms",
+            name, nb_stalls, nb_recovered, nb_input_timeouts, getAverageRecreateTime(),
+            getAverageRecoveryTime(), max_recovery_ms, last_outage_ms);
+    }
+}
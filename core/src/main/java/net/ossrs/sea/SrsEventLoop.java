@@ -0,0 +1,511 @@
+package net.ossrs.sea;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the event loop to run many sessions in one thread, @see SrsEventLoopGroup
+ * the tasks and timers of sessions run in the loop thread, the sockets are non-blocking,
+ * each connection has an output queue, which is written to socket in round robin,
+ * at most a quantum for each connection in a turn, so a session can not starve others.
+ * the connection is congested when its queue exceeds the max, for the session to drop.
+ * @remark all methods except execute must be called in the loop thread.
+ */
+public class SrsEventLoop {
+    private int id;
+    private Selector selector;
+    private Thread worker;
+    private volatile boolean quit;
+
+    private ConcurrentLinkedQueue<Runnable> tasks;
+    private PriorityQueue<Timer> timers;
+    private long nb_timers;
+    private ArrayList<Connection> connections;
+    // the next connection to write first, rotated each turn.
+    private int next_write;
+
+    private int max_queued;
+    private int send_buffer;
+    private AtomicInteger nb_sessions;
+    private long nb_write_bytes;
+
+    // the max bytes written to a connection in a turn.
+    private final static int WRITE_QUANTUM = 64 * 1024;
+    private final static int READ_BUFFER = 4 * 1024;
+    private final static String TAG = "SrsEventLoop";
+
+    /**
+     * the timer scheduled in loop, @see schedule
+     */
+    public static class Timer implements Comparable<Timer> {
+        private Runnable task;
+        private long at_ms;
+        private long seq;
+        private boolean cancelled;
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            if (at_ms != o.at_ms) {
+                return (at_ms < o.at_ms) ? -1 : 1;
+            }
+            return (seq < o.seq) ? -1 : ((seq == o.seq) ? 0 : 1);
+        }
+    }
+
+    /**
+     * the non-blocking connection with the output queue, @see connect
+     */
+    public class Connection {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ArrayDeque<ByteBuffer> queue;
+        private int nb_queued;
+        private boolean connected;
+        // wait for the socket to be writable.
+        private boolean blocked;
+        // close when the queue is written.
+        private boolean closing;
+        private IOException error;
+        // the status code of the HTTP response, 0 when not responded.
+        private int status;
+        private Timer connect_timer;
+        // the memory of the bytes queued, null to not account.
+        private SrsMemoryBudget.Account account;
+
+        private Connection() {
+            queue = new ArrayDeque<ByteBuffer>();
+        }
+
+        /**
+         * queue the bytes to write, which must not be modified after.
+         * @throws IOException when the connection failed.
+         */
+        public void write(ByteBuffer bb) throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            if (closing) {
+                throw new IOException("connection closed");
+            }
+            nb_queued += bb.remaining();
+            queue.add(bb);
+            if (account != null) {
+                account.force(bb.remaining());
+            }
+        }
+
+        /**
+         * account the bytes queued to the budget, released when written or closed,
+         * the queue is bounded by the congestion, so the bytes are always reserved.
+         */
+        public void setAccount(SrsMemoryBudget.Account v) {
+            account = v;
+        }
+
+        /**
+         * get the bytes queued, which is not written to socket.
+         */
+        public int getQueued() {
+            return nb_queued;
+        }
+
+        /**
+         * whether the queue exceeds the max, the session should drop.
+         */
+        public boolean isCongested() {
+            return nb_queued >= max_queued;
+        }
+
+        /**
+         * get the status code of the HTTP response, 0 when not responded, @see SrsHttpStream.getStatus
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * whether the connection is closed or failed, for example, closed by server.
+         */
+        public boolean isClosed() {
+            return closing;
+        }
+
+        /**
+         * close the connection after the queue is written.
+         */
+        public void close() {
+            closing = true;
+            if (error != null || nb_queued <= 0) {
+                abort(null);
+            }
+        }
+
+        private void abort(IOException e) {
+            if (e != null && error == null) {
+                error = e;
+            }
+            closing = true;
+            if (connect_timer != null) {
+                connect_timer.cancel();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ce) {
+            }
+            queue.clear();
+            if (account != null) {
+                account.release(nb_queued);
+            }
+            nb_queued = 0;
+            connections.remove(this);
+        }
+
+        // write at most quantum bytes.
+        private int flushQueue(int quantum) {
+            int written = 0;
+            try {
+                while (written < quantum && !queue.isEmpty()) {
+                    ByteBuffer bb = queue.peek();
+                    int limit = bb.limit();
+                    int n = Math.min(bb.remaining(), quantum - written);
+                    bb.limit(bb.position() + n);
+                    int size = channel.write(bb);
+                    bb.limit(limit);
+
+                    written += size;
+                    nb_queued -= size;
+                    if (account != null) {
+                        account.release(size);
+                    }
+                    if (!bb.hasRemaining()) {
+                        queue.poll();
+                    }
+                    if (size < n) {
+                        // the socket buffer is full, wait for writable.
+                        blocked = true;
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                abort(e);
+                return written;
+            }
+
+            if (closing && nb_queued <= 0) {
+                abort(null);
+            }
+            return written;
+        }
+    }
+
+    public SrsEventLoop(int v) {
+        id = v;
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        timers = new PriorityQueue<Timer>();
+        connections = new ArrayList<Connection>();
+        nb_sessions = new AtomicInteger(0);
+        max_queued = 1024 * 1024;
+    }
+
+    /**
+     * set the max bytes queued of each connection, exceed which is congested.
+     */
+    public void setMaxQueued(int v) {
+        max_queued = v;
+    }
+
+    /**
+     * set the SO_SNDBUF of the connections, 0 to use the system default, which is large
+     * or auto tuned, and the bytes blocked by a slow link are in the kernel but not queued.
+     */
+    public void setSendBuffer(int v) {
+        send_buffer = v;
+    }
+
+    /**
+     * get the number of sessions attached, to balance the loops.
+     */
+    public int getSessions() {
+        return nb_sessions.get();
+    }
+
+    /**
+     * attach or detach a session, @see getSessions
+     */
+    public void attach() {
+        nb_sessions.incrementAndGet();
+    }
+
+    public void detach() {
+        nb_sessions.decrementAndGet();
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        quit = false;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cycle();
+                } catch (Exception e) {
+                    SrsLog.e(TAG, String.format("loop: #%d failed, e=%s", id, e.getMessage()));
+                    e.printStackTrace();
+                }
+            }
+        });
+        worker.setName(String.format("SrsEventLoop-%d", id));
+        worker.start();
+    }
+
+    /**
+     * stop the loop, the tasks queued are run, then the connections are closed.
+     */
+    public void stop() {
+        quit = true;
+        if (worker != null) {
+            selector.wakeup();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+        }
+        SrsLog.i(TAG, String.format("loop: #%d stopped, written %dB", id, nb_write_bytes));
+    }
+
+    /**
+     * whether the caller is in the loop thread.
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == worker;
+    }
+
+    /**
+     * run the task in the loop thread, callable by any thread.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * run the task in loop after the delay.
+     */
+    public Timer schedule(Runnable task, long delay_ms) {
+        Timer t = new Timer();
+        t.task = task;
+        t.at_ms = System.nanoTime() / 1000000 + Math.max(0, delay_ms);
+        t.seq = nb_timers++;
+        timers.add(t);
+        return t;
+    }
+
+    /**
+     * connect to the address without blocking, the bytes written before connected are queued.
+     * @param timeout_ms the connection fails when not connected in time.
+     */
+    public Connection connect(InetSocketAddress addr, boolean nodelay, int timeout_ms) throws IOException {
+        final Connection c = new Connection();
+        c.channel = SocketChannel.open();
+        try {
+            c.channel.configureBlocking(false);
+            c.channel.socket().setTcpNoDelay(nodelay);
+            if (send_buffer > 0) {
+                c.channel.socket().setSendBufferSize(send_buffer);
+            }
+            c.connected = c.channel.connect(addr);
+            c.key = c.channel.register(selector, c.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c);
+        } catch (IOException e) {
+            c.channel.close();
+            throw e;
+        }
+        connections.add(c);
+
+        if (!c.connected) {
+            c.connect_timer = schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!c.connected) {
+                        c.abort(new IOException("connect timeout"));
+                    }
+                }
+            }, timeout_ms);
+        }
+        return c;
+    }
+
+    private void cycle() throws IOException {
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER);
+        boolean writable = false;
+        try {
+            while (!quit) {
+                // poll when there are bytes to write, or wait for the events and timers.
+                if (writable || !tasks.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(nextTimeout());
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid()) {
+                        onEvent((Connection) key.attachment(), key, input);
+                    }
+                }
+
+                // the tasks added while running are run in the next turn.
+                for (int n = tasks.size(); n > 0; n--) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    run(task);
+                }
+                runTimers();
+
+                writable = writeTurn();
+            }
+        } finally {
+            // run the tasks to stop the sessions, then close all.
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                run(task);
+            }
+            for (int i = connections.size() - 1; i >= 0; i--) {
+                connections.get(i).abort(new IOException("loop stopped"));
+            }
+            selector.close();
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            SrsLog.e(TAG, String.format("loop: #%d task failed, e=%s", id, e.getMessage()));
+            e.printStackTrace();
+        }
+    }
+
+    private void onEvent(Connection c, SelectionKey key, ByteBuffer input) {
+        try {
+            if (key.isConnectable()) {
+                c.channel.finishConnect();
+                c.connected = true;
+                if (c.connect_timer != null) {
+                    c.connect_timer.cancel();
+                    c.connect_timer = null;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (key.isWritable()) {
+                c.blocked = false;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (key.isReadable()) {
+                // drain the response, the server closes it when error.
+                input.clear();
+                if (c.channel.read(input) < 0) {
+                    c.abort(new IOException("closed by server"));
+                } else if (c.status == 0 && input.position() > 0) {
+                    // the status line is in the first segment of response.
+                    c.status = SrsHttpStream.parseStatus(statusLine(input));
+                    if (c.status < 200 || c.status >= 300) {
+                        c.abort(new IOException(String.format("response status=%d", c.status)));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            c.abort(e);
+        }
+    }
+
+    // the first line of the bytes read.
+    private static String statusLine(ByteBuffer input) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < input.position(); i++) {
+            char ch = (char) input.get(i);
+            if (ch == '\r' || ch == '\n') {
+                break;
+            }
+            line.append(ch);
+        }
+        return line.toString();
+    }
+
+    // the time in ms to wait for the next timer, 0 to wait forever.
+    private long nextTimeout() {
+        Timer t;
+        while ((t = timers.peek()) != null && t.cancelled) {
+            timers.poll();
+        }
+        if (t == null) {
+            return 0;
+        }
+        return Math.max(1, t.at_ms - System.nanoTime() / 1000000);
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime() / 1000000;
+        Timer t;
+        while ((t = timers.peek()) != null && t.at_ms <= now) {
+            timers.poll();
+            if (!t.cancelled) {
+                run(t.task);
+            }
+        }
+    }
+
+    /**
+     * write a quantum for each connection in round robin, start from the next of last turn.
+     * @return true if there are bytes to write for the writable connections.
+     */
+    private boolean writeTurn() {
+        int size = connections.size();
+        if (size == 0) {
+            return false;
+        }
+
+        boolean writable = false;
+        int start = next_write % size;
+        next_write = start + 1;
+
+        // copy for the connection is removed when closed.
+        Connection[] cs = connections.toArray(new Connection[size]);
+        for (int i = 0; i < size; i++) {
+            Connection c = cs[(start + i) % size];
+            if (!c.connected || c.blocked || c.nb_queued <= 0 || c.error != null) {
+                continue;
+            }
+
+            nb_write_bytes += c.flushQueue(WRITE_QUANTUM);
+            if (c.nb_queued > 0 && !c.blocked && c.error == null) {
+                writable = true;
+            }
+        }
+        return writable;
+    }
+}
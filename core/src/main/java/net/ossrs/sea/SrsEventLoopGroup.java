@@ -0,0 +1,87 @@
+package net.ossrs.sea;
+
+import java.io.IOException;
+
+/**
+ * the fixed number of event loops shared by many sessions, for the relay or test rigs
+ * which publish hundreds of streams in a process, without a thread for each.
+ * each session is attached to the loop with the least sessions, @see SrsHttpFlv.setEventLoop
+ */
+public class SrsEventLoopGroup {
+    private SrsEventLoop[] loops;
+
+    private final static String TAG = "SrsEventLoop";
+
+    /**
+     * constructor.
+     * @param threads the number of loops, each in a thread.
+     */
+    public SrsEventLoopGroup(int threads) {
+        loops = new SrsEventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SrsEventLoop(i);
+        }
+    }
+
+    /**
+     * set the max bytes queued of each connection, exceed which the session drops
+     * the frames until the next keyframe, should be set before start.
+     */
+    public void setMaxQueued(int v) {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].setMaxQueued(v);
+        }
+    }
+
+    /**
+     * set the SO_SNDBUF of the connections, so the congestion is seen soon by the queue,
+     * should be set before start, @see SrsEventLoop.setSendBuffer
+     */
+    public void setSendBuffer(int v) {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].setSendBuffer(v);
+        }
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].start();
+        }
+        SrsLog.i(TAG, String.format("group: started %d loops", loops.length));
+    }
+
+    /**
+     * stop all loops, the sessions should be stopped before.
+     */
+    public void stop() {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].stop();
+        }
+    }
+
+    /**
+     * get the loop with the least sessions, and attach the session to it.
+     * @remark the session must detach from the loop when stopped.
+     */
+    public synchronized SrsEventLoop attach() {
+        SrsEventLoop loop = loops[0];
+        for (int i = 1; i < loops.length; i++) {
+            if (loops[i].getSessions() < loop.getSessions()) {
+                loop = loops[i];
+            }
+        }
+        loop.attach();
+        return loop;
+    }
+
+    /**
+     * get the number of sessions of all loops.
+     */
+    public int getSessions() {
+        int v = 0;
+        for (int i = 0; i < loops.length; i++) {
+            v += loops[i].getSessions();
+        }
+        return v;
+    }
+}
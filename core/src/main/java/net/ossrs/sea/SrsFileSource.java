@@ -0,0 +1,234 @@
+package net.ossrs.sea;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * publish the h.264 annexb and aac adts files instead of the camera and mic,
+ * for the test, soak and benchmark without devices.
+ * the files are memory-mapped, and each frame is written to muxer as a slice of file,
+ * in realtime by the pts, or as fast as the muxer can send.
+ * usage:
+ *      SrsFileSource <url> <base path of .h264 and .aac> [fps] [fast] [loop]
+ */
+public class SrsFileSource {
+    private SrsHttpFlv muxer;
+    private SrsAnnexbReader video;
+    private SrsAdtsReader audio;
+    private int vtrack;
+    private int atrack;
+    private int fps;
+
+    private boolean realtime;
+    private boolean loop;
+
+    private Thread worker;
+    private volatile boolean quit;
+    private long nb_loops;
+
+    // when as fast as possible, wait for the muxer when too many frames queued.
+    private final static int MAX_PENDING_FRAMES = 256;
+    private final static int DEFAULT_FPS = 25;
+    private final static String TAG = "SrsFileSource";
+
+    /**
+     * constructor, map the files.
+     * @param m the muxer to publish to.
+     * @param h264 the annexb file, null for no video.
+     * @param aac the adts file, null for no audio.
+     * @param v the fps of video, for the annexb has no timestamp.
+     */
+    public SrsFileSource(SrsHttpFlv m, File h264, File aac, int v) throws IOException {
+        muxer = m;
+        fps = v;
+        realtime = true;
+        if (h264 != null) {
+            video = new SrsAnnexbReader(h264);
+        }
+        if (aac != null) {
+            audio = new SrsAdtsReader(aac, muxer.new SrsUtils());
+        }
+        if (video == null && audio == null) {
+            throw new IOException("no video or audio file");
+        }
+    }
+
+    /**
+     * whether write the frames at the pts, or as fast as possible.
+     */
+    public void setRealtime(boolean v) {
+        realtime = v;
+    }
+
+    /**
+     * whether rewind to loop the files, the pts continues.
+     */
+    public void setLoop(boolean v) {
+        loop = v;
+    }
+
+    /**
+     * add tracks to muxer and start to publish the files.
+     */
+    public void start() {
+        if (video != null) {
+            vtrack = muxer.addVideoTrack(0, 0);
+        }
+        if (audio != null) {
+            atrack = muxer.addAudioTrack(audio.getSampleRate(), audio.getChannels());
+        }
+
+        quit = false;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cycle();
+                } catch (InterruptedException e) {
+                } catch (Exception e) {
+                    SrsLog.e(TAG, String.format("source: publish failed, e=%s", e.getMessage()));
+                    e.printStackTrace();
+                }
+            }
+        });
+        worker.start();
+        SrsLog.i(TAG, String.format("source: start, video=%s, audio=%s, fps=%d, realtime=%b, loop=%b",
+            video, audio, fps, realtime, loop));
+    }
+
+    /**
+     * stop publishing and wait for the worker to quit.
+     */
+    public void stop() {
+        quit = true;
+        if (worker != null) {
+            worker.interrupt();
+            await();
+            worker = null;
+        }
+        SrsLog.i(TAG, String.format("source: stopped, video=%s, audio=%s, loops=%d", video, audio, nb_loops));
+    }
+
+    /**
+     * wait for all frames published when not loop.
+     */
+    public void await() {
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void cycle() throws Exception {
+        SrsBufferInfo bi = new SrsBufferInfo();
+        if (audio != null) {
+            ByteBuffer asc = ByteBuffer.wrap(audio.getAudioSpecificConfig());
+            bi.set(0, asc.remaining(), 0, SrsBufferInfo.BUFFER_FLAG_CODEC_CONFIG);
+            muxer.writeSampleData(atrack, asc, bi);
+        }
+
+        long start_us = System.nanoTime() / 1000;
+        // the pts of the first frame of loop.
+        long base_us = 0;
+        long nb_vframes = 0;
+        long nb_aframes = 0;
+        ByteBuffer vframe = (video == null) ? null : video.next();
+        ByteBuffer aframe = (audio == null) ? null : audio.next();
+
+        while (!quit) {
+            long vpts = base_us + nb_vframes * 1000000 / fps;
+            long apts = (audio == null) ? 0 : base_us + nb_aframes * SrsAdtsReader.SAMPLES_PER_FRAME * 1000000 / audio.getSampleRate();
+
+            if (vframe == null && aframe == null) {
+                if (!loop) {
+                    break;
+                }
+
+                // the next loop starts after the last frame of both tracks.
+                base_us = Math.max(video == null ? 0 : vpts, apts);
+                nb_vframes = 0;
+                nb_aframes = 0;
+                if (video != null) {
+                    video.rewind();
+                    vframe = video.next();
+                }
+                if (audio != null) {
+                    audio.rewind();
+                    aframe = audio.next();
+                }
+                nb_loops++;
+                continue;
+            }
+
+            boolean is_video = vframe != null && (aframe == null || vpts <= apts);
+            long pts = is_video ? vpts : apts;
+
+            if (realtime) {
+                long wait_us = pts - (System.nanoTime() / 1000 - start_us);
+                if (wait_us > 0) {
+                    Thread.sleep(wait_us / 1000, (int) (wait_us % 1000) * 1000);
+                }
+            } else {
+                while (muxer.getPendingFrames() > MAX_PENDING_FRAMES) {
+                    Thread.sleep(1);
+                }
+            }
+
+            if (is_video) {
+                bi.set(0, vframe.remaining(), pts, 0);
+                muxer.writeSampleData(vtrack, vframe, bi);
+                vframe = video.next();
+                nb_vframes++;
+            } else {
+                bi.set(0, aframe.remaining(), pts, 0);
+                muxer.writeSampleData(atrack, aframe, bi);
+                aframe = audio.next();
+                nb_aframes++;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: SrsFileSource <url> <base path of .h264 and .aac> [fps] [fast] [loop]");
+            System.exit(1);
+        }
+
+        int fps = DEFAULT_FPS;
+        boolean fast = false;
+        boolean loop = false;
+        for (int i = 2; i < args.length; i++) {
+            if ("fast".equals(args[i])) {
+                fast = true;
+            } else if ("loop".equals(args[i])) {
+                loop = true;
+            } else {
+                fps = Integer.parseInt(args[i]);
+            }
+        }
+
+        File h264 = new File(args[1] + ".h264");
+        File aac = new File(args[1] + ".aac");
+        SrsHttpFlv muxer = new SrsHttpFlv(args[0], SrsHttpFlv.OutputFormat.MUXER_OUTPUT_HTTP_FLV);
+        SrsFileSource source = new SrsFileSource(muxer, h264.exists() ? h264 : null, aac.exists() ? aac : null, fps);
+        source.setRealtime(!fast);
+        source.setLoop(loop);
+
+        muxer.start();
+        long start = System.nanoTime();
+        try {
+            source.start();
+            source.await();
+            muxer.drain();
+        } finally {
+            muxer.stop();
+        }
+        double elapsed = Math.max(1, System.nanoTime() - start) / 1e9;
+
+        long bytes = (source.video == null ? 0 : source.video.length()) + (source.audio == null ? 0 : source.audio.length());
+        System.out.println(String.format("publish %s to %s, %dB in %.3fs, %.2f MB/s, %s",
+            args[1], args[0], bytes, elapsed, bytes / elapsed / 1024 / 1024, muxer.getStats()));
+    }
+}
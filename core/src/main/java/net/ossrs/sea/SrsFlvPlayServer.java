@@ -0,0 +1,488 @@
+package net.ossrs.sea;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * the HTTP FLV server to play the published stream on LAN, GET any path to play.
+ * the tags are serialized once to a shared ring, each viewer sends from its own cursor
+ * in one NIO selector thread, so a slow viewer never blocks the muxer or other viewers.
+ * the bytes of ring are copied to the buffer of viewer under the lock, then sent, so the
+ * muxer never overwrites the bytes in sending.
+ * the new viewer starts from the sequence headers and the latest keyframe in ring,
+ * and the viewer lags too much is skipped forward to the next keyframe in the allowed lag.
+ * @remark the tags are published by the worker of muxer, @see SrsHttpFlv.setPlayServer
+ */
+public class SrsFlvPlayServer {
+    // the kind of tag to publish.
+    public final static int TAG_FRAME = 0;
+    public final static int TAG_KEYFRAME = 1;
+    public final static int TAG_VIDEO_SH = 2;
+    public final static int TAG_AUDIO_SH = 3;
+
+    private int port;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread worker;
+    private volatile boolean quit;
+    private ArrayList<Viewer> viewers;
+
+    // the ring of serialized tags, the position is the total bytes written.
+    private final Object lock = new Object();
+    private byte[] ring;
+    private long write_pos;
+    // the start position of each tag in ring, and whether it is a keyframe.
+    private long[] tag_pos;
+    private boolean[] tag_key;
+    private int tag_first;
+    private int tag_count;
+    private byte[] video_sh;
+    private byte[] audio_sh;
+    // the viewer lags more than it is skipped to the next keyframe.
+    private int max_lag;
+
+    private long nb_viewers;
+    private long nb_skipped;
+
+    private final static int MAX_TAGS = 8 * 1024;
+    private final static int REQUEST_SIZE = 4096;
+    private final static int SEND_SIZE = 64 * 1024;
+    private final static String TAG = "SrsFlvPlayServer";
+
+    /**
+     * the state of a viewer.
+     */
+    private static class Viewer {
+        public SocketChannel channel;
+        public SelectionKey key;
+        public ByteBuffer request;
+        // the response header, flv header and sequence headers, which is sent first.
+        public ByteBuffer prefix;
+        // the bytes copied from ring before cursor, with the rest of tag when skipped.
+        public ByteBuffer out;
+        // the position in ring to copy, -1 when wait for the keyframe.
+        public long cursor;
+        public boolean playing;
+        public long nb_bytes;
+        public long nb_skipped;
+    }
+
+    /**
+     * constructor.
+     * @param p the port to listen.
+     * @param ring_size the bytes of ring, which should hold at least a gop.
+     */
+    public SrsFlvPlayServer(int p, int ring_size) {
+        port = p;
+        ring = new byte[ring_size];
+        max_lag = ring_size / 2;
+        tag_pos = new long[MAX_TAGS];
+        tag_key = new boolean[MAX_TAGS];
+        viewers = new ArrayList<Viewer>();
+    }
+
+    /**
+     * listen and start the selector thread.
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        quit = false;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cycle();
+                } catch (IOException e) {
+                    SrsLog.e(TAG, String.format("play: server failed, e=%s", e.getMessage()));
+                }
+            }
+        });
+        worker.start();
+        SrsLog.i(TAG, String.format("play: listen at %d, ring=%dB", port, ring.length));
+    }
+
+    /**
+     * stop the server and close all viewers.
+     */
+    public void stop() {
+        quit = true;
+        if (worker != null) {
+            selector.wakeup();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+        }
+        SrsLog.i(TAG, String.format("play: stopped, viewers=%d, skipped=%d", nb_viewers, nb_skipped));
+    }
+
+    /**
+     * get the number of viewers playing.
+     */
+    public int getViewers() {
+        synchronized (lock) {
+            return viewers.size();
+        }
+    }
+
+    /**
+     * publish a serialized tag, the sequence header is cached for the new viewers,
+     * and appended to ring for the viewers playing, for the codec config changed.
+     * @param bufs the tag header, data and previous tag size, the bytes are copied.
+     * @param kind the kind of tag, TAG_FRAME, TAG_KEYFRAME, TAG_VIDEO_SH or TAG_AUDIO_SH.
+     */
+    public void publish(ByteBuffer[] bufs, int kind) {
+        int size = 0;
+        for (int i = 0; i < bufs.length; i++) {
+            size += bufs[i].remaining();
+        }
+        if (size > ring.length / 2) {
+            SrsLog.w(TAG, String.format("play: drop tag %dB for ring %dB", size, ring.length));
+            return;
+        }
+
+        synchronized (lock) {
+            if (kind == TAG_VIDEO_SH || kind == TAG_AUDIO_SH) {
+                byte[] sh = new byte[size];
+                int pos = 0;
+                for (int i = 0; i < bufs.length; i++) {
+                    int n = bufs[i].remaining();
+                    bufs[i].duplicate().get(sh, pos, n);
+                    pos += n;
+                }
+                if (kind == TAG_VIDEO_SH) {
+                    video_sh = sh;
+                } else {
+                    audio_sh = sh;
+                }
+            }
+
+            // drop the tags overwritten, then append the tag.
+            long start = write_pos;
+            while (tag_count > 0 && (tag_count == MAX_TAGS || tag_pos[tag_first] < start + size - ring.length)) {
+                tag_first = (tag_first + 1) % MAX_TAGS;
+                tag_count--;
+            }
+            int i = (tag_first + tag_count) % MAX_TAGS;
+            tag_pos[i] = start;
+            tag_key[i] = kind == TAG_KEYFRAME;
+            tag_count++;
+
+            for (int j = 0; j < bufs.length; j++) {
+                ByteBuffer bb = bufs[j].duplicate();
+                while (bb.hasRemaining()) {
+                    int offset = (int) (write_pos % ring.length);
+                    int n = Math.min(bb.remaining(), ring.length - offset);
+                    bb.get(ring, offset, n);
+                    write_pos += n;
+                }
+            }
+        }
+
+        selector.wakeup();
+    }
+
+    private void cycle() throws IOException {
+        try {
+            while (!quit) {
+                selector.select(1000);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read((Viewer) key.attachment());
+                    }
+                }
+
+                // send to all viewers, the writable ones are selected by OP_WRITE.
+                for (int i = viewers.size() - 1; i >= 0; i--) {
+                    Viewer v = viewers.get(i);
+                    if (v.playing) {
+                        send(v);
+                    }
+                }
+            }
+        } finally {
+            for (int i = 0; i < viewers.size(); i++) {
+                viewers.get(i).channel.close();
+            }
+            synchronized (lock) {
+                viewers.clear();
+            }
+            server.close();
+            selector.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel c = server.accept();
+        if (c == null) {
+            return;
+        }
+        c.configureBlocking(false);
+        c.socket().setTcpNoDelay(true);
+
+        Viewer v = new Viewer();
+        v.channel = c;
+        v.request = ByteBuffer.allocate(REQUEST_SIZE);
+        v.out = ByteBuffer.allocate(SEND_SIZE);
+        v.out.flip();
+        v.key = c.register(selector, SelectionKey.OP_READ, v);
+        synchronized (lock) {
+            viewers.add(v);
+        }
+    }
+
+    private void read(Viewer v) {
+        try {
+            if (!v.request.hasRemaining()) {
+                v.request.clear();
+            }
+            if (v.channel.read(v.request) < 0) {
+                close(v, "closed by peer");
+                return;
+            }
+            if (v.playing) {
+                return;
+            }
+
+            String req = new String(v.request.array(), 0, v.request.position(), "ISO-8859-1");
+            if (!req.contains("\r\n\r\n")) {
+                if (!v.request.hasRemaining()) {
+                    close(v, "request too large");
+                }
+                return;
+            }
+            if (!req.startsWith("GET ")) {
+                close(v, "not GET");
+                return;
+            }
+            play(v, req.substring(0, req.indexOf("\r\n")));
+        } catch (IOException e) {
+            close(v, e.getMessage());
+        }
+    }
+
+    // start to play from the sequence headers and the latest keyframe.
+    private void play(Viewer v, String line) throws IOException {
+        String header = "HTTP/1.1 200 OK\r\n"
+            + "Content-Type: video/x-flv\r\n"
+            + "Cache-Control: no-cache\r\n"
+            + "Access-Control-Allow-Origin: *\r\n"
+            + "Connection: close\r\n"
+            + "\r\n";
+        byte[] h = header.getBytes("UTF-8");
+
+        synchronized (lock) {
+            byte[] vsh = video_sh;
+            byte[] ash = audio_sh;
+            int size = h.length + 13 + ((vsh == null) ? 0 : vsh.length) + ((ash == null) ? 0 : ash.length);
+            v.prefix = ByteBuffer.allocate(size);
+            v.prefix.put(h);
+            // the flv header, 4 for audio and 1 for video.
+            v.prefix.put(new byte[]{'F', 'L', 'V', 0x01, (byte) (((ash == null) ? 0 : 4) | ((vsh == null) ? 0 : 1)),
+                0x00, 0x00, 0x00, 0x09, 0x00, 0x00, 0x00, 0x00});
+            if (ash != null) {
+                v.prefix.put(ash);
+            }
+            if (vsh != null) {
+                v.prefix.put(vsh);
+            }
+            v.prefix.flip();
+
+            // without video, start from the next tag.
+            v.cursor = (vsh == null) ? write_pos : latestKeyframe();
+        }
+
+        v.playing = true;
+        nb_viewers++;
+        SrsLog.i(TAG, String.format("play: viewer %s, %s, viewers=%d", v.channel.socket().getRemoteSocketAddress(), line, viewers.size()));
+    }
+
+    private void send(Viewer v) {
+        try {
+            if (!skip(v)) {
+                return;
+            }
+            for (;;) {
+                ByteBuffer bb = v.prefix.hasRemaining() ? v.prefix : v.out;
+                if (bb.hasRemaining()) {
+                    v.nb_bytes += v.channel.write(bb);
+                    if (bb.hasRemaining()) {
+                        wantWrite(v, true);
+                        return;
+                    }
+                    continue;
+                }
+                if (!fill(v)) {
+                    wantWrite(v, false);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close(v, e.getMessage());
+        }
+    }
+
+    // copy the bytes after cursor to the buffer of viewer, false if nothing to send.
+    private boolean fill(Viewer v) {
+        synchronized (lock) {
+            if (v.cursor < 0) {
+                v.cursor = latestKeyframe();
+            }
+            if (v.cursor < 0 || !skip(v)) {
+                return false;
+            }
+
+            int n = (int) Math.min(write_pos - v.cursor, SEND_SIZE);
+            if (n <= 0) {
+                return false;
+            }
+            if (v.out.capacity() != SEND_SIZE) {
+                v.out = ByteBuffer.allocate(SEND_SIZE);
+            }
+            v.out.clear();
+            v.out.limit(n);
+            copy(v.cursor, v.out);
+            v.out.flip();
+            v.cursor += n;
+            return true;
+        }
+    }
+
+    // skip to the next keyframe when lag too much, even the viewer is blocked, false if closed.
+    // the rest of current tag is copied after the bytes to send, so the skip is at the tag boundary.
+    private boolean skip(Viewer v) {
+        synchronized (lock) {
+            if (v.cursor < 0 || write_pos - v.cursor <= max_lag) {
+                return true;
+            }
+
+            int i = findTag(v.cursor);
+            if (i < 0) {
+                close(v, "lapped by the ring");
+                return false;
+            }
+            if (tag_pos[i] != v.cursor) {
+                long next = nextTag(v.cursor);
+                ByteBuffer bb = ByteBuffer.allocate(v.out.remaining() + (int) (next - v.cursor));
+                bb.put(v.out);
+                copy(v.cursor, bb);
+                bb.flip();
+                v.out = bb;
+                v.cursor = next;
+            }
+            long key = nextKeyframe(Math.max(v.cursor + 1, write_pos - max_lag));
+            if (key > v.cursor) {
+                v.cursor = key;
+                v.nb_skipped++;
+                nb_skipped++;
+            }
+            return true;
+        }
+    }
+
+    private void wantWrite(Viewer v, boolean write) {
+        if (v.key.isValid()) {
+            v.key.interestOps(SelectionKey.OP_READ | (write ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    // copy the bytes of ring from pos, to fill the buffer.
+    private void copy(long pos, ByteBuffer bb) {
+        while (bb.hasRemaining()) {
+            int offset = (int) (pos % ring.length);
+            int n = Math.min(bb.remaining(), ring.length - offset);
+            bb.put(ring, offset, n);
+            pos += n;
+        }
+    }
+
+    // the position of the latest keyframe in ring, -1 if none.
+    private long latestKeyframe() {
+        for (int j = tag_count - 1; j >= 0; j--) {
+            int i = (tag_first + j) % MAX_TAGS;
+            if (tag_key[i]) {
+                return tag_pos[i];
+            }
+        }
+        return -1;
+    }
+
+    // the position of the first keyframe at or after pos, or the latest keyframe.
+    private long nextKeyframe(long pos) {
+        for (int j = 0; j < tag_count; j++) {
+            int i = (tag_first + j) % MAX_TAGS;
+            if (tag_key[i] && tag_pos[i] >= pos) {
+                return tag_pos[i];
+            }
+        }
+        return latestKeyframe();
+    }
+
+    // the start of the tag after pos, or the write position.
+    private long nextTag(long pos) {
+        int i = findTag(pos);
+        if (i < 0) {
+            return write_pos;
+        }
+        int next = (i + 1) % MAX_TAGS;
+        int index = (next - tag_first + MAX_TAGS) % MAX_TAGS;
+        return (index < tag_count) ? tag_pos[next] : write_pos;
+    }
+
+    // the index of tag which contains pos, -1 if overwritten.
+    private int findTag(long pos) {
+        if (tag_count == 0 || pos < tag_pos[tag_first]) {
+            return -1;
+        }
+
+        // binary search the last tag starts before or at pos.
+        int lo = 0;
+        int hi = tag_count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (tag_pos[(tag_first + mid) % MAX_TAGS] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return (tag_first + lo) % MAX_TAGS;
+    }
+
+    private void close(Viewer v, String reason) {
+        v.key.cancel();
+        try {
+            v.channel.close();
+        } catch (IOException e) {
+        }
+        synchronized (lock) {
+            viewers.remove(v);
+        }
+        SrsLog.i(TAG, String.format("play: viewer closed, sent %dB, skipped %d, reason=%s, viewers=%d",
+            v.nb_bytes, v.nb_skipped, reason, viewers.size()));
+    }
+}
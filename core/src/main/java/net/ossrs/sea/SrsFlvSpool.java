@@ -0,0 +1,180 @@
+package net.ossrs.sea;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * the disk spool for the flv tags when the connection is down,
+ * which is an append-only ring of records in a memory-mapped file:
+ *      [4B size][size bytes of serialized flv tag]
+ * the record never wraps, a zero size marks the rest of file is unused.
+ * when full, the oldest records are dropped.
+ * @remark the spool is written by worker and read by the catch-up uploader.
+ */
+public class SrsFlvSpool {
+    private File path;
+    private RandomAccessFile file;
+    private MappedByteBuffer ring;
+    private int capacity;
+
+    // the position of the oldest record to read, and the position to write.
+    private int head;
+    private int tail;
+    private int count;
+
+    private long nb_appended;
+    private long nb_dropped;
+
+    /**
+     * constructor.
+     * @param p the file to map.
+     * @param max_bytes the size of the spool file.
+     */
+    public SrsFlvSpool(File p, int max_bytes) throws IOException {
+        path = p;
+        capacity = max_bytes;
+
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(capacity);
+        ring = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * append a serialized flv tag, drop the oldest records when full.
+     * @return false if the tag is larger than the spool.
+     */
+    public synchronized boolean append(byte[] b, int off, int len) {
+        int need = 4 + len;
+        if (len <= 0 || need > capacity) {
+            nb_dropped++;
+            return false;
+        }
+
+        int pos;
+        while ((pos = reserve(need)) < 0) {
+            evict();
+        }
+
+        ring.putInt(pos, len);
+        ByteBuffer bb = ring.duplicate();
+        bb.position(pos + 4);
+        bb.put(b, off, len);
+
+        tail = pos + need;
+        count++;
+        nb_appended++;
+        return true;
+    }
+
+    /**
+     * get the size of the oldest record, 0 if empty.
+     */
+    public synchronized int peek() {
+        if (count <= 0) {
+            return 0;
+        }
+        skipMarker();
+        return ring.getInt(head);
+    }
+
+    /**
+     * read and remove the oldest record.
+     * @param buf the buffer to read into, must not smaller than peek().
+     * @return the size of record, 0 if empty.
+     */
+    public synchronized int poll(byte[] buf) {
+        int len = peek();
+        if (len <= 0 || len > buf.length) {
+            return 0;
+        }
+
+        ByteBuffer bb = ring.duplicate();
+        bb.position(head + 4);
+        bb.get(buf, 0, len);
+
+        head += 4 + len;
+        if (--count == 0) {
+            head = tail = 0;
+        }
+        return len;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count <= 0;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized long getAppended() {
+        return nb_appended;
+    }
+
+    public synchronized long getDropped() {
+        return nb_dropped;
+    }
+
+    /**
+     * unmap and delete the spool file.
+     */
+    public synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+        }
+        path.delete();
+    }
+
+    // get the position to write a record of need bytes, -1 if no space.
+    private int reserve(int need) {
+        if (count <= 0) {
+            head = tail = 0;
+            return 0;
+        }
+
+        if (tail > head) {
+            // the space at the end of file.
+            if (capacity - tail >= need) {
+                return tail;
+            }
+
+            // wrap to the start of file, mark the rest unused.
+            if (head >= need) {
+                if (capacity - tail >= 4) {
+                    ring.putInt(tail, 0);
+                }
+                return 0;
+            }
+            return -1;
+        }
+
+        // wrapped, the space between tail and head.
+        if (head - tail >= need) {
+            return tail;
+        }
+        return -1;
+    }
+
+    // drop the oldest record.
+    private void evict() {
+        skipMarker();
+        int len = ring.getInt(head);
+        head += 4 + len;
+        nb_dropped++;
+        if (--count == 0) {
+            head = tail = 0;
+        }
+    }
+
+    // when reach the end of file, wrap the head to the start.
+    private void skipMarker() {
+        if (capacity - head < 4 || ring.getInt(head) == 0) {
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package net.ossrs.sea;
+
+/**
+ * to admit the camera frames on the target fps schedule, before the color transform.
+ * when the encoder or network queue is backing up, the fps is decreased,
+ * and recovered slowly when the queues drained.
+ */
+public class SrsFramePacer {
+    private int fps;
+    private int min_fps;
+    // the scale of fps in (0, 1], decreased when the pipeline is backing up.
+    private double scale;
+    // the time in ms to admit the next frame.
+    private long next_ms;
+
+    // the queue thresholds to decrease the fps.
+    private int max_encoder_backlog;
+    private int max_network_pending;
+
+    private long nb_admitted;
+    private long nb_dropped;
+
+    private final static double SCALE_DECREASE = 0.75;
+    private final static double SCALE_INCREASE = 0.05;
+    private final static String TAG = "SrsPacer";
+
+    /**
+     * constructor.
+     * @param target_fps the fps to admit frames at, when no pressure.
+     * @param floor_fps the min fps when the pipeline is backing up.
+     */
+    public SrsFramePacer(int target_fps, int floor_fps) {
+        fps = target_fps;
+        min_fps = Math.max(1, Math.min(floor_fps, target_fps));
+        scale = 1.0;
+        next_ms = -1;
+
+        max_encoder_backlog = 1;
+        max_network_pending = target_fps;
+    }
+
+    /**
+     * set the thresholds of the queues, to decrease the fps when exceed.
+     * @param encoder_backlog the number of times the vencoder has no input buffer.
+     * @param network_pending the number of flv frames not sent yet.
+     */
+    public void setThresholds(int encoder_backlog, int network_pending) {
+        max_encoder_backlog = encoder_backlog;
+        max_network_pending = network_pending;
+    }
+
+    /**
+     * whether the frame is admitted, the dropped frame must not be touched.
+     * @param now_ms the monotonic time in ms.
+     */
+    public boolean admit(long now_ms) {
+        long interval_ms = (long) (1000 / getFps());
+
+        if (next_ms < 0 || now_ms - next_ms > interval_ms) {
+            // the first frame, or the camera stalled, restart the schedule.
+            next_ms = now_ms;
+        }
+
+        if (now_ms < next_ms) {
+            nb_dropped++;
+            return false;
+        }
+
+        next_ms += interval_ms;
+        nb_admitted++;
+        return true;
+    }
+
+    /**
+     * update the pressure of pipeline, should be called for each admitted frame.
+     * @param encoder_backlog the number of times the vencoder has no input buffer for the frame.
+     * @param network_pending the number of flv frames in the send queue.
+     */
+    public void update(int encoder_backlog, int network_pending) {
+        update(encoder_backlog, network_pending, false);
+    }
+
+    /**
+     * update the pressure of pipeline, and the memory budget, @see SrsMemoryBudget.isPressured
+     * @param memory_pressured whether the memory budget is pressured, decrease fps to use less memory.
+     */
+    public void update(int encoder_backlog, int network_pending, boolean memory_pressured) {
+        double prev = scale;
+        if (encoder_backlog >= max_encoder_backlog || network_pending > max_network_pending || memory_pressured) {
+            scale = Math.max((double) min_fps / fps, scale * SCALE_DECREASE);
+        } else {
+            scale = Math.min(1.0, scale + SCALE_INCREASE);
+        }
+
+        if (prev == 1.0 && scale < 1.0) {
+            SrsLog.w(TAG, String.format("pacer: backing up, encoder=%d, network=%d, memory=%b, fps=%.1f",
+                encoder_backlog, network_pending, memory_pressured, getFps()));
+        }
+    }
+
+    /**
+     * get the current target fps.
+     */
+    public double getFps() {
+        return Math.max(min_fps, fps * scale);
+    }
+
+    public long getAdmitted() {
+        return nb_admitted;
+    }
+
+    public long getDropped() {
+        return nb_dropped;
+    }
+}
@@ -0,0 +1,2854 @@
+package net.ossrs.sea;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Created by winlin on 5/2/15.
+ * to POST the h.264/avc annexb frame to SRS over HTTP FLV.
+ * @remark we must start a worker thread to send data to server.
+ * @see android.media.MediaMuxer https://developer.android.com/reference/android/media/MediaMuxer.html
+ */
+public class SrsHttpFlv {
+    private String url;
+    private SrsHttpStream conn;
+    private int output_format;
+    // for CMAF or TS, remux the flv tags to the output format.
+    private SrsFrameMuxer remuxer;
+    private SrsCmafMuxer cmaf;
+
+    // the single thread to run the messages in order, the frames are dropped before started.
+    private volatile ScheduledExecutorService worker;
+    private ScheduledFuture<?> flush_future;
+
+    private SrsFlv flv;
+    private boolean sequenceHeaderOk;
+    private SrsFlvFrame videoSequenceHeader;
+    private SrsFlvFrame audioSequenceHeader;
+
+    // use cache queue to ensure audio and video monotonically increase.
+    private ArrayList<SrsFlvFrame> cache;
+    private int nb_videos;
+    private int nb_audios;
+
+    // the flv frames enqueued to worker, but not processed yet.
+    private AtomicInteger nb_pending;
+
+    // the low latency profile, forward each tag immediately without interleaving.
+    private boolean low_latency;
+    // keep a tag of each track in cache to send in the order of dts, @see setInterleave
+    private boolean interleave;
+
+    // the flush policy, coalesce the tags to one chunk in the bytes or time budget,
+    // and flush immediately for keyframe.
+    private int flush_max_bytes;
+    private int flush_max_delay_ms;
+    // the time in ms of the first byte not flushed, -1 if all flushed.
+    private long unflushed_since_ms;
+    private SrsHttpFlvStats stats;
+    // for https, reused for all connections to resume the TLS session.
+    private SSLSocketFactory ssl_factory;
+    private HostnameVerifier hostname_verifier;
+
+    // the disk spool for tags when disconnected, uploaded to the catch-up url after reconnect.
+    private SrsFlvSpool spool;
+    private String catchup_url;
+    private Thread catchup;
+    private ByteArrayOutputStream spool_buf;
+    // whether spooling, the sequence headers are spooled when start.
+    private boolean spooling;
+    private boolean spool_keyframe_ok;
+
+    // after reconnect, request the encoder for a sync frame(IDR) and send from it.
+    private OnSyncFrameListener sync_listener;
+    // record the samples to replay, @see SrsSampleReplayer
+    private SrsSampleRecorder recorder;
+    // for offline remux, the tags are written to it in the caller thread.
+    private OutputStream offline;
+    // for zero copy, the max codec buffers retained by the frames not sent, 0 to copy.
+    private int max_retained;
+    private AtomicInteger nb_retained;
+    // serve the tags to the viewers on LAN, @see SrsFlvPlayServer
+    private SrsFlvPlayServer play;
+    // run in the shared event loop instead of the worker thread, @see setEventLoop
+    private SrsEventLoopGroup loops;
+    private volatile SrsEventLoop loop;
+    private SrsEventLoop.Timer flush_timer;
+    // the messages after stopped are dropped, set by the caller of stop for worker.
+    private volatile boolean stopped;
+    private String backup_url;
+    private SrsHttpStream standby;
+    private boolean standby_connecting;
+    private long standby_after_ms;
+    // the tags since the last keyframe, to resume on the standby.
+    private ArrayList<SrsFlvFrame> gop;
+    private int gop_bytes;
+
+    private SrsMemoryBudget budget;
+    private SrsMemoryBudget.Account mem_queue;
+    private SrsMemoryBudget.Account mem_cache;
+    private SrsMemoryBudget.Account mem_headers;
+    private SrsMemoryBudget.Account mem_gop;
+    private SrsMemoryBudget.Account mem_socket;
+    // the video dropped by budget, wait for the keyframe, in the thread writes video.
+    private boolean budget_wait_keyframe;
+
+    // the wall-clock time in us of pts 0 for the latency SEI, -1 to disable.
+    private long sei_epoch_us;
+    private long sei_sequence;
+    private boolean wait_keyframe;
+    private long sync_requested_ms;
+    // the time in ms to retry to connect after failed.
+    private long reconnect_after_ms;
+    // the primary connecting in thread, @see reconnect
+    private SrsHttpStream connecting;
+    private static final int SYNC_FRAME_TIMEOUT_MS = 1000;
+    private static final int RECONNECT_INTERVAL_MS = 1000;
+    private static final int FLUSH_MAX_BYTES = 16 * 1024;
+    private static final int FLUSH_MAX_DELAY_MS = 40;
+    private static final int MAX_GOP_BYTES = 2 * 1024 * 1024;
+
+    private static final int VIDEO_TRACK = 100;
+    private static final int AUDIO_TRACK = 101;
+    private static final String TAG = "SrsMuxer";
+
+    /**
+     * constructor.
+     * @param path the http flv url to post to.
+     * @param format the mux format, @see SrsHttpFlv.OutputFormat
+     */
+    public SrsHttpFlv(String path, int format) {
+        nb_videos = 0;
+        nb_audios = 0;
+        sequenceHeaderOk = false;
+
+        url = path;
+        output_format = format;
+        if (format == OutputFormat.MUXER_OUTPUT_CMAF) {
+            cmaf = new SrsCmafMuxer();
+            remuxer = cmaf;
+        } else if (format == OutputFormat.MUXER_OUTPUT_TS) {
+            remuxer = new SrsTsMuxer(new SrsUtils());
+        }
+        flv = new SrsFlv();
+        cache = new ArrayList<SrsFlvFrame>();
+        interleave = true;
+        gop = new ArrayList<SrsFlvFrame>();
+        nb_pending = new AtomicInteger(0);
+        nb_retained = new AtomicInteger(0);
+        sei_epoch_us = -1;
+
+        flush_max_bytes = FLUSH_MAX_BYTES;
+        flush_max_delay_ms = FLUSH_MAX_DELAY_MS;
+        unflushed_since_ms = -1;
+        stats = new SrsHttpFlvStats();
+    }
+
+    /**
+     * print the size of bytes in bb
+     * @param bb the bytes to print.
+     * @param size the total size of bytes to print.
+     */
+    public static void srs_print_bytes(String tag, ByteBuffer bb, int size) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        int bytes_in_line = 16;
+        int max = bb.remaining();
+        for (i = 0; i < size && i < max; i++) {
+            sb.append(String.format("0x%s ", Integer.toHexString(bb.get(i) & 0xFF)));
+            if (((i + 1) % bytes_in_line) == 0) {
+                SrsLog.i(tag, String.format("%03d-%03d: %s", i / bytes_in_line * bytes_in_line, i, sb.toString()));
+                sb = new StringBuilder();
+            }
+        }
+        if (sb.length() > 0) {
+            SrsLog.i(tag, String.format("%03d-%03d: %s", size / bytes_in_line * bytes_in_line, i - 1, sb.toString()));
+        }
+    }
+    public static void srs_print_bytes(String tag, byte[] bb, int size) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        int bytes_in_line = 16;
+        int max = bb.length;
+        for (i = 0; i < size && i < max; i++) {
+            sb.append(String.format("0x%s ", Integer.toHexString(bb[i] & 0xFF)));
+            if (((i + 1) % bytes_in_line) == 0) {
+                SrsLog.i(tag, String.format("%03d-%03d: %s", i / bytes_in_line * bytes_in_line, i, sb.toString()));
+                sb = new StringBuilder();
+            }
+        }
+        if (sb.length() > 0) {
+            SrsLog.i(tag, String.format("%03d-%03d: %s", size / bytes_in_line * bytes_in_line, i - 1, sb.toString()));
+        }
+    }
+
+    /**
+     * Adds the avc video track.
+     * @param width the width of video, or 0 if unknown.
+     * @param height the height of video, or 0 if unknown.
+     * @return The track index for this newly added track.
+     */
+    public int addVideoTrack(int width, int height) {
+        if (recorder != null) {
+            recorder.writeTrack(SrsSampleRecorder.TRACK_VIDEO, width, height);
+        }
+        if (cmaf != null) {
+            cmaf.setVideo(width, height);
+        }
+        return VIDEO_TRACK;
+    }
+
+    /**
+     * Adds the aac audio track.
+     * @param sample_rate the sample rate of audio, for example, 44100.
+     * @param channels the number of channels, 1 or 2.
+     * @return The track index for this newly added track.
+     */
+    public int addAudioTrack(int sample_rate, int channels) {
+        if (recorder != null) {
+            recorder.writeTrack(SrsSampleRecorder.TRACK_AUDIO, sample_rate, channels);
+        }
+        flv.setAudioTrack(sample_rate, channels);
+        if (cmaf != null) {
+            cmaf.setAudio(sample_rate, channels);
+        }
+        return AUDIO_TRACK;
+    }
+
+    /**
+     * set the size of CMAF chunk, less frames for lower latency but more overhead
+     * of moof, ignored for other formats.
+     * @param frames the max frames of audio and video in a chunk.
+     * @param duration_ms the max duration in ms of a chunk.
+     */
+    public void setCmafChunk(int frames, int duration_ms) {
+        if (cmaf != null) {
+            cmaf.setChunk(frames, duration_ms);
+        }
+    }
+
+    /**
+     * use the low latency profile, should be set before start.
+     * the tags are sent immediately over TCP_NODELAY, without the interleaving cache,
+     * so the encoder must not use B-frames, the dts of each track is monotonically increase.
+     * @param v whether enable the low latency profile.
+     * @remark to use B-frames in low latency, enable the interleaving by setInterleave after.
+     */
+    public void setLowLatency(boolean v) {
+        low_latency = v;
+        interleave = !v;
+    }
+
+    /**
+     * whether keep a tag of each track in cache, to send the tags in the order of dts,
+     * enabled by default, and disabled by the low latency profile, should be set before start.
+     * @remark required when the encoder uses B-frames, for the dts is not monotonically increase
+     *      in the order of output, but adds the latency of a frame.
+     */
+    public void setInterleave(boolean v) {
+        interleave = v;
+    }
+
+    /**
+     * set the flush policy of worker, the tags are coalesced to one write,
+     * until exceed the bytes or time budget, or a keyframe is written.
+     * @param max_bytes the max bytes to buffer, 0 to flush each time.
+     * @param max_delay_ms the max time in ms to buffer.
+     */
+    public void setFlushPolicy(int max_bytes, int max_delay_ms) {
+        flush_max_bytes = max_bytes;
+        flush_max_delay_ms = max_delay_ms;
+    }
+
+    /**
+     * set the factory to create TLS socket for https, for example, to trust a self-signed
+     * certificate of the test server. use the default factory if not set.
+     */
+    public void setSslSocketFactory(SSLSocketFactory v) {
+        ssl_factory = v;
+    }
+
+    /**
+     * set the verifier of the host name in certificate for https, @see SrsHttpStream.setHostnameVerifier
+     */
+    public void setHostnameVerifier(HostnameVerifier v) {
+        hostname_verifier = v;
+    }
+
+    /**
+     * enable the disk spool, the tags when disconnected are spooled, then uploaded as
+     * fast as possible to the catch-up url after reconnect, while the live tags are
+     * sent to the url.
+     * @param path the spool file.
+     * @param max_bytes the max size of spool, the oldest tags are dropped when full.
+     * @param dvr_url the http flv url of the catch-up stream.
+     */
+    public void setSpool(File path, int max_bytes, String dvr_url) throws IOException {
+        spool = new SrsFlvSpool(path, max_bytes);
+        spool_buf = new ByteArrayOutputStream();
+        catchup_url = dvr_url;
+    }
+
+    /**
+     * the callback to the owner of the video encoder, to request a sync frame,
+     * for example, the IDR by MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME.
+     * @remark the callback is invoked in the worker thread.
+     */
+    public interface OnSyncFrameListener {
+        void onSyncFrameRequest();
+    }
+
+    /**
+     * set the listener to request sync frame when reconnected, so the stream is
+     * resumed without waiting for the next IDR of gop.
+     */
+    public void setOnSyncFrameListener(OnSyncFrameListener v) {
+        sync_listener = v;
+    }
+
+    /**
+     * record the samples written to muxer, should be set before add tracks.
+     * the recorder is closed when the muxer stopped.
+     */
+    public void setRecorder(SrsSampleRecorder v) {
+        recorder = v;
+    }
+
+    /**
+     * serve the stream to the viewers on LAN, should be set before start.
+     * the tags are published to the server whether the upstream is connected or not.
+     * @remark the server is not stopped by muxer.
+     */
+    public void setPlayServer(SrsFlvPlayServer v) {
+        play = v;
+    }
+
+    /**
+     * insert a SEI to each video frame, with the capture wall-clock time and a sequence number,
+     * to measure the end-to-end latency, @see SrsLatencyAnalyzer
+     * @param epoch_us the wall-clock time in us of pts 0, the capture time is epoch_us + pts,
+     *      -1 to disable.
+     */
+    public void setLatencySei(long epoch_us) {
+        sei_epoch_us = epoch_us;
+    }
+
+    /**
+     * run the session in the shared event loop, without the worker thread,
+     * the socket is non-blocking, and the frames are dropped until the next keyframe
+     * when the output of connection is congested, should be set before start.
+     * @remark the https and the zero copy are not supported, the tags are copied.
+     */
+    public void setEventLoop(SrsEventLoopGroup v) {
+        loops = v;
+    }
+
+    /**
+     * account the memory of the frames in the queue, interleaving cache, sequence headers, gop cache
+     * and the bytes queued to the connections of event loop, as the name.queue, name.cache,
+     * name.headers, name.gop and name.socket of the budget, @see SrsMemoryBudget
+     * the frame held by the cache, gop and sequence headers is accounted once, @see holdFrame
+     * when the budget is reached, the queue drops the video until the next keyframe by the policy,
+     * and the cache sends the frames without interleaving, should be set before start.
+     * @param policy the policy of queue, POLICY_DROP for live, or POLICY_BLOCK to push back the source.
+     */
+    public void setMemoryBudget(SrsMemoryBudget v, String name, int policy) {
+        budget = v;
+        mem_queue = v.account(name + ".queue", policy);
+        mem_cache = v.account(name + ".cache", SrsMemoryBudget.POLICY_DEGRADE);
+        mem_headers = v.account(name + ".headers", SrsMemoryBudget.POLICY_DEGRADE);
+        mem_gop = v.account(name + ".gop", SrsMemoryBudget.POLICY_DROP);
+        mem_socket = v.account(name + ".socket", SrsMemoryBudget.POLICY_DEGRADE);
+    }
+
+    /**
+     * set the backup url for the hot standby, a connection to it is established in background,
+     * with the flv header and sequence headers sent, then idle. when the primary fails, the tags
+     * are switched to the standby from the last keyframe cached, without waiting for a new keyframe,
+     * then the backup is the primary, and a new standby to the old primary is set up in background.
+     * only for flv, and the zero copy is disabled for the tags cached, should be set before start.
+     * @param v the backup url, null to disable.
+     */
+    public void setBackupUrl(String v) {
+        backup_url = v;
+    }
+
+    /**
+     * the callback to release the codec output buffer retained by muxer, @see writeSampleData
+     * @remark invoked in the worker thread, or the caller thread when the frame is dropped.
+     */
+    public interface OnBufferReleaseListener {
+        void onBufferRelease(int index);
+    }
+
+    /**
+     * enable the zero copy of video, the frame refers to the codec output buffer until sent,
+     * which is written to socket by a gathering write, then released to the codec.
+     * only for flv without spool, the others are copied.
+     * @param max the max codec buffers retained, the frame is copied when exceed,
+     *      for the codec not to run short of output buffers. 0 to disable.
+     */
+    public void setZeroCopy(int max) {
+        max_retained = max;
+    }
+
+    /**
+     * switch the destination url without restart the muxer and encoders,
+     * the worker reconnects to the new url, and the stream is resumed from
+     * the sequence headers and the requested sync frame.
+     * @param v the new url, in the same output format.
+     */
+    public void setUrl(String v) {
+        if (worker == null && loop == null) {
+            url = v;
+            return;
+        }
+
+        sendMessage(SrsMessageType.URL, v);
+    }
+
+    /**
+     * get the statistic of muxer.
+     */
+    public SrsHttpFlvStats getStats() {
+        return stats;
+    }
+
+    /**
+     * start to the remote SRS for remux.
+     * the worker is ready when return, so the sequence headers are not dropped.
+     */
+    public void start() throws IOException {
+        stopped = false;
+        if (loops != null) {
+            loop = loops.attach();
+            SrsLog.i(TAG, String.format("worker: run in loop, sessions=%d", loop.getSessions()));
+            return;
+        }
+
+        // the delayed flush is cancelled when stopped.
+        ScheduledThreadPoolExecutor w = new ScheduledThreadPoolExecutor(1);
+        w.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        worker = w;
+    }
+
+    /**
+     * remux to the stream in the caller thread, without the worker and connection,
+     * for example, to remux the recorded files, @see SrsBatchRemuxer
+     * the samples must be written in the order of dts, for there is no interleaving cache.
+     * @param os the stream to write to, which is not closed by muxer.
+     */
+    public void startOffline(OutputStream os) throws IOException {
+        offline = os;
+        if (remuxer != null) {
+            remuxer.reset();
+        } else {
+            writeFlvHeader(os);
+        }
+    }
+
+    /**
+     * wait for the worker to process all frames written before, for example,
+     * to stop after the last frame is sent.
+     * @remark the frames in the interleaving cache are not sent.
+     */
+    public void drain() throws InterruptedException {
+        ScheduledExecutorService w = worker;
+        SrsEventLoop l = loop;
+        if (w == null && l == null) {
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    SrsLog.e(TAG, String.format("worker: flush failed, e=%s", e.getMessage()));
+                    disconnect();
+                }
+                done.countDown();
+            }
+        };
+        if (l != null) {
+            l.execute(r);
+        } else {
+            w.execute(r);
+        }
+        done.await();
+    }
+
+    /**
+     * Make sure you call this when you're done to free up any resources
+     * instead of relying on the garbage collector to do this for you at
+     * some point in the future.
+     */
+    public void release() {
+        stop();
+    }
+
+    /**
+     * stop the muxer, disconnect HTTP connection from SRS.
+     */
+    public void stop() {
+        clearCache();
+
+        if (worker == null && conn == null && loop == null) {
+            return;
+        }
+
+        // disconnect in loop, the messages after are dropped.
+        SrsEventLoop l = loop;
+        if (l != null) {
+            final CountDownLatch done = new CountDownLatch(1);
+            l.execute(new Runnable() {
+                @Override
+                public void run() {
+                    stopped = true;
+                    cancelFlush();
+                    disconnect();
+                    closeStandby();
+                    // closed when the connecting thread done.
+                    connecting = null;
+                    standby_connecting = false;
+                    done.countDown();
+                }
+            });
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            loop = null;
+            l.detach();
+        }
+
+        // the messages in queue are dropped by the worker, wait for the running one.
+        if (worker != null) {
+            stopped = true;
+            worker.shutdown();
+            try {
+                worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                SrsLog.i(TAG, "worker: wait for thread failed.");
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+            flush_future = null;
+            // closed by the connecting thread when done.
+            connecting = null;
+        }
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (IOException e) {
+            }
+            conn = null;
+        }
+        closeStandby();
+        clearGop();
+
+        if (catchup != null) {
+            catchup.interrupt();
+            try {
+                catchup.join();
+            } catch (InterruptedException e) {
+            }
+            catchup = null;
+        }
+        if (spool != null) {
+            SrsLog.i(TAG, String.format("worker: spool closed, appended=%d, dropped=%d, left=%d",
+                spool.getAppended(), spool.getDropped(), spool.getCount()));
+            spool.close();
+            spool = null;
+        }
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+        // the frames in queue are dropped when worker quit,
+        // the socket account is released by the connections when closed.
+        if (budget != null) {
+            mem_queue.releaseAll();
+            mem_cache.releaseAll();
+            mem_headers.releaseAll();
+            mem_gop.releaseAll();
+        }
+        SrsLog.i(TAG, String.format("worker: muxer closed, url=%s, %s", url, stats));
+    }
+
+    /**
+     * send the annexb frame to SRS over HTTP FLV.
+     * @param trackIndex The track index for this sample.
+     * @param byteBuf The encoded sample.
+     * @param bufferInfo The buffer information related to this sample.
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, SrsBufferInfo bufferInfo) throws Exception {
+        //SrsLog.i(TAG, String.format("dumps the %s stream %dB, pts=%d", (trackIndex == VIDEO_TRACK) ? "Vdieo" : "Audio", bufferInfo.size, bufferInfo.presentationTimeUs / 1000));
+        //SrsHttpFlv.srs_print_bytes(TAG, byteBuf, bufferInfo.size);
+
+        if (bufferInfo.offset > 0) {
+            SrsLog.w(TAG, String.format("encoded frame %dB, offset=%d pts=%dms",
+                    bufferInfo.size, bufferInfo.offset, bufferInfo.presentationTimeUs / 1000
+            ));
+        }
+
+        if (recorder != null) {
+            recorder.writeSample((VIDEO_TRACK == trackIndex) ? SrsSampleRecorder.TRACK_VIDEO : SrsSampleRecorder.TRACK_AUDIO,
+                byteBuf, bufferInfo);
+        }
+
+        int dts = (int) (bufferInfo.presentationTimeUs / 1000);
+        if (VIDEO_TRACK == trackIndex) {
+            SrsTracer.begin(SrsTracer.FLV_VIDEO, dts);
+            try {
+                flv.writeVideoSample(byteBuf, bufferInfo);
+            } finally {
+                SrsTracer.end(SrsTracer.FLV_VIDEO, dts);
+            }
+        } else {
+            SrsTracer.begin(SrsTracer.FLV_AUDIO, dts);
+            try {
+                flv.writeAudioSample(byteBuf, bufferInfo);
+            } finally {
+                SrsTracer.end(SrsTracer.FLV_AUDIO, dts);
+            }
+        }
+    }
+
+    /**
+     * write the sample without copy when zero copy enabled, the codec output buffer is retained
+     * until the frame is sent, then released by the listener, @see setZeroCopy
+     * @param index the index of codec output buffer.
+     * @param listener the callback to release the buffer.
+     * @return true if retained, the caller must not release it; false if copied, the caller
+     *      should release it right now.
+     */
+    public boolean writeSampleData(int trackIndex, ByteBuffer byteBuf, SrsBufferInfo bufferInfo,
+        int index, OnBufferReleaseListener listener) throws Exception {
+        if (VIDEO_TRACK != trackIndex || remuxer != null || spool != null || offline != null
+            || backup_url != null || nb_retained.get() >= max_retained) {
+            writeSampleData(trackIndex, byteBuf, bufferInfo);
+            return false;
+        }
+
+        boolean retained;
+        flv.retain(index, listener);
+        try {
+            writeSampleData(trackIndex, byteBuf, bufferInfo);
+        } finally {
+            retained = flv.unretain();
+        }
+        return retained;
+    }
+
+    /**
+     * send the sequence header again for the next sample of the track, even the codec config
+     * is not changed, for example, the encoder is recreated, @see SrsCodecWatchdog
+     * @remark call in the thread writes the samples of track.
+     */
+    public void resetSequenceHeader(int trackIndex) {
+        flv.resetSequenceHeader(VIDEO_TRACK == trackIndex);
+    }
+
+    /**
+     * copy the frames which retain the codec buffers, and release the buffers,
+     * so the codec can be released, for example, to recreate the stalled encoder.
+     * the tags gathered in the chunk not flushed yet are copied as well.
+     * the copy runs in the worker after the frames written before, never wait for it.
+     * @param done run in the worker when copied, or right now when no worker.
+     * @return true when copied or posted; false when the worker quit, the done is not run,
+     *      and the buffers are released when the frames are dropped.
+     */
+    public boolean copyRetained(final Runnable done) {
+        ScheduledExecutorService w = worker;
+        SrsEventLoop l = loop;
+        if (w == null && l == null) {
+            done.run();
+            return true;
+        }
+
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                // when stopped, the frames are dropped and their buffers released.
+                if (!stopped) {
+                    for (int i = 0; i < cache.size(); i++) {
+                        cache.get(i).copy();
+                    }
+                    if (conn != null) {
+                        conn.copyGathered();
+                    }
+                }
+                done.run();
+            }
+        };
+        if (l != null) {
+            l.execute(r);
+            return true;
+        }
+        try {
+            w.execute(r);
+        } catch (RejectedExecutionException e) {
+            // the worker is quit.
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * get the number of flv frames in the send queue, which are not sent yet,
+     * including the frames in the message queue of worker and the interleaving cache.
+     */
+    public int getPendingFrames() {
+        return nb_pending.get() + nb_videos + nb_audios;
+    }
+
+    private void disconnect() {
+        // the cached tags are not sent, spool them.
+        if (spool != null && conn != null) {
+            for (int i = 0; i < cache.size(); i++) {
+                try {
+                    spoolFlvTag(cache.get(i));
+                } catch (IOException e) {
+                }
+            }
+        }
+        clearCache();
+
+        if (conn == null) {
+            return;
+        }
+
+        try {
+            conn.close();
+        } catch (IOException e) {
+        }
+        conn = null;
+        SrsLog.i(TAG, "worker: disconnect SRS ok.");
+    }
+
+    private void clearCache() {
+        nb_videos = 0;
+        nb_audios = 0;
+        for (int i = 0; i < cache.size(); i++) {
+            cache.get(i).cached = false;
+            unholdFrame(cache.get(i), mem_cache);
+            cache.get(i).release();
+        }
+        cache.clear();
+        sequenceHeaderOk = false;
+        unflushed_since_ms = -1;
+    }
+
+    private void reconnect() throws Exception {
+        // when conn not null, already connected, or connecting in thread.
+        if (conn != null || connecting != null) {
+            return;
+        }
+
+        // retry later when failed.
+        long now = System.nanoTime() / 1000000;
+        if (now < reconnect_after_ms) {
+            return;
+        }
+        reconnect_after_ms = now + RECONNECT_INTERVAL_MS;
+
+        disconnect();
+
+        SrsLog.i(TAG, String.format("worker: connect to SRS by url=%s", url));
+        final SrsHttpStream c = new SrsHttpStream(new URL(url));
+        if (c.isTls() && ssl_factory == null) {
+            ssl_factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
+        c.setTcpNoDelay(low_latency);
+        c.setSslSocketFactory(ssl_factory);
+        c.setHostnameVerifier(hostname_verifier);
+        c.setStats(stats);
+        c.setEventLoop(loop);
+        c.setMemoryAccount(mem_socket);
+
+        // the connect to file, or to the ip address in loop never blocks.
+        if (c.isFile() || (loop != null && c.isAddress())) {
+            c.connect();
+            onConnected(c);
+            return;
+        }
+
+        // connect in a thread, not to block the worker for the connect timeout and handshake,
+        // the frames before connected are dropped or spooled. for loop, the thread resolves
+        // the host only, then the loop connects without blocking.
+        connecting = c;
+        final ScheduledExecutorService w = worker;
+        final SrsEventLoop l = loop;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (l != null) {
+                        c.resolve();
+                    } else {
+                        c.connect();
+                    }
+                } catch (IOException e) {
+                    SrsLog.e(TAG, String.format("worker: connect failed, e=%s", e.getMessage()));
+                    closeQuietly(c);
+                }
+                execute(w, l, new SrsMessage(SrsMessageType.CONNECTED, c));
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * the primary is connected, write the header, then wait for the keyframe.
+     */
+    private void onConnected(SrsHttpStream c) throws IOException {
+        // failed, retry later, or the standby is the primary by failover.
+        if (!c.isAlive() || conn != null) {
+            closeQuietly(c);
+            return;
+        }
+
+        conn = c;
+        SrsLog.i(TAG, String.format("worker: muxer opened, url=%s, low_latency=%b, format=%d", url, low_latency, output_format));
+
+        // for CMAF or TS, the init segment or PAT/PMT is written before the first keyframe.
+        if (remuxer != null) {
+            remuxer.reset();
+        } else {
+            writeFlvHeader(conn);
+            conn.flush();
+            SrsLog.i(TAG, String.format("worker: flv header ok."));
+        }
+
+        clearCache();
+        stats.onReconnect();
+
+        // the stream must start with keyframe, request it right now.
+        wait_keyframe = true;
+        requestSyncFrame();
+    }
+
+    /**
+     * cache the tags since the last keyframe, and send the new sequence header to standby.
+     */
+    private void cacheGop(SrsFlvFrame frame, boolean sh) {
+        // the tags before are not decodable by the new sequence header.
+        if (sh) {
+            clearGop();
+            try {
+                if (standby != null) {
+                    writeFlvTag(standby, frame);
+                    standby.flush();
+                }
+            } catch (IOException e) {
+                SrsLog.e(TAG, String.format("worker: standby failed, e=%s", e.getMessage()));
+                closeStandby();
+            }
+            return;
+        }
+
+        if (frame.is_keyframe()) {
+            clearGop();
+        } else if (gop.isEmpty()) {
+            return;
+        }
+
+        // the gop is too large, wait for the keyframe when failover.
+        if (gop_bytes + frame.tag.size > MAX_GOP_BYTES || !holdFrame(frame, mem_gop, false)) {
+            SrsLog.w(TAG, String.format("worker: gop exceed %dB or budget, drop %d tags", gop_bytes, gop.size()));
+            clearGop();
+            return;
+        }
+        gop.add(frame);
+        gop_bytes += frame.tag.size;
+    }
+
+    private void clearGop() {
+        for (int i = 0; i < gop.size(); i++) {
+            unholdFrame(gop.get(i), mem_gop);
+        }
+        gop.clear();
+        gop_bytes = 0;
+    }
+
+    /**
+     * switch to the standby, resume from the keyframe cached, and the backup is the primary.
+     */
+    private void failover() {
+        conn = standby;
+        standby = null;
+        String v = url;
+        url = backup_url;
+        backup_url = v;
+        stats.onFailover();
+
+        // the sequence headers are sent by standby.
+        clearCache();
+        sequenceHeaderOk = true;
+        wait_keyframe = gop.isEmpty();
+        SrsLog.w(TAG, String.format("worker: failover to %s, resume %d tags from dts=%d",
+            url, gop.size(), gop.isEmpty() ? -1 : gop.get(0).dts));
+
+        try {
+            for (int i = 0; i < gop.size(); i++) {
+                sendFlvTag(conn, gop.get(i));
+            }
+        } catch (IOException e) {
+            SrsLog.e(TAG, String.format("worker: failover failed, e=%s", e.getMessage()));
+            disconnect();
+            return;
+        }
+
+        if (wait_keyframe) {
+            requestSyncFrame();
+        }
+        // the new standby to the old primary, right now.
+        standby_after_ms = 0;
+    }
+
+    /**
+     * set up the standby when the primary is ready, or the old one closed by server.
+     */
+    private void keepStandby() {
+        if (backup_url == null || remuxer != null || standby_connecting) {
+            return;
+        }
+
+        if (standby != null && !standby.isAlive()) {
+            SrsLog.w(TAG, String.format("worker: standby closed by server, url=%s", backup_url));
+            closeStandby();
+        }
+        if (standby != null || conn == null || !sequenceHeaderOk) {
+            return;
+        }
+
+        // retry later when failed.
+        long now = System.nanoTime() / 1000000;
+        if (now < standby_after_ms) {
+            return;
+        }
+        standby_after_ms = now + RECONNECT_INTERVAL_MS;
+
+        final SrsHttpStream c;
+        try {
+            c = new SrsHttpStream(new URL(backup_url));
+        } catch (IOException e) {
+            SrsLog.e(TAG, String.format("worker: invalid backup url=%s", backup_url));
+            return;
+        }
+        if (c.isTls() && ssl_factory == null) {
+            ssl_factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
+        c.setTcpNoDelay(low_latency);
+        c.setSslSocketFactory(ssl_factory);
+        c.setHostnameVerifier(hostname_verifier);
+        c.setStats(stats);
+        c.setEventLoop(loop);
+        c.setMemoryAccount(mem_socket);
+
+        // the connect to the ip address in loop never blocks.
+        if (loop != null && c.isAddress()) {
+            try {
+                c.connect();
+                writeFlvHeader(c);
+                onStandby(c);
+            } catch (IOException e) {
+                SrsLog.e(TAG, String.format("worker: standby failed, e=%s", e.getMessage()));
+                closeQuietly(c);
+            }
+            return;
+        }
+
+        // connect in a thread, not to block the frames to primary, for loop, resolve only.
+        standby_connecting = true;
+        final ScheduledExecutorService w = worker;
+        final SrsEventLoop l = loop;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SrsHttpStream ready = null;
+                try {
+                    if (l != null) {
+                        c.resolve();
+                    } else {
+                        c.connect();
+                        writeFlvHeader(c);
+                        c.flush();
+                    }
+                    ready = c;
+                } catch (IOException e) {
+                    SrsLog.e(TAG, String.format("worker: standby failed, e=%s", e.getMessage()));
+                    closeQuietly(c);
+                }
+                execute(w, l, new SrsMessage(SrsMessageType.STANDBY, ready));
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * the standby is connected, send the sequence headers, at the dts of the keyframe cached,
+     * for the tags to resume not to be earlier.
+     */
+    private void onStandby(SrsHttpStream c) {
+        if (conn == null) {
+            closeQuietly(c);
+            return;
+        }
+
+        int dts = gop.isEmpty() ? 0 : gop.get(0).dts;
+        try {
+            if (audioSequenceHeader != null) {
+                writeFlvTag(c, audioSequenceHeader.copyAt(dts));
+            }
+            if (videoSequenceHeader != null) {
+                writeFlvTag(c, videoSequenceHeader.copyAt(dts));
+            }
+            c.flush();
+        } catch (IOException e) {
+            SrsLog.e(TAG, String.format("worker: standby failed, e=%s", e.getMessage()));
+            closeQuietly(c);
+            return;
+        }
+        standby = c;
+        SrsLog.i(TAG, String.format("worker: standby ready, url=%s", backup_url));
+    }
+
+    private void closeStandby() {
+        if (standby != null) {
+            closeQuietly(standby);
+            standby = null;
+        }
+    }
+
+    private static void closeQuietly(SrsHttpStream c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * reserve the memory of frame until dequeued by worker, in the thread writes the frame.
+     * when the budget reached, the video is dropped until the next keyframe,
+     * and the sequence headers are always queued.
+     * @return false if the frame is dropped.
+     */
+    private boolean reserveQueue(SrsFlvFrame frame) {
+        if (mem_queue == null) {
+            return true;
+        }
+
+        if (frame.is_sequence_header()) {
+            mem_queue.force(frame.tag.size);
+            return true;
+        }
+
+        if (frame.is_video() && budget_wait_keyframe && !frame.is_keyframe()) {
+            stats.onDrop();
+            return false;
+        }
+        if (mem_queue.reserve(frame.tag.size)) {
+            if (frame.is_video()) {
+                budget_wait_keyframe = false;
+            }
+            return true;
+        }
+
+        if (frame.is_video() && !budget_wait_keyframe) {
+            SrsLog.w(TAG, String.format("flv: budget reached, drop until keyframe, dts=%d, %s", frame.dts, budget));
+            budget_wait_keyframe = true;
+            if (sync_listener != null) {
+                sync_listener.onSyncFrameRequest();
+            }
+        }
+        stats.onDrop();
+        return false;
+    }
+
+    // account the sequence header retained, which replaces the previous one.
+    private void retainSequenceHeader(SrsFlvFrame prev, SrsFlvFrame frame) {
+        if (prev != null) {
+            unholdFrame(prev, mem_headers);
+        }
+        holdFrame(frame, mem_headers, true);
+    }
+
+    /**
+     * account the frame held by the account, each frame is accounted once, by the holder lives
+     * longest, the sequence headers or gop, then the cache, the bytes move between the accounts
+     * as the frame is held or released by them, @see unholdFrame
+     * @param force reserve even the budget is reached, or the frame is not held when failed.
+     * @return false if the reservation failed, the frame should be dropped by the holder.
+     */
+    private boolean holdFrame(SrsFlvFrame frame, SrsMemoryBudget.Account a, boolean force) {
+        if (a == null) {
+            return true;
+        }
+
+        // the cache never takes the frame from others.
+        if (frame.account != null) {
+            if (frame.account == mem_cache && a != mem_cache) {
+                mem_cache.move(a, frame.tag.size);
+                frame.account = a;
+            }
+            return true;
+        }
+
+        if (force) {
+            a.force(frame.tag.size);
+        } else if (!a.reserve(frame.tag.size)) {
+            return false;
+        }
+        frame.account = a;
+        return true;
+    }
+
+    // the frame is released by the account, the bytes move to the cache when still in it.
+    private void unholdFrame(SrsFlvFrame frame, SrsMemoryBudget.Account a) {
+        if (a == null || frame.account != a) {
+            return;
+        }
+
+        if (a != mem_cache && frame.cached) {
+            a.move(mem_cache, frame.tag.size);
+            frame.account = mem_cache;
+            return;
+        }
+        a.release(frame.tag.size);
+        frame.account = null;
+    }
+
+    private void requestSyncFrame() {
+        sync_requested_ms = System.nanoTime() / 1000000;
+        if (sync_listener != null) {
+            SrsLog.i(TAG, "worker: request sync frame.");
+            sync_listener.onSyncFrameRequest();
+        }
+    }
+
+    /**
+     * when reconnected, wait for the keyframe to send, request again when timeout.
+     * @return true if the frame can be sent.
+     */
+    private boolean waitKeyframe(SrsFlvFrame frame) {
+        if (!wait_keyframe) {
+            return true;
+        }
+
+        // the sequence header is cached and sent before the keyframe.
+        if (!frame.is_keyframe() || frame.avc_aac_type != SrsCodecVideoAVCType.NALU) {
+            if (System.nanoTime() / 1000000 - sync_requested_ms > SYNC_FRAME_TIMEOUT_MS) {
+                requestSyncFrame();
+            }
+            return false;
+        }
+
+        wait_keyframe = false;
+        SrsLog.i(TAG, String.format("worker: resume from keyframe dts=%d, waited %dms",
+            frame.dts, System.nanoTime() / 1000000 - sync_requested_ms));
+
+        // upload the tags spooled when disconnected.
+        spooling = false;
+        startCatchup();
+        return true;
+    }
+
+    // write 13B header
+    // 9bytes header and 4bytes first previous-tag-size
+    private static void writeFlvHeader(OutputStream os) throws IOException {
+        byte[] flv_header = new byte[]{
+                'F', 'L', 'V', // Signatures "FLV"
+                (byte) 0x01, // File version (for example, 0x01 for FLV version 1)
+                (byte) 0x00, // 4, audio; 1, video; 5 audio+video.
+                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x09, // DataOffset UI32 The length of this header in bytes
+                (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00
+        };
+        os.write(flv_header);
+    }
+
+    /**
+     * spool the tag when disconnected, start with the sequence headers and keyframe,
+     * so the catch-up stream is decodable.
+     */
+    private void spoolFlvTag(SrsFlvFrame frame) throws IOException {
+        if (!spooling) {
+            spooling = true;
+            spool_keyframe_ok = false;
+            SrsLog.i(TAG, String.format("worker: start to spool, dts=%d, spooled=%d", frame.dts, spool.getCount()));
+
+            if (videoSequenceHeader != null) {
+                spoolFlvTag0(videoSequenceHeader.copyAt(frame.dts));
+            }
+            if (audioSequenceHeader != null) {
+                spoolFlvTag0(audioSequenceHeader.copyAt(frame.dts));
+            }
+        }
+
+        if (frame.is_video() && !spool_keyframe_ok) {
+            if (!frame.is_keyframe()) {
+                return;
+            }
+            spool_keyframe_ok = true;
+        }
+
+        spoolFlvTag0(frame);
+    }
+
+    private void spoolFlvTag0(SrsFlvFrame frame) throws IOException {
+        if (frame.tag.size <= 0) {
+            return;
+        }
+
+        spool_buf.reset();
+        writeFlvTag(spool_buf, frame);
+        spool.append(spool_buf.toByteArray(), 0, spool_buf.size());
+    }
+
+    /**
+     * start the uploader for the spooled tags, to the catch-up url.
+     */
+    private void startCatchup() {
+        if (spool == null || spool.isEmpty()) {
+            return;
+        }
+        if (catchup != null && catchup.isAlive()) {
+            return;
+        }
+
+        catchup = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    uploadSpool();
+                } catch (Exception e) {
+                    SrsLog.e(TAG, String.format("catchup: upload failed, e=%s", e.getMessage()));
+                }
+            }
+        });
+        catchup.start();
+    }
+
+    // upload the spooled tags without pacing, until the spool is empty.
+    private void uploadSpool() throws Exception {
+        SrsHttpStream c = new SrsHttpStream(new URL(catchup_url));
+        c.setSslSocketFactory(ssl_factory);
+        c.setHostnameVerifier(hostname_verifier);
+        c.connect();
+        SrsLog.i(TAG, String.format("catchup: upload %d tags to %s", spool.getCount(), catchup_url));
+
+        long nb_tags = 0;
+        long nb_bytes = 0;
+        long start = System.currentTimeMillis();
+        try {
+            writeFlvHeader(c);
+
+            byte[] buf = new byte[64 * 1024];
+            while (!Thread.interrupted()) {
+                int size = spool.peek();
+                if (size <= 0) {
+                    break;
+                }
+                if (size > buf.length) {
+                    buf = new byte[size];
+                }
+
+                size = spool.poll(buf);
+                c.write(buf, 0, size);
+                nb_tags++;
+                nb_bytes += size;
+            }
+        } finally {
+            c.close();
+        }
+        SrsLog.i(TAG, String.format("catchup: uploaded %d tags, %dB in %dms",
+            nb_tags, nb_bytes, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * the message to the worker thread or the loop.
+     */
+    private class SrsMessage implements Runnable {
+        private int what;
+        private Object obj;
+
+        public SrsMessage(int w, Object o) {
+            what = w;
+            obj = o;
+        }
+
+        @Override
+        public void run() {
+            if (!stopped) {
+                handleMessage(what, obj);
+            } else {
+                drop();
+            }
+        }
+
+        /**
+         * the message is not processed for the muxer stopped,
+         * release the frame and the connection of standby or primary.
+         */
+        public void drop() {
+            if (what == SrsMessageType.FLV) {
+                nb_pending.decrementAndGet();
+                if (mem_queue != null) {
+                    mem_queue.release(((SrsFlvFrame) obj).tag.size);
+                }
+                ((SrsFlvFrame) obj).release();
+            } else if ((what == SrsMessageType.STANDBY || what == SrsMessageType.CONNECTED) && obj != null) {
+                closeQuietly((SrsHttpStream) obj);
+            }
+        }
+    }
+
+    /**
+     * send the message to the worker thread, or the loop.
+     * @remark the worker and loop are read once, for they are cleared by stop in other thread.
+     */
+    private void sendMessage(int what, Object obj) {
+        execute(worker, loop, new SrsMessage(what, obj));
+    }
+
+    // run the message in the loop, or the worker, the message is dropped when quit.
+    private static void execute(ScheduledExecutorService w, SrsEventLoop l, SrsMessage msg) {
+        if (l != null) {
+            l.execute(msg);
+            return;
+        }
+        if (w == null) {
+            msg.drop();
+            return;
+        }
+
+        try {
+            w.execute(msg);
+        } catch (RejectedExecutionException e) {
+            // the worker is quit.
+            msg.drop();
+        }
+    }
+
+    private void handleMessage(int what, Object obj) {
+        if (what == SrsMessageType.FLUSH) {
+            flush_future = null;
+            try {
+                flush();
+            } catch (Exception e) {
+                SrsLog.e(TAG, String.format("worker: flush failed, e=%s", e.getMessage()));
+                disconnect();
+            }
+            return;
+        }
+
+        if (what == SrsMessageType.URL) {
+            SrsLog.i(TAG, String.format("worker: switch url from %s to %s", url, obj));
+            url = (String) obj;
+            disconnect();
+            // the connecting to the old url is closed when done.
+            connecting = null;
+            reconnect_after_ms = 0;
+            try {
+                reconnect();
+            } catch (Exception e) {
+                SrsLog.e(TAG, String.format("worker: reconnect failed. e=%s", e.getMessage()));
+                disconnect();
+            }
+            return;
+        }
+
+        if (what == SrsMessageType.CONNECTED) {
+            SrsHttpStream c = (SrsHttpStream) obj;
+            if (c != connecting) {
+                closeQuietly(c);
+                return;
+            }
+            connecting = null;
+            try {
+                // for loop, resolved by the thread, connect without blocking.
+                if (loop != null && c.isResolved()) {
+                    c.connect();
+                }
+                onConnected(c);
+            } catch (Exception e) {
+                SrsLog.e(TAG, String.format("worker: reconnect failed. e=%s", e.getMessage()));
+                disconnect();
+            }
+            return;
+        }
+
+        if (what == SrsMessageType.STANDBY) {
+            standby_connecting = false;
+            SrsHttpStream c = (SrsHttpStream) obj;
+            if (c == null) {
+                return;
+            }
+            // for loop, resolved by the thread, connect without blocking.
+            if (loop != null) {
+                try {
+                    c.connect();
+                    writeFlvHeader(c);
+                } catch (IOException e) {
+                    SrsLog.e(TAG, String.format("worker: standby failed, e=%s", e.getMessage()));
+                    closeQuietly(c);
+                    return;
+                }
+            }
+            onStandby(c);
+            return;
+        }
+
+        if (what != SrsMessageType.FLV) {
+            SrsLog.w(TAG, String.format("worker: drop unkown message, what=%d", what));
+            return;
+        }
+        SrsFlvFrame frame = (SrsFlvFrame)obj;
+        nb_pending.decrementAndGet();
+        if (mem_queue != null) {
+            mem_queue.release(frame.tag.size);
+        }
+        SrsTracer.instant(SrsTracer.QUEUE_GET, frame.dts);
+        if (play != null) {
+            publishFlvTag(frame);
+        }
+
+        // the server closed the primary, for example, the edge is down, switch to the standby.
+        if (conn != null && !conn.isAlive()) {
+            SrsLog.w(TAG, String.format("worker: closed by server, url=%s", url));
+            disconnect();
+        }
+        if (conn == null && standby != null) {
+            failover();
+        }
+
+        try {
+            // reconnect as soon as possible, then request the sync frame.
+            reconnect();
+        } catch (Exception e) {
+            SrsLog.e(TAG, String.format("worker: reconnect failed. e=%s", e.getMessage()));
+            disconnect();
+        }
+
+        try {
+            // when the connection is congested in loop, drop the frames until the next keyframe.
+            if (conn != null && conn.isCongested() && !wait_keyframe) {
+                SrsLog.w(TAG, String.format("worker: congested, drop until keyframe, dts=%d", frame.dts));
+                stats.onCongested();
+                wait_keyframe = true;
+                requestSyncFrame();
+            }
+
+            // the frames before the keyframe are not sent.
+            boolean ready = conn != null && !conn.isCongested() && waitKeyframe(frame);
+
+            // when sequence header required,
+            // send the copies at the dts of the current frame.
+            if (!sequenceHeaderOk && ready) {
+                if (audioSequenceHeader != null) {
+                    sendFlvTag(conn, audioSequenceHeader.copyAt(frame.dts));
+                }
+                if (videoSequenceHeader != null) {
+                    sendFlvTag(conn, videoSequenceHeader.copyAt(frame.dts));
+                }
+                sequenceHeaderOk = true;
+            }
+
+            // the sequence header is cached and sent before the keyframe.
+            boolean sh = (frame.type == SrsCodecFlvTag.Video && frame.avc_aac_type == SrsCodecVideoAVCType.SequenceHeader)
+                || (frame.type == SrsCodecFlvTag.Audio && frame.avc_aac_type == 0);
+            if (backup_url != null && remuxer == null) {
+                cacheGop(frame, sh);
+            }
+
+            // try to send, igore when not connected.
+            if (sequenceHeaderOk && ready) {
+                sendFlvTag(conn, frame);
+            } else {
+                if (!sh) {
+                    stats.onDrop();
+                }
+                if (spool != null) {
+                    spoolFlvTag(frame);
+                }
+            }
+
+            // cache the sequence header.
+            if (frame.type == SrsCodecFlvTag.Video && frame.avc_aac_type == SrsCodecVideoAVCType.SequenceHeader) {
+                retainSequenceHeader(videoSequenceHeader, frame);
+                videoSequenceHeader = frame;
+            } else if (frame.type == SrsCodecFlvTag.Audio && frame.avc_aac_type == 0) {
+                retainSequenceHeader(audioSequenceHeader, frame);
+                audioSequenceHeader = frame;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            SrsLog.e(TAG, String.format("worker: send flv tag failed, e=%s", e.getMessage()));
+            disconnect();
+            // the frame is cached, and resumed on the standby.
+            if (standby != null) {
+                failover();
+            }
+        }
+        keepStandby();
+
+        // the frame not sent and not cached is dropped.
+        if (frame.release_listener != null && !frame.gathered && !cache.contains(frame)) {
+            frame.release();
+        }
+    }
+
+    private void flush() throws IOException {
+        unflushed_since_ms = -1;
+        if (conn != null) {
+            conn.flush();
+        }
+    }
+
+    /**
+     * flush when exceed the budget or keyframe written,
+     * or schedule a flush when the time budget exceed.
+     */
+    private void flushIfRequired(SrsHttpStream os, boolean keyframe) throws IOException {
+        if (os.getBuffered() <= 0) {
+            return;
+        }
+
+        long now = System.nanoTime() / 1000000;
+        if (unflushed_since_ms < 0) {
+            unflushed_since_ms = now;
+        }
+
+        // for https, flush at half of a TLS record, so the next tag is unlikely to split
+        // a record, and the record ends at the tag boundary.
+        int max_bytes = flush_max_bytes;
+        if (os.isTls()) {
+            max_bytes = Math.min(max_bytes, SrsHttpStream.TLS_MAX_RECORD / 2);
+        }
+
+        long elapsed = now - unflushed_since_ms;
+        if (low_latency || keyframe || os.getBuffered() >= max_bytes || elapsed >= flush_max_delay_ms) {
+            cancelFlush();
+            flush();
+            return;
+        }
+
+        scheduleFlush(flush_max_delay_ms - elapsed);
+    }
+
+    // schedule a flush if not scheduled, in the worker thread or loop.
+    private void scheduleFlush(long delay_ms) {
+        if (loop == null) {
+            if (flush_future == null) {
+                flush_future = worker.schedule(new SrsMessage(SrsMessageType.FLUSH, null), delay_ms, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        if (flush_timer == null) {
+            flush_timer = loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush_timer = null;
+                    handleMessage(SrsMessageType.FLUSH, null);
+                }
+            }, delay_ms);
+        }
+    }
+
+    private void cancelFlush() {
+        if (loop == null) {
+            if (flush_future != null) {
+                flush_future.cancel(false);
+                flush_future = null;
+            }
+            return;
+        }
+
+        if (flush_timer != null) {
+            flush_timer.cancel();
+            flush_timer = null;
+        }
+    }
+
+    private void sendFlvTag(SrsHttpStream os, SrsFlvFrame frame) throws IOException {
+        if (frame == null) {
+            return;
+        }
+
+        if (frame.tag.size <= 0) {
+            return;
+        }
+
+        if (frame.is_video()) {
+            nb_videos++;
+        } else if (frame.is_audio()) {
+            nb_audios++;
+        }
+        cache.add(frame);
+        frame.cached = true;
+        holdFrame(frame, mem_cache, true);
+
+        // without interleaving, or the budget pressured, send the tag immediately without reordering,
+        // including the first keyframe and sequence headers.
+        if (!interleave || (budget != null && budget.isPressured())) {
+            sendCachedFrames(os, 0);
+            return;
+        }
+
+        // always keep one audio and one videos in cache.
+        if (nb_videos > 1 && nb_audios > 1) {
+            sendCachedFrames(os, 1);
+        }
+    }
+
+    /**
+     * send the cached frames, keep the specified number of audio and video in cache.
+     * @param os the stream to write to.
+     * @param slack the number of frames for each track to keep in cache.
+     */
+    private void sendCachedFrames(SrsHttpStream os, int slack) throws IOException {
+        Collections.sort(cache, new Comparator<SrsFlvFrame>() {
+            @Override
+            public int compare(SrsFlvFrame lhs, SrsFlvFrame rhs) {
+                return lhs.dts - rhs.dts;
+            }
+        });
+
+        boolean keyframe = false;
+        while (!cache.isEmpty() && (slack <= 0 || (nb_videos > slack && nb_audios > slack))) {
+            SrsFlvFrame frame = cache.remove(0);
+            frame.cached = false;
+            unholdFrame(frame, mem_cache);
+
+            if (frame.is_video()) {
+                nb_videos--;
+            } else if (frame.is_audio()) {
+                nb_audios--;
+            }
+
+            if (frame.is_keyframe()) {
+                keyframe = true;
+                SrsLog.i(TAG, String.format("worker: got frame type=%d, dts=%d, size=%dB, videos=%d, audios=%d",
+                    frame.type, frame.dts, frame.tag.size, nb_videos, nb_audios));
+            } else {
+                //SrsLog.i(TAG, String.format("worker: got frame type=%d, dts=%d, size=%dB, videos=%d, audios=%d",
+                 //   frame.type, frame.dts, frame.tag.size, nb_videos, nb_audios));
+            }
+
+            try {
+                if (remuxer != null) {
+                    remuxer.write(os, frame);
+                } else if (frame.tag.segments != null) {
+                    writeFlvTagGathering(os, frame);
+                } else {
+                    writeFlvTag(os, frame);
+                }
+            } finally {
+                if (!frame.gathered) {
+                    frame.release();
+                }
+            }
+        }
+
+        flushIfRequired(os, keyframe);
+    }
+
+    /**
+     * serialize the flv tag, the 11B header, tag data and 4B previous tag size.
+     */
+    private void writeFlvTag(OutputStream os, SrsFlvFrame frame) throws IOException {
+        os.write(flvTagHeader(frame).array());
+
+        // write the flv tag data.
+        byte[] data = frame.tag.frame.array();
+        os.write(data, 0, frame.tag.size);
+
+        os.write(flvTagTrailer(frame).array());
+    }
+
+    /**
+     * write the flv tag of segments without copy to the current chunk, so the tags are coalesced
+     * by the flush policy, the codec buffers are released when the chunk is sent.
+     * @remark the codec buffers are retained in the flush budget, and the frames more than
+     *      max retained are copied, @see writeSampleData
+     */
+    private void writeFlvTagGathering(SrsHttpStream os, final SrsFlvFrame frame) throws IOException {
+        os.writeGathering(flvTagBuffers(frame), new Runnable() {
+            @Override
+            public void run() {
+                frame.release();
+            }
+        });
+        frame.gathered = true;
+    }
+
+    /**
+     * publish the flv tag to the play server, which copies the tag to its ring.
+     */
+    private void publishFlvTag(SrsFlvFrame frame) {
+        int kind = SrsFlvPlayServer.TAG_FRAME;
+        if (frame.is_video() && frame.avc_aac_type == SrsCodecVideoAVCType.SequenceHeader) {
+            kind = SrsFlvPlayServer.TAG_VIDEO_SH;
+        } else if (frame.is_audio() && frame.avc_aac_type == 0) {
+            kind = SrsFlvPlayServer.TAG_AUDIO_SH;
+        } else if (frame.is_keyframe()) {
+            kind = SrsFlvPlayServer.TAG_KEYFRAME;
+        }
+        play.publish(flvTagBuffers(frame), kind);
+    }
+
+    // the header, data or segments, and trailer of flv tag.
+    private static ByteBuffer[] flvTagBuffers(SrsFlvFrame frame) {
+        ByteBuffer[] segments = frame.tag.segments;
+        if (segments == null) {
+            segments = new ByteBuffer[]{ByteBuffer.wrap(frame.tag.frame.array(), 0, frame.tag.size)};
+        }
+        ByteBuffer[] bufs = new ByteBuffer[segments.length + 2];
+        bufs[0] = flvTagHeader(frame);
+        for (int i = 0; i < segments.length; i++) {
+            bufs[i + 1] = segments[i];
+        }
+        bufs[bufs.length - 1] = flvTagTrailer(frame);
+        return bufs;
+    }
+
+    // the 11B flv tag header.
+    private static ByteBuffer flvTagHeader(SrsFlvFrame frame) {
+        ByteBuffer th = ByteBuffer.allocate(11);
+        // Reserved UB [2]
+        // Filter UB [1]
+        // TagType UB [5]
+        // DataSize UI24
+        int tag_size = (int) ((frame.tag.size & 0x00FFFFFF) | ((frame.type & 0x1F) << 24));
+        th.putInt(tag_size);
+        // Timestamp UI24
+        // TimestampExtended UI8
+        int time = (int) ((frame.dts << 8) & 0xFFFFFF00) | ((frame.dts >> 24) & 0x000000FF);
+        th.putInt(time);
+        // StreamID UI24 Always 0.
+        th.put((byte) 0);
+        th.put((byte) 0);
+        th.put((byte) 0);
+        th.flip();
+        return th;
+    }
+
+    // the 4B previous tag size.
+    // @remark, we append the tag size, this is different to SRS which write RTMP packet.
+    private static ByteBuffer flvTagTrailer(SrsFlvFrame frame) {
+        ByteBuffer pps = ByteBuffer.allocate(4);
+        pps.putInt((int) (frame.tag.size + 11));
+        pps.flip();
+        return pps;
+    }
+
+    /**
+     * the supported output format for muxer.
+     */
+    class OutputFormat {
+        public final static int MUXER_OUTPUT_HTTP_FLV = 0;
+        // the CMAF(fmp4) chunks over HTTP, @see SrsCmafMuxer
+        public final static int MUXER_OUTPUT_CMAF = 1;
+        // the MPEG-TS over HTTP, @see SrsTsMuxer
+        public final static int MUXER_OUTPUT_TS = 2;
+    }
+
+    /**
+     * the remuxer of the flv tags to other output format.
+     */
+    interface SrsFrameMuxer {
+        /**
+         * reset for a new connection.
+         */
+        void reset();
+
+        /**
+         * write the flv tag in the output format.
+         */
+        void write(OutputStream os, SrsFlvFrame frame) throws IOException;
+    }
+
+    // E.4.3.1 VIDEODATA
+    // Frame Type UB [4]
+    // Type of video frame. The following values are defined:
+    //     1 = key frame (for AVC, a seekable frame)
+    //     2 = inter frame (for AVC, a non-seekable frame)
+    //     3 = disposable inter frame (H.263 only)
+    //     4 = generated key frame (reserved for server use only)
+    //     5 = video info/command frame
+    class SrsCodecVideoAVCFrame
+    {
+        // set to the zero to reserved, for array map.
+        public final static int Reserved = 0;
+        public final static int Reserved1 = 6;
+
+        public final static int KeyFrame                     = 1;
+        public final static int InterFrame                 = 2;
+        public final static int DisposableInterFrame         = 3;
+        public final static int GeneratedKeyFrame            = 4;
+        public final static int VideoInfoFrame                = 5;
+    }
+
+    // AVCPacketType IF CodecID == 7 UI8
+    // The following values are defined:
+    //     0 = AVC sequence header
+    //     1 = AVC NALU
+    //     2 = AVC end of sequence (lower level NALU sequence ender is
+    //         not required or supported)
+    class SrsCodecVideoAVCType
+    {
+        // set to the max value to reserved, for array map.
+        public final static int Reserved                    = 3;
+
+        public final static int SequenceHeader                 = 0;
+        public final static int NALU                         = 1;
+        public final static int SequenceHeaderEOF             = 2;
+    }
+
+    /**
+     * E.4.1 FLV Tag, page 75
+     */
+    class SrsCodecFlvTag
+    {
+        // set to the zero to reserved, for array map.
+        public final static int Reserved = 0;
+
+        // 8 = audio
+        public final static int Audio = 8;
+        // 9 = video
+        public final static int Video = 9;
+        // 18 = script data
+        public final static int Script = 18;
+    };
+
+    // E.4.3.1 VIDEODATA
+    // CodecID UB [4]
+    // Codec Identifier. The following values are defined:
+    //     2 = Sorenson H.263
+    //     3 = Screen video
+    //     4 = On2 VP6
+    //     5 = On2 VP6 with alpha channel
+    //     6 = Screen video version 2
+    //     7 = AVC
+    class SrsCodecVideo
+    {
+        // set to the zero to reserved, for array map.
+        public final static int Reserved                = 0;
+        public final static int Reserved1                = 1;
+        public final static int Reserved2                = 9;
+
+        // for user to disable video, for example, use pure audio hls.
+        public final static int Disabled                = 8;
+
+        public final static int SorensonH263             = 2;
+        public final static int ScreenVideo             = 3;
+        public final static int On2VP6                 = 4;
+        public final static int On2VP6WithAlphaChannel = 5;
+        public final static int ScreenVideoVersion2     = 6;
+        public final static int AVC                     = 7;
+    }
+
+    /**
+     * the aac object type, for RTMP sequence header
+     * for AudioSpecificConfig, @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf, page 33
+     * for audioObjectType, @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf, page 23
+     */
+    class SrsAacObjectType
+    {
+        public final static int Reserved = 0;
+
+        // Table 1.1 – Audio Object Type definition
+        // @see @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf, page 23
+        public final static int AacMain = 1;
+        public final static int AacLC = 2;
+        public final static int AacSSR = 3;
+
+        // AAC HE = LC+SBR
+        public final static int AacHE = 5;
+        // AAC HEv2 = LC+SBR+PS
+        public final static int AacHEV2 = 29;
+    }
+
+    /**
+     * the aac profile, for ADTS(HLS/TS)
+     * @see https://github.com/simple-rtmp-server/srs/issues/310
+     */
+    class SrsAacProfile
+    {
+        public final static int Reserved = 3;
+
+        // @see 7.1 Profiles, aac-iso-13818-7.pdf, page 40
+        public final static int Main = 0;
+        public final static int LC = 1;
+        public final static int SSR = 2;
+    }
+
+    /**
+     * the FLV/RTMP supported audio sample rate.
+     * Sampling rate. The following values are defined:
+     * 0 = 5.5 kHz = 5512 Hz
+     * 1 = 11 kHz = 11025 Hz
+     * 2 = 22 kHz = 22050 Hz
+     * 3 = 44 kHz = 44100 Hz
+     */
+    class SrsCodecAudioSampleRate
+    {
+        // set to the max value to reserved, for array map.
+        public final static int Reserved                 = 4;
+
+        public final static int R5512                     = 0;
+        public final static int R11025                    = 1;
+        public final static int R22050                    = 2;
+        public final static int R44100                    = 3;
+    }
+
+    /**
+     * the type of message to process.
+     */
+    class SrsMessageType {
+        public final static int FLV = 0x100;
+        // to flush the coalesced tags when the time budget exceed.
+        public final static int FLUSH = 0x101;
+        // to switch the url.
+        public final static int URL = 0x102;
+        // the standby connected in background.
+        public final static int STANDBY = 0x103;
+        // the primary connected in background, or failed.
+        public final static int CONNECTED = 0x104;
+    }
+
+    /**
+     * Table 7-1 – NAL unit type codes, syntax element categories, and NAL unit type classes
+     * H.264-AVC-ISO_IEC_14496-10-2012.pdf, page 83.
+     */
+    class SrsAvcNaluType
+    {
+        // Unspecified
+        public final static int Reserved = 0;
+
+        // Coded slice of a non-IDR picture slice_layer_without_partitioning_rbsp( )
+        public final static int NonIDR = 1;
+        // Coded slice data partition A slice_data_partition_a_layer_rbsp( )
+        public final static int DataPartitionA = 2;
+        // Coded slice data partition B slice_data_partition_b_layer_rbsp( )
+        public final static int DataPartitionB = 3;
+        // Coded slice data partition C slice_data_partition_c_layer_rbsp( )
+        public final static int DataPartitionC = 4;
+        // Coded slice of an IDR picture slice_layer_without_partitioning_rbsp( )
+        public final static int IDR = 5;
+        // Supplemental enhancement information (SEI) sei_rbsp( )
+        public final static int SEI = 6;
+        // Sequence parameter set seq_parameter_set_rbsp( )
+        public final static int SPS = 7;
+        // Picture parameter set pic_parameter_set_rbsp( )
+        public final static int PPS = 8;
+        // Access unit delimiter access_unit_delimiter_rbsp( )
+        public final static int AccessUnitDelimiter = 9;
+        // End of sequence end_of_seq_rbsp( )
+        public final static int EOSequence = 10;
+        // End of stream end_of_stream_rbsp( )
+        public final static int EOStream = 11;
+        // Filler data filler_data_rbsp( )
+        public final static int FilterData = 12;
+        // Sequence parameter set extension seq_parameter_set_extension_rbsp( )
+        public final static int SPSExt = 13;
+        // Prefix NAL unit prefix_nal_unit_rbsp( )
+        public final static int PrefixNALU = 14;
+        // Subset sequence parameter set subset_seq_parameter_set_rbsp( )
+        public final static int SubsetSPS = 15;
+        // Coded slice of an auxiliary coded picture without partitioning slice_layer_without_partitioning_rbsp( )
+        public final static int LayerWithoutPartition = 19;
+        // Coded slice extension slice_layer_extension_rbsp( )
+        public final static int CodedSliceExt = 20;
+    }
+
+    /**
+     * utils functions from srs.
+     */
+    public class SrsUtils {
+        private final static String TAG = "SrsMuxer";
+
+        public boolean srs_bytes_equals(byte[] a, byte[]b) {
+            if ((a == null || b == null) && (a != null || b != null)) {
+                return false;
+            }
+
+            if (a.length != b.length) {
+                return false;
+            }
+
+            for (int i = 0; i < a.length && i < b.length; i++) {
+                if (a[i] != b[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        public SrsAnnexbSearch srs_avc_startswith_annexb(ByteBuffer bb, SrsBufferInfo bi) {
+            SrsAnnexbSearch as = new SrsAnnexbSearch();
+            as.match = false;
+
+            int pos = bb.position();
+            while (pos < bi.size - 3) {
+                // not match.
+                if (bb.get(pos) != 0x00 || bb.get(pos + 1) != 0x00) {
+                    break;
+                }
+
+                // match N[00] 00 00 01, where N>=0
+                if (bb.get(pos + 2) == 0x01) {
+                    as.match = true;
+                    as.nb_start_code = pos + 3 - bb.position();
+                    break;
+                }
+
+                pos++;
+            }
+
+            return as;
+        }
+
+        public boolean srs_aac_startswith_adts(ByteBuffer bb, SrsBufferInfo bi)
+        {
+            int pos = bb.position();
+            if (bi.size - pos < 2) {
+                return false;
+            }
+
+            // matched 12bits 0xFFF,
+            // @remark, we must cast the 0xff to char to compare.
+            if (bb.get(pos) != (byte)0xff || (byte)(bb.get(pos + 1) & 0xf0) != (byte)0xf0) {
+                return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * demux the adts header at the position of bb, the position is not changed.
+         * @return the codec of frame, where the frame_length includes the header,
+         *      or null if not adts or not enough bytes.
+         */
+        public SrsRawAacStreamCodec srs_aac_adts_demux(ByteBuffer bb, SrsBufferInfo bi)
+        {
+            if (!srs_aac_startswith_adts(bb, bi)) {
+                return null;
+            }
+
+            // 6.2 Audio Data Transport Stream, ADTS, aac-iso-13818-7.pdf, page 26
+            // the fixed header 28bits and the variable header 28bits.
+            int pos = bb.position();
+            if (bi.size - pos < 7) {
+                return null;
+            }
+
+            SrsRawAacStreamCodec codec = new SrsRawAacStreamCodec();
+            // syncword 12bits, ID 1bit, layer 2bits, protection_absent 1bit
+            codec.protection_absent = (byte)(bb.get(pos + 1) & 0x01);
+            // profile 2bits, sampling_frequency_index 4bits, private_bit 1bit, channel_configuration 3bits,
+            // original_copy 1bit, home 1bit, copyright_id 2bits, frame_length 13bits.
+            int profile = (bb.get(pos + 2) >> 6) & 0x03;
+            codec.aac_object = srs_codec_aac_ts2rtmp(profile);
+            codec.sampling_frequency_index = (byte)((bb.get(pos + 2) >> 2) & 0x0f);
+            codec.channel_configuration = (byte)(((bb.get(pos + 2) & 0x01) << 2) | ((bb.get(pos + 3) >> 6) & 0x03));
+            codec.frame_length = (short)(((bb.get(pos + 3) & 0x03) << 11) | ((bb.get(pos + 4) & 0xff) << 3) | ((bb.get(pos + 5) >> 5) & 0x07));
+
+            // the flv audio header, 10 for AAC, always 44kHz, 16-bit samples.
+            codec.sound_format = 10;
+            codec.sound_rate = SrsCodecAudioSampleRate.R44100;
+            codec.sound_size = 1;
+            codec.sound_type = (byte)((codec.channel_configuration == 2) ? 1 : 0);
+            codec.aac_packet_type = 1;
+            return codec;
+        }
+
+        public int srs_codec_aac_ts2rtmp(int profile)
+        {
+            switch (profile) {
+                case SrsAacProfile.Main: return SrsAacObjectType.AacMain;
+                case SrsAacProfile.LC: return SrsAacObjectType.AacLC;
+                case SrsAacProfile.SSR: return SrsAacObjectType.AacSSR;
+                default: return SrsAacObjectType.Reserved;
+            }
+        }
+
+        public int srs_codec_aac_rtmp2ts(int object_type)
+        {
+            switch (object_type) {
+                case SrsAacObjectType.AacMain: return SrsAacProfile.Main;
+                case SrsAacObjectType.AacHE:
+                case SrsAacObjectType.AacHEV2:
+                case SrsAacObjectType.AacLC: return SrsAacProfile.LC;
+                case SrsAacObjectType.AacSSR: return SrsAacProfile.SSR;
+                default: return SrsAacProfile.Reserved;
+            }
+        }
+    }
+
+    /**
+     * the search result for annexb.
+     */
+    class SrsAnnexbSearch {
+        public int nb_start_code = 0;
+        public boolean match = false;
+    }
+
+    /**
+     * the demuxed tag frame.
+     */
+    class SrsFlvFrameBytes {
+        public ByteBuffer frame;
+        public int size;
+        // for zero copy, the data in segments refers to the codec buffer, the frame is null.
+        public ByteBuffer[] segments;
+    }
+
+    /**
+     * the muxed flv frame.
+     */
+    class SrsFlvFrame {
+        // the tag bytes.
+        public SrsFlvFrameBytes tag;
+        // the codec type for audio/aac and video/avc for instance.
+        public int avc_aac_type;
+        // the frame type, keyframe or not.
+        public int frame_type;
+        // the tag type, audio, video or data.
+        public int type;
+        // the dts in ms, tbn is 1000.
+        public int dts;
+        // for zero copy, to release the codec buffer of segments.
+        public OnBufferReleaseListener release_listener;
+        public int release_index;
+        // written to the stream without copy, released when the chunk is sent.
+        public boolean gathered;
+        // in the interleaving cache, and the account which holds the bytes, @see holdFrame
+        public boolean cached;
+        public SrsMemoryBudget.Account account;
+
+        /**
+         * copy the segments which refer to the codec buffer, then release the buffer.
+         */
+        public void copy() {
+            if (tag.segments == null) {
+                return;
+            }
+
+            byte[] data = new byte[tag.size];
+            int p = 0;
+            for (int i = 0; i < tag.segments.length; i++) {
+                ByteBuffer bb = tag.segments[i].duplicate();
+                int n = bb.remaining();
+                bb.get(data, p, n);
+                p += n;
+            }
+            tag.frame = ByteBuffer.wrap(data);
+            tag.segments = null;
+            release();
+        }
+
+        /**
+         * a copy at the dts, which shares the tag bytes, for example, to send the sequence
+         * header cached at the dts of keyframe, while it is queued or cached at its own dts.
+         * @remark the frame must not retain the codec buffer.
+         */
+        public SrsFlvFrame copyAt(int v) {
+            SrsFlvFrame frame = new SrsFlvFrame();
+            frame.tag = tag;
+            frame.avc_aac_type = avc_aac_type;
+            frame.frame_type = frame_type;
+            frame.type = type;
+            frame.dts = v;
+            return frame;
+        }
+
+        /**
+         * release the retained codec buffer when sent or dropped, only once.
+         */
+        public void release() {
+            OnBufferReleaseListener l = release_listener;
+            if (l == null) {
+                return;
+            }
+            release_listener = null;
+            nb_retained.decrementAndGet();
+            l.onBufferRelease(release_index);
+        }
+
+        public boolean is_keyframe() {
+            return type == SrsCodecFlvTag.Video && frame_type == SrsCodecVideoAVCFrame.KeyFrame;
+        }
+
+        public boolean is_video() {
+            return type == SrsCodecFlvTag.Video;
+        }
+
+        public boolean is_sequence_header() {
+            return (type == SrsCodecFlvTag.Video && avc_aac_type == SrsCodecVideoAVCType.SequenceHeader)
+                || (type == SrsCodecFlvTag.Audio && avc_aac_type == 0);
+        }
+
+        public boolean is_audio() {
+            return type == SrsCodecFlvTag.Audio;
+        }
+    }
+
+    /**
+     * the raw h.264 stream, in annexb.
+     */
+    class SrsRawH264Stream {
+        private SrsUtils utils;
+        private final static String TAG = "SrsMuxer";
+
+        public SrsRawH264Stream() {
+            utils = new SrsUtils();
+        }
+
+        public boolean is_sps(SrsFlvFrameBytes frame) {
+            if (frame.size < 1) {
+                return false;
+            }
+
+            // 5bits, 7.3.1 NAL unit syntax,
+            // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
+            //  7: SPS, 8: PPS, 5: I Frame, 1: P Frame
+            int nal_unit_type = (int)(frame.frame.get(0) & 0x1f);
+
+            return nal_unit_type == SrsAvcNaluType.SPS;
+        }
+
+        public boolean is_pps(SrsFlvFrameBytes frame) {
+            if (frame.size < 1) {
+                return false;
+            }
+
+            // 5bits, 7.3.1 NAL unit syntax,
+            // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
+            //  7: SPS, 8: PPS, 5: I Frame, 1: P Frame
+            int nal_unit_type = (int)(frame.frame.get(0) & 0x1f);
+
+            return nal_unit_type == SrsAvcNaluType.PPS;
+        }
+
+        public SrsFlvFrameBytes mux_ibp_frame(SrsFlvFrameBytes frame) {
+            SrsFlvFrameBytes nalu_header = new SrsFlvFrameBytes();
+            nalu_header.size = 4;
+            nalu_header.frame = ByteBuffer.allocate(nalu_header.size);
+
+            // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
+            // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size
+            int NAL_unit_length = frame.size;
+
+            // mux the avc NALU in "ISO Base Media File Format"
+            // from H.264-AVC-ISO_IEC_14496-15.pdf, page 20
+            // NALUnitLength
+            nalu_header.frame.putInt(NAL_unit_length);
+
+            // reset the buffer.
+            nalu_header.frame.rewind();
+
+            //SrsLog.i(TAG, String.format("mux ibp frame %dB", frame.size));
+            //SrsHttpFlv.srs_print_bytes(TAG, nalu_header.frame, 16);
+
+            return nalu_header;
+        }
+
+        public void mux_sequence_header(byte[] sps, byte[] pps, int dts, int pts, ArrayList<SrsFlvFrameBytes> frames) {
+            // 5bytes sps/pps header:
+            //      configurationVersion, AVCProfileIndication, profile_compatibility,
+            //      AVCLevelIndication, lengthSizeMinusOne
+            // 3bytes size of sps:
+            //      numOfSequenceParameterSets, sequenceParameterSetLength(2B)
+            // Nbytes of sps.
+            //      sequenceParameterSetNALUnit
+            // 3bytes size of pps:
+            //      numOfPictureParameterSets, pictureParameterSetLength
+            // Nbytes of pps:
+            //      pictureParameterSetNALUnit
+
+            // decode the SPS:
+            // @see: 7.3.2.1.1, H.264-AVC-ISO_IEC_14496-10-2012.pdf, page 62
+            if (true) {
+                SrsFlvFrameBytes hdr = new SrsFlvFrameBytes();
+                hdr.size = 5;
+                hdr.frame = ByteBuffer.allocate(hdr.size);
+
+                // @see: Annex A Profiles and levels, H.264-AVC-ISO_IEC_14496-10.pdf, page 205
+                //      Baseline profile profile_idc is 66(0x42).
+                //      Main profile profile_idc is 77(0x4d).
+                //      Extended profile profile_idc is 88(0x58).
+                byte profile_idc = sps[1];
+                //u_int8_t constraint_set = frame[2];
+                byte level_idc = sps[3];
+
+                // generate the sps/pps header
+                // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
+                // configurationVersion
+                hdr.frame.put((byte)0x01);
+                // AVCProfileIndication
+                hdr.frame.put(profile_idc);
+                // profile_compatibility
+                hdr.frame.put((byte)0x00);
+                // AVCLevelIndication
+                hdr.frame.put(level_idc);
+                // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size,
+                // so we always set it to 0x03.
+                hdr.frame.put((byte)0x03);
+
+                // reset the buffer.
+                hdr.frame.rewind();
+                frames.add(hdr);
+            }
+
+            // sps
+            if (true) {
+                SrsFlvFrameBytes sps_hdr = new SrsFlvFrameBytes();
+                sps_hdr.size = 3;
+                sps_hdr.frame = ByteBuffer.allocate(sps_hdr.size);
+
+                // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
+                // numOfSequenceParameterSets, always 1
+                sps_hdr.frame.put((byte) 0x01);
+                // sequenceParameterSetLength
+                sps_hdr.frame.putShort((short) sps.length);
+
+                sps_hdr.frame.rewind();
+                frames.add(sps_hdr);
+
+                // sequenceParameterSetNALUnit
+                SrsFlvFrameBytes sps_bb = new SrsFlvFrameBytes();
+                sps_bb.size = sps.length;
+                sps_bb.frame = ByteBuffer.wrap(sps);
+                frames.add(sps_bb);
+            }
+
+            // pps
+            if (true) {
+                SrsFlvFrameBytes pps_hdr = new SrsFlvFrameBytes();
+                pps_hdr.size = 3;
+                pps_hdr.frame = ByteBuffer.allocate(pps_hdr.size);
+
+                // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
+                // numOfPictureParameterSets, always 1
+                pps_hdr.frame.put((byte) 0x01);
+                // pictureParameterSetLength
+                pps_hdr.frame.putShort((short) pps.length);
+
+                pps_hdr.frame.rewind();
+                frames.add(pps_hdr);
+
+                // pictureParameterSetNALUnit
+                SrsFlvFrameBytes pps_bb = new SrsFlvFrameBytes();
+                pps_bb.size = pps.length;
+                pps_bb.frame = ByteBuffer.wrap(pps);
+                frames.add(pps_bb);
+            }
+        }
+
+        /**
+         * mux the frames to flv tag without copy, the 5bytes header in a segment,
+         * then each frame is a segment which refers to its buffer.
+         */
+        public SrsFlvFrameBytes mux_avc2flv_segments(ArrayList<SrsFlvFrameBytes> frames, int frame_type, int avc_packet_type, int dts, int pts) {
+            SrsFlvFrameBytes flv_tag = new SrsFlvFrameBytes();
+            flv_tag.segments = new ByteBuffer[frames.size() + 1];
+
+            // FrameType | CodecID, AVCPacketType, CompositionTime, @see mux_avc2flv
+            ByteBuffer header = ByteBuffer.allocate(5);
+            header.put((byte)((frame_type << 4) | SrsCodecVideo.AVC));
+            header.put((byte)avc_packet_type);
+            int cts = pts - dts;
+            header.put((byte)(cts >> 16));
+            header.put((byte)(cts >> 8));
+            header.put((byte)cts);
+            header.flip();
+            flv_tag.segments[0] = header;
+            flv_tag.size = 5;
+
+            for (int i = 0; i < frames.size(); i++) {
+                SrsFlvFrameBytes frame = frames.get(i);
+                flv_tag.segments[i + 1] = nalu_view(frame);
+                flv_tag.size += frame.size;
+            }
+
+            return flv_tag;
+        }
+
+        // the view of the frame bytes, without copy.
+        private ByteBuffer nalu_view(SrsFlvFrameBytes frame) {
+            ByteBuffer bb = frame.frame.duplicate();
+            bb.limit(bb.position() + frame.size);
+            return bb.slice();
+        }
+
+        public SrsFlvFrameBytes mux_avc2flv(ArrayList<SrsFlvFrameBytes> frames, int frame_type, int avc_packet_type, int dts, int pts) {
+            SrsFlvFrameBytes flv_tag = new SrsFlvFrameBytes();
+
+            // for h264 in RTMP video payload, there is 5bytes header:
+            //      1bytes, FrameType | CodecID
+            //      1bytes, AVCPacketType
+            //      3bytes, CompositionTime, the cts.
+            // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
+            flv_tag.size = 5;
+            for (int i = 0; i < frames.size(); i++) {
+                SrsFlvFrameBytes frame = frames.get(i);
+                flv_tag.size += frame.size;
+            }
+
+            flv_tag.frame = ByteBuffer.allocate(flv_tag.size);
+
+            // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
+            // Frame Type, Type of video frame.
+            // CodecID, Codec Identifier.
+            // set the rtmp header
+            flv_tag.frame.put((byte)((frame_type << 4) | SrsCodecVideo.AVC));
+
+            // AVCPacketType
+            flv_tag.frame.put((byte)avc_packet_type);
+
+            // CompositionTime
+            // pts = dts + cts, or
+            // cts = pts - dts.
+            // where cts is the header in rtmp video packet payload header.
+            int cts = pts - dts;
+            flv_tag.frame.put((byte)(cts >> 16));
+            flv_tag.frame.put((byte)(cts >> 8));
+            flv_tag.frame.put((byte)cts);
+
+            // h.264 raw data.
+            for (int i = 0; i < frames.size(); i++) {
+                flv_tag.frame.put(nalu_view(frames.get(i)));
+            }
+
+            // reset the buffer.
+            flv_tag.frame.rewind();
+
+            //SrsLog.i(TAG, String.format("flv tag muxed, %dB", flv_tag.size));
+            //SrsHttpFlv.srs_print_bytes(TAG, flv_tag.frame, 128);
+
+            return flv_tag;
+        }
+
+        public SrsFlvFrameBytes annexb_demux(ByteBuffer bb, SrsBufferInfo bi) throws Exception {
+            SrsFlvFrameBytes tbb = new SrsFlvFrameBytes();
+
+            while (bb.position() < bi.size) {
+                // each frame must prefixed by annexb format.
+                // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
+                SrsAnnexbSearch tbbsc = utils.srs_avc_startswith_annexb(bb, bi);
+                if (!tbbsc.match || tbbsc.nb_start_code < 3) {
+                    SrsLog.e(TAG, "annexb not match.");
+                    SrsHttpFlv.srs_print_bytes(TAG, bb, 16);
+                    throw new Exception(String.format("annexb not match for %dB, pos=%d", bi.size, bb.position()));
+                }
+
+                // the start codes.
+                ByteBuffer tbbs = bb.slice();
+                for (int i = 0; i < tbbsc.nb_start_code; i++) {
+                    bb.get();
+                }
+
+                // find out the frame size.
+                tbb.frame = bb.slice();
+                int pos = bb.position();
+                while (bb.position() < bi.size) {
+                    SrsAnnexbSearch bsc = utils.srs_avc_startswith_annexb(bb, bi);
+                    if (bsc.match) {
+                        break;
+                    }
+                    bb.get();
+                }
+
+                tbb.size = bb.position() - pos;
+                if (bb.position() < bi.size) {
+                    SrsLog.i(TAG, String.format("annexb multiple match ok, pts=%d", bi.presentationTimeUs / 1000));
+                    SrsHttpFlv.srs_print_bytes(TAG, tbbs, 16);
+                    SrsHttpFlv.srs_print_bytes(TAG, bb.slice(), 16);
+                }
+                //SrsLog.i(TAG, String.format("annexb match %d bytes", tbb.size));
+                break;
+            }
+
+            return tbb;
+        }
+    }
+
+    class SrsRawAacStreamCodec {
+        public byte protection_absent;
+        // SrsAacObjectType
+        public int aac_object;
+        public byte sampling_frequency_index;
+        public byte channel_configuration;
+        public short frame_length;
+
+        public byte sound_format;
+        public byte sound_rate;
+        public byte sound_size;
+        public byte sound_type;
+        // 0 for sh; 1 for raw data.
+        public byte aac_packet_type;
+
+        public byte[] frame;
+    }
+
+    /**
+     * remux the annexb to flv tags.
+     */
+    class SrsFlv {
+        private int achannel;
+        private int asample_rate;
+
+        private SrsUtils utils;
+
+        private SrsRawH264Stream avc;
+        private byte[] h264_sps;
+        private boolean h264_sps_changed;
+        private byte[] h264_pps;
+        private boolean h264_pps_changed;
+        private boolean h264_sps_pps_sent;
+
+        private byte[] aac_specific_config;
+
+        // for zero copy, the codec buffer of the sample to write.
+        private OnBufferReleaseListener retain_listener;
+        private int retain_index;
+        private boolean retained;
+
+        public SrsFlv() {
+            utils = new SrsUtils();
+
+            avc = new SrsRawH264Stream();
+            h264_sps = new byte[0];
+            h264_sps_changed = false;
+            h264_pps = new byte[0];
+            h264_pps_changed = false;
+            h264_sps_pps_sent = false;
+
+            aac_specific_config = null;
+        }
+
+        /**
+         * wait for the codec config of the new encoder, and send it as sequence header.
+         */
+        public void resetSequenceHeader(boolean video) {
+            if (video) {
+                h264_sps = new byte[0];
+                h264_pps = new byte[0];
+                h264_sps_pps_sent = false;
+            } else {
+                aac_specific_config = null;
+            }
+        }
+
+        /**
+         * the next video sample is muxed without copy, and retained by the frame.
+         */
+        public void retain(int index, OnBufferReleaseListener listener) {
+            retain_index = index;
+            retain_listener = listener;
+            retained = false;
+        }
+
+        /**
+         * @return whether the sample is retained by a frame.
+         */
+        public boolean unretain() {
+            retain_listener = null;
+            return retained;
+        }
+
+        public void setAudioTrack(int sample_rate, int channels) {
+            achannel = channels;
+            asample_rate = sample_rate;
+        }
+
+        public void writeAudioSample(final ByteBuffer bb, SrsBufferInfo bi) throws Exception {
+            int pts = (int)(bi.presentationTimeUs / 1000);
+            int dts = (int)pts;
+
+            byte[] frame = new byte[bi.size + 2];
+            byte aac_packet_type = 1; // 1 = AAC raw
+            if (aac_specific_config == null) {
+                frame = new byte[4];
+
+                // @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf
+                // AudioSpecificConfig (), page 33
+                // 1.6.2.1 AudioSpecificConfig
+                // audioObjectType; 5 bslbf
+                byte ch = (byte)(bb.get(0) & 0xf8);
+                // 3bits left.
+
+                // samplingFrequencyIndex; 4 bslbf
+                byte samplingFrequencyIndex = 0x04;
+                if (asample_rate == SrsCodecAudioSampleRate.R22050) {
+                    samplingFrequencyIndex = 0x07;
+                } else if (asample_rate == SrsCodecAudioSampleRate.R11025) {
+                    samplingFrequencyIndex = 0x0a;
+                }
+                // use the index of codec config when present, for example, 48000 of the adts file.
+                if (bi.size >= 2) {
+                    samplingFrequencyIndex = (byte)(((bb.get(0) & 0x07) << 1) | ((bb.get(1) >> 7) & 0x01));
+                }
+                ch |= (samplingFrequencyIndex >> 1) & 0x07;
+                frame[2] = ch;
+
+                ch = (byte)((samplingFrequencyIndex << 7) & 0x80);
+                // 7bits left.
+
+                // channelConfiguration; 4 bslbf
+                byte channelConfiguration = 1;
+                if (achannel == 2) {
+                    channelConfiguration = 2;
+                }
+                ch |= (channelConfiguration << 3) & 0x78;
+                // 3bits left.
+
+                // GASpecificConfig(), page 451
+                // 4.4.1 Decoder configuration (GASpecificConfig)
+                // frameLengthFlag; 1 bslbf
+                // dependsOnCoreCoder; 1 bslbf
+                // extensionFlag; 1 bslbf
+                frame[3] = ch;
+
+                aac_specific_config = frame;
+                aac_packet_type = 0; // 0 = AAC sequence header
+            } else {
+                bb.get(frame, 2, frame.length - 2);
+            }
+
+            byte sound_format = 10; // AAC
+            byte sound_type = 0; // 0 = Mono sound
+            if (achannel == 2) {
+                sound_type = 1; // 1 = Stereo sound
+            }
+            byte sound_size = 1; // 1 = 16-bit samples
+            byte sound_rate = 3; // 44100, 22050, 11025
+            if (asample_rate == 22050) {
+                sound_rate = 2;
+            } else if (asample_rate == 11025) {
+                sound_rate = 1;
+            }
+
+            // for audio frame, there is 1 or 2 bytes header:
+            //      1bytes, SoundFormat|SoundRate|SoundSize|SoundType
+            //      1bytes, AACPacketType for SoundFormat == 10, 0 is sequence header.
+            byte audio_header = (byte)(sound_type & 0x01);
+            audio_header |= (sound_size << 1) & 0x02;
+            audio_header |= (sound_rate << 2) & 0x0c;
+            audio_header |= (sound_format << 4) & 0xf0;
+
+            frame[0] = audio_header;
+            frame[1] = aac_packet_type;
+
+            SrsFlvFrameBytes tag = new SrsFlvFrameBytes();
+            tag.frame = ByteBuffer.wrap(frame);
+            tag.size = frame.length;
+
+            int timestamp = dts;
+            rtmp_write_packet(SrsCodecFlvTag.Audio, timestamp, 0, aac_packet_type, tag);
+        }
+
+        public void writeVideoSample(final ByteBuffer bb, SrsBufferInfo bi) throws Exception {
+            int pts = (int)(bi.presentationTimeUs / 1000);
+            int dts = (int)pts;
+
+            ArrayList<SrsFlvFrameBytes> ibps = new ArrayList<SrsFlvFrameBytes>();
+            int frame_type = SrsCodecVideoAVCFrame.InterFrame;
+            //SrsLog.i(TAG, String.format("video %d/%d bytes, offset=%d, position=%d, pts=%d", bb.remaining(), bi.size, bi.offset, bb.position(), pts));
+
+            // send each frame.
+            while (bb.position() < bi.size) {
+                SrsFlvFrameBytes frame = avc.annexb_demux(bb, bi);
+
+                // 5bits, 7.3.1 NAL unit syntax,
+                // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
+                //  7: SPS, 8: PPS, 5: I Frame, 1: P Frame
+                int nal_unit_type = (int)(frame.frame.get(0) & 0x1f);
+                if (nal_unit_type == SrsAvcNaluType.SPS || nal_unit_type == SrsAvcNaluType.PPS) {
+                    SrsLog.i(TAG, String.format("annexb demux %dB, pts=%d, frame=%dB, nalu=%d", bi.size, pts, frame.size, nal_unit_type));
+                }
+
+                // for IDR frame, the frame is keyframe.
+                if (nal_unit_type == SrsAvcNaluType.IDR) {
+                    frame_type = SrsCodecVideoAVCFrame.KeyFrame;
+                }
+
+                // ignore the nalu type aud(9)
+                if (nal_unit_type == SrsAvcNaluType.AccessUnitDelimiter) {
+                    continue;
+                }
+
+                // for sps
+                if (avc.is_sps(frame)) {
+                    byte[] sps = new byte[frame.size];
+                    frame.frame.get(sps);
+
+                    if (utils.srs_bytes_equals(h264_sps, sps)) {
+                        continue;
+                    }
+                    h264_sps_changed = true;
+                    h264_sps = sps;
+                    continue;
+                }
+
+                // for pps
+                if (avc.is_pps(frame)) {
+                    byte[] pps = new byte[frame.size];
+                    frame.frame.get(pps);
+
+                    if (utils.srs_bytes_equals(h264_pps, pps)) {
+                        continue;
+                    }
+                    h264_pps_changed = true;
+                    h264_pps = pps;
+                    continue;
+                }
+
+                // ibp frame.
+                SrsFlvFrameBytes nalu_header = avc.mux_ibp_frame(frame);
+                ibps.add(nalu_header);
+                ibps.add(frame);
+            }
+
+            // the latency SEI before the slices of access unit.
+            if (sei_epoch_us >= 0 && !ibps.isEmpty()) {
+                SrsFlvFrameBytes sei = new SrsFlvFrameBytes();
+                byte[] nalu = SrsLatencySei.build((sei_epoch_us + bi.presentationTimeUs) / 1000, sei_sequence++);
+                sei.frame = ByteBuffer.wrap(nalu);
+                sei.size = nalu.length;
+                ibps.add(0, sei);
+                ibps.add(0, avc.mux_ibp_frame(sei));
+            }
+
+            write_h264_sps_pps(dts, pts);
+
+            write_h264_ipb_frame(ibps, frame_type, dts, pts);
+        }
+
+        private void write_h264_sps_pps(int dts, int pts) throws IOException {
+            // when sps or pps changed, update the sequence header,
+            // for the pps maybe not changed while sps changed.
+            // so, we must check when each video ts message frame parsed.
+            if (h264_sps_pps_sent && !h264_sps_changed && !h264_pps_changed) {
+                return;
+            }
+
+            // when not got sps/pps, wait.
+            if (h264_pps.length <= 0 || h264_sps.length <= 0) {
+                return;
+            }
+
+            // h264 raw to h264 packet.
+            ArrayList<SrsFlvFrameBytes> frames = new ArrayList<SrsFlvFrameBytes>();
+            avc.mux_sequence_header(h264_sps, h264_pps, dts, pts, frames);
+
+            // h264 packet to flv packet.
+            int frame_type = SrsCodecVideoAVCFrame.KeyFrame;
+            int avc_packet_type = SrsCodecVideoAVCType.SequenceHeader;
+            SrsFlvFrameBytes flv_tag = avc.mux_avc2flv(frames, frame_type, avc_packet_type, dts, pts);
+
+            // the timestamp in rtmp message header is dts.
+            int timestamp = dts;
+            rtmp_write_packet(SrsCodecFlvTag.Video, timestamp, frame_type, avc_packet_type, flv_tag);
+
+            // reset sps and pps.
+            h264_sps_changed = false;
+            h264_pps_changed = false;
+            h264_sps_pps_sent = true;
+            SrsLog.i(TAG, String.format("flv: h264 sps/pps sent, sps=%dB, pps=%dB", h264_sps.length, h264_pps.length));
+        }
+
+        private void write_h264_ipb_frame(ArrayList<SrsFlvFrameBytes> ibps, int frame_type, int dts, int pts) throws IOException {
+            // when sps or pps not sent, ignore the packet.
+            // @see https://github.com/simple-rtmp-server/srs/issues/203
+            if (!h264_sps_pps_sent) {
+                return;
+            }
+
+            int avc_packet_type = SrsCodecVideoAVCType.NALU;
+            SrsFlvFrameBytes flv_tag;
+            if (retain_listener != null) {
+                flv_tag = avc.mux_avc2flv_segments(ibps, frame_type, avc_packet_type, dts, pts);
+            } else {
+                flv_tag = avc.mux_avc2flv(ibps, frame_type, avc_packet_type, dts, pts);
+            }
+
+            if (frame_type == SrsCodecVideoAVCFrame.KeyFrame) {
+                //SrsLog.i(TAG, String.format("flv: keyframe %dB, dts=%d", flv_tag.size, dts));
+            }
+
+            // the timestamp in rtmp message header is dts.
+            int timestamp = dts;
+            rtmp_write_packet(SrsCodecFlvTag.Video, timestamp, frame_type, avc_packet_type, flv_tag);
+        }
+
+        private void rtmp_write_packet(int type, int dts, int frame_type, int avc_aac_type, SrsFlvFrameBytes tag) throws IOException {
+            SrsFlvFrame frame = new SrsFlvFrame();
+            frame.tag = tag;
+            frame.type = type;
+            frame.dts = dts;
+            frame.frame_type = frame_type;
+            frame.avc_aac_type = avc_aac_type;
+            if (tag.segments != null) {
+                frame.release_listener = retain_listener;
+                frame.release_index = retain_index;
+                nb_retained.incrementAndGet();
+                retain_listener = null;
+                retained = true;
+            }
+
+            // for offline remux, write in the caller thread.
+            if (offline != null) {
+                if (remuxer != null) {
+                    remuxer.write(offline, frame);
+                } else {
+                    writeFlvTag(offline, frame);
+                }
+                return;
+            }
+
+            // use worker or loop to send the message, which is ready when muxer started.
+            if (worker == null && loop == null) {
+                SrsLog.w(TAG, "flv: drop frame for worker not ready.");
+                frame.release();
+                return;
+            }
+
+            if (!reserveQueue(frame)) {
+                frame.release();
+                return;
+            }
+
+            nb_pending.incrementAndGet();
+            SrsTracer.instant(SrsTracer.QUEUE_PUT, dts);
+            sendMessage(SrsMessageType.FLV, frame);
+            //SrsLog.i(TAG, String.format("flv: enqueue frame type=%d, dts=%d, size=%dB", frame.type, frame.dts, frame.tag.size));
+        }
+    }
+}
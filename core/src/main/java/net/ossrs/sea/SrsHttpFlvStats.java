@@ -0,0 +1,171 @@
+package net.ossrs.sea;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * the statistic of the SrsHttpFlv, updated by worker and read by any thread.
+ */
+public class SrsHttpFlvStats {
+    // the writes to socket, each is a HTTP chunk.
+    private AtomicLong nb_writes;
+    private AtomicLong nb_write_bytes;
+
+    // the TLS handshakes, and the resumed ones.
+    private AtomicLong nb_handshakes;
+    private AtomicLong nb_resumed;
+    private AtomicLong handshake_ms;
+    private AtomicLong resumed_ms;
+    private volatile long last_handshake_ms;
+
+    // the connections established to server.
+    private AtomicLong nb_reconnects;
+    // the output congested, the frames are dropped until keyframe.
+    private AtomicLong nb_congestions;
+    // the frames not sent, when disconnected, congested or waiting for keyframe.
+    private AtomicLong nb_drops;
+    // switched to the standby, when the primary failed.
+    private AtomicLong nb_failovers;
+
+    public SrsHttpFlvStats() {
+        nb_writes = new AtomicLong(0);
+        nb_write_bytes = new AtomicLong(0);
+
+        nb_handshakes = new AtomicLong(0);
+        nb_resumed = new AtomicLong(0);
+        handshake_ms = new AtomicLong(0);
+        resumed_ms = new AtomicLong(0);
+
+        nb_reconnects = new AtomicLong(0);
+        nb_congestions = new AtomicLong(0);
+        nb_drops = new AtomicLong(0);
+        nb_failovers = new AtomicLong(0);
+    }
+
+    /**
+     * when connected to server.
+     */
+    public void onReconnect() {
+        nb_reconnects.incrementAndGet();
+    }
+
+    public long getReconnects() {
+        return nb_reconnects.get();
+    }
+
+    /**
+     * when the output congested, @see SrsHttpFlv.setEventLoop
+     */
+    public void onCongested() {
+        nb_congestions.incrementAndGet();
+    }
+
+    public long getCongestions() {
+        return nb_congestions.get();
+    }
+
+    /**
+     * when the frame is not sent, the spooled is also counted.
+     */
+    public void onDrop() {
+        nb_drops.incrementAndGet();
+    }
+
+    public long getDrops() {
+        return nb_drops.get();
+    }
+
+    /**
+     * when switched to the standby, @see SrsHttpFlv.setBackupUrl
+     */
+    public void onFailover() {
+        nb_failovers.incrementAndGet();
+    }
+
+    public long getFailovers() {
+        return nb_failovers.get();
+    }
+
+    /**
+     * when write bytes to socket in one syscall.
+     */
+    public void onWrite(int bytes) {
+        nb_writes.incrementAndGet();
+        nb_write_bytes.addAndGet(bytes);
+    }
+
+    /**
+     * when TLS handshake done.
+     * @param ms the time in ms of handshake.
+     * @param resumed whether the session is resumed.
+     */
+    public void onHandshake(long ms, boolean resumed) {
+        last_handshake_ms = ms;
+        if (resumed) {
+            nb_resumed.incrementAndGet();
+            resumed_ms.addAndGet(ms);
+        } else {
+            nb_handshakes.incrementAndGet();
+            handshake_ms.addAndGet(ms);
+        }
+    }
+
+    /**
+     * get the number of full TLS handshakes.
+     */
+    public long getFullHandshakes() {
+        return nb_handshakes.get();
+    }
+
+    /**
+     * get the number of resumed TLS handshakes.
+     */
+    public long getResumedHandshakes() {
+        return nb_resumed.get();
+    }
+
+    /**
+     * get the average time in ms of full TLS handshake.
+     */
+    public long getAverageHandshakeTime() {
+        long v = nb_handshakes.get();
+        return (v <= 0) ? 0 : handshake_ms.get() / v;
+    }
+
+    /**
+     * get the average time in ms of resumed TLS handshake.
+     */
+    public long getAverageResumedTime() {
+        long v = nb_resumed.get();
+        return (v <= 0) ? 0 : resumed_ms.get() / v;
+    }
+
+    public long getLastHandshakeTime() {
+        return last_handshake_ms;
+    }
+
+    public long getWrites() {
+        return nb_writes.get();
+    }
+
+    public long getWriteBytes() {
+        return nb_write_bytes.get();
+    }
+
+    /**
+     * get the average bytes per write syscall.
+     */
+    public long getAverageWriteBytes() {
+        long writes = nb_writes.get();
+        if (writes <= 0) {
+            return 0;
+        }
+        return nb_write_bytes.get() / writes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("reconnects=%d, failovers=%d, congestions=%d, drops=%d, writes=%d, bytes=%d, avg=%dB/write, handshakes=%d/%dms, resumed=%d/%dms",
+            getReconnects(), getFailovers(), getCongestions(), getDrops(), getWrites(), getWriteBytes(), getAverageWriteBytes(),
+            getFullHandshakes(), getAverageHandshakeTime(), getResumedHandshakes(), getAverageResumedTime());
+    }
+}
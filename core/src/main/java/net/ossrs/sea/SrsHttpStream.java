@@ -0,0 +1,687 @@
+package net.ossrs.sea;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * to POST stream to SRS over HTTP in chunked encoding.
+ * @remark we use socket directly for the HttpURLConnection does not expose it,
+ *      so we can set the socket options, for example, the TCP_NODELAY.
+ * the data is buffered until flush, each flush is sent as a HTTP chunk in one write.
+ * for https, the chunk never exceeds a TLS record, so the records are aligned to the
+ * chunks, which are flushed at the tag boundaries by SrsHttpFlv.
+ * the direct buffers, for example, the codec output, are sent in the chunk by a gathering
+ * write of the socket channel without copy, @see writeGathering
+ * for a file:// url, the data is written to the local file without HTTP, as the local sink
+ * to replay, @see SrsSampleReplayer
+ * in an event loop, the socket is non-blocking and each chunk is queued to the connection
+ * of loop, which never blocks the loop, @see setEventLoop
+ */
+public class SrsHttpStream extends OutputStream {
+    private URL url;
+    // the address of host, resolved before connect in the event loop.
+    private InetSocketAddress address;
+    private Socket socket;
+    private OutputStream os;
+    // the channel of socket for gathering write, null for TLS or file.
+    private SocketChannel channel;
+    // in an event loop, the chunks are queued to the connection.
+    private SrsEventLoop loop;
+    private SrsEventLoop.Connection connection;
+    private SrsMemoryBudget.Account account;
+
+    // the data of current chunk, the head is reserved for the chunk size.
+    private byte[] buf;
+    private int nb_buf;
+    // for gathering write, the current chunk is the segments of data and the buffers not copied,
+    // the data before mark is in the segments, and the done of buffers run when sent.
+    private ArrayList<ByteBuffer> gathered;
+    private ArrayList<Runnable> gathered_done;
+    private int nb_gathered;
+    private int gathered_mark;
+    // the max bytes of chunk data.
+    private int max_chunk;
+    private boolean closed;
+    // the response is read, EOF or error when the server closed the connection.
+    private volatile boolean eof;
+    // the status code of response, 0 when no response yet.
+    private volatile int status;
+
+    // for https, the factory should be reused to resume the TLS session.
+    private SSLSocketFactory ssl_factory;
+    private HostnameVerifier hostname_verifier;
+    private long handshake_ms;
+    private boolean resumed;
+
+    private boolean nodelay;
+    private int timeout_ms;
+    private SrsHttpFlvStats stats;
+
+    // the reserved bytes for the chunk size, 8 hex digits and CRLF.
+    private final static int CHUNK_HEADER = 10;
+    private final static byte[] CRLF = {'\r', '\n'};
+    private final static int DEFAULT_BUFFER = 64 * 1024;
+    // the max plaintext of a TLS record, 2^14 bytes.
+    public final static int TLS_MAX_RECORD = 16 * 1024;
+    private final static String TAG = "SrsHttpStream";
+
+    /**
+     * constructor.
+     * @param u the http url to post to.
+     */
+    public SrsHttpStream(URL u) {
+        url = u;
+        buf = new byte[CHUNK_HEADER + DEFAULT_BUFFER + 2];
+        nb_buf = 0;
+        gathered = new ArrayList<ByteBuffer>();
+        gathered_done = new ArrayList<Runnable>();
+        max_chunk = DEFAULT_BUFFER;
+        timeout_ms = 3000;
+    }
+
+    /**
+     * whether disable the Nagle's algorithm, must be set before connect.
+     */
+    public void setTcpNoDelay(boolean v) {
+        nodelay = v;
+    }
+
+    /**
+     * set the factory to create the TLS socket for https, must be set before connect.
+     * @remark use the same factory for reconnect, for the TLS session is cached by it.
+     */
+    public void setSslSocketFactory(SSLSocketFactory v) {
+        ssl_factory = v;
+    }
+
+    /**
+     * set the verifier of the host name in certificate for https, must be set before connect.
+     * use the default verifier of HttpsURLConnection if not set.
+     * @remark the default verifier of the desktop jvm rejects all hosts, so set it to use https
+     *      on the desktop, for example, the tools.
+     */
+    public void setHostnameVerifier(HostnameVerifier v) {
+        hostname_verifier = v;
+    }
+
+    /**
+     * connect and write in the event loop, must be set before connect,
+     * and the stream must be used in the loop thread.
+     * @remark https is not supported, for the SSLSocket is blocking.
+     * @remark the host name must be resolved out of the loop before connect, @see resolve
+     */
+    public void setEventLoop(SrsEventLoop v) {
+        loop = v;
+    }
+
+    /**
+     * whether the connection queues too many bytes, always false when blocking.
+     */
+    public boolean isCongested() {
+        return connection != null && connection.isCongested();
+    }
+
+    /**
+     * whether the connection is open, false when closed by server, so the session can
+     * switch to others before the next write fails, for example, the idle standby.
+     */
+    public boolean isAlive() {
+        if (closed) {
+            return false;
+        }
+        if (connection != null) {
+            return !connection.isClosed();
+        }
+        return isFile() || (os != null && !eof);
+    }
+
+    /**
+     * get the status code of response, 0 when not responded, for the server responds
+     * when the stream is done, or immediately when error, for example, 403 or 503.
+     */
+    public int getStatus() {
+        if (connection != null) {
+            return connection.getStatus();
+        }
+        return status;
+    }
+
+    /**
+     * whether the url is https.
+     */
+    public boolean isTls() {
+        return "https".equalsIgnoreCase(url.getProtocol());
+    }
+
+    /**
+     * whether the url is a local file, the data is written without chunked encoding.
+     */
+    public boolean isFile() {
+        return "file".equalsIgnoreCase(url.getProtocol());
+    }
+
+    /**
+     * get the time in ms of TLS handshake, 0 for http.
+     */
+    public long getHandshakeTime() {
+        return handshake_ms;
+    }
+
+    /**
+     * whether the TLS session is resumed, without full handshake.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * set the stats to update when write to socket.
+     */
+    public void setStats(SrsHttpFlvStats v) {
+        stats = v;
+    }
+
+    /**
+     * get the bytes buffered, which is not sent, including the buffers of gathering write.
+     */
+    public int getBuffered() {
+        return nb_buf + nb_gathered;
+    }
+
+    /**
+     * set the timeout in ms for connect.
+     */
+    public void setTimeout(int v) {
+        timeout_ms = v;
+    }
+
+    /**
+     * account the bytes queued to the connection of event loop, must be set before connect.
+     */
+    public void setMemoryAccount(SrsMemoryBudget.Account v) {
+        account = v;
+    }
+
+    /**
+     * resolve the host of url, which may block for DNS, so call it out of the event loop,
+     * then connect in the loop never blocks. the blocking connect resolves when not resolved.
+     */
+    public void resolve() throws IOException {
+        int port = url.getPort();
+        if (port == -1) {
+            port = url.getDefaultPort();
+        }
+
+        InetSocketAddress addr = new InetSocketAddress(url.getHost(), port);
+        if (addr.isUnresolved()) {
+            throw new UnknownHostException(url.getHost());
+        }
+        address = addr;
+    }
+
+    /**
+     * whether the host of url is an ip address, which is resolved without DNS.
+     */
+    public boolean isAddress() {
+        String host = url.getHost();
+        // the ipv6 address is in brackets.
+        if (host.startsWith("[")) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char ch = host.charAt(i);
+            if (ch != '.' && (ch < '0' || ch > '9')) {
+                return false;
+            }
+        }
+        return !host.isEmpty();
+    }
+
+    /**
+     * whether the host of url is resolved, @see resolve
+     */
+    public boolean isResolved() {
+        return address != null;
+    }
+
+    /**
+     * connect to server and send the request header.
+     */
+    public void connect() throws IOException {
+        if (isFile()) {
+            os = new FileOutputStream(url.getPath());
+            SrsLog.i(TAG, String.format("file: opened %s", url.getPath()));
+            return;
+        }
+
+        int port = url.getPort();
+        if (port == -1) {
+            port = url.getDefaultPort();
+        }
+
+        if (loop != null) {
+            if (isTls()) {
+                throw new IOException("https is not supported in event loop");
+            }
+            if (address == null && isAddress()) {
+                resolve();
+            }
+            if (address == null) {
+                throw new IOException("resolve before connect in event loop");
+            }
+            connection = loop.connect(address, nodelay, timeout_ms);
+            connection.setAccount(account);
+            connection.write(ByteBuffer.wrap(requestHeader()));
+            SrsLog.i(TAG, String.format("http: connecting to %s in loop, nodelay=%b", url, nodelay));
+            return;
+        }
+
+        // for TLS, the socket is wrapped by the SSLSocket, which has no channel.
+        if (isTls()) {
+            socket = new Socket();
+        } else {
+            channel = SocketChannel.open();
+            socket = channel.socket();
+        }
+        socket.setTcpNoDelay(nodelay);
+        socket.connect((address != null) ? address : new InetSocketAddress(url.getHost(), port), timeout_ms);
+
+        if (isTls()) {
+            handshake(port);
+        }
+        startReader();
+        os = socket.getOutputStream();
+
+        os.write(requestHeader());
+        os.flush();
+        SrsLog.i(TAG, String.format("http: connected to %s, nodelay=%b", url, nodelay));
+    }
+
+    // the header of POST in chunked encoding.
+    private byte[] requestHeader() throws IOException {
+        String path = url.getFile();
+        if (path.isEmpty()) {
+            path = "/";
+        }
+        String header = String.format("POST %s HTTP/1.1\r\n"
+            + "Host: %s\r\n"
+            + "Content-Type: application/octet-stream\r\n"
+            + "Transfer-Encoding: chunked\r\n"
+            + "Connection: close\r\n"
+            + "\r\n", path, (url.getPort() == -1) ? url.getHost() : url.getHost() + ":" + url.getPort());
+        return header.getBytes("UTF-8");
+    }
+
+    // the TLS handshake over the connected socket, the session is resumed when the factory
+    // has cached the session of the same host and port.
+    private void handshake(int port) throws IOException {
+        if (ssl_factory == null) {
+            ssl_factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
+
+        SSLSocket ssl = (SSLSocket) ssl_factory.createSocket(socket, url.getHost(), port, true);
+        socket = ssl;
+        enableSessionTickets(ssl);
+
+        long start = System.currentTimeMillis();
+        ssl.setSoTimeout(timeout_ms);
+        ssl.startHandshake();
+        ssl.setSoTimeout(0);
+        handshake_ms = System.currentTimeMillis() - start;
+
+        // the factory only verifies the certificate chain, the host must be verified by us.
+        SSLSession session = ssl.getSession();
+        HostnameVerifier verifier = hostname_verifier;
+        if (verifier == null) {
+            verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+        }
+        if (!verifier.verify(url.getHost(), session)) {
+            ssl.close();
+            socket = null;
+            throw new SSLPeerUnverifiedException(String.format("https: certificate not match host %s", url.getHost()));
+        }
+
+        // the resumed session is created before this handshake, by the jdk and conscrypt,
+        // whatever the session id, which changes for TLS1.3 resumption.
+        resumed = session.getCreationTime() < start;
+
+        // each chunk in a TLS record.
+        max_chunk = Math.min(DEFAULT_BUFFER, TLS_MAX_RECORD - CHUNK_HEADER - 2);
+        SrsLog.i(TAG, String.format("https: handshake %dms, resumed=%b, protocol=%s, cipher=%s",
+            handshake_ms, resumed, session.getProtocol(), session.getCipherSuite()));
+
+        if (stats != null) {
+            stats.onHandshake(handshake_ms, resumed);
+        }
+    }
+
+    // drain the response in a daemon thread, to know when the server closed the connection,
+    // and for TLS1.3, the session ticket is sent after handshake, which is only processed when read.
+    // the error status is not alive, so the session reconnects or switches to others.
+    private void startReader() throws IOException {
+        final InputStream is = socket.getInputStream();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] b = new byte[1024];
+                try {
+                    status = readStatus(is);
+                    if (status < 200 || status >= 300) {
+                        SrsLog.e(TAG, String.format("http: response status=%d, url=%s", status, url));
+                        eof = true;
+                    }
+                    while (is.read(b) >= 0) {
+                    }
+                } catch (IOException e) {
+                    // closed, or timeout when no response.
+                }
+                eof = true;
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * read the status line of response, for example, HTTP/1.1 403 Forbidden
+     * @return the status code, -1 when the line is invalid.
+     * @throws IOException when closed before the status line.
+     */
+    static int readStatus(InputStream is) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (;;) {
+            int b = is.read();
+            if (b < 0) {
+                throw new IOException("closed without response");
+            }
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r' && line.length() < 1024) {
+                line.append((char) b);
+            }
+        }
+
+        return parseStatus(line.toString());
+    }
+
+    /**
+     * parse the status line, HTTP-version SP status-code SP reason-phrase
+     * @return the status code, -1 when the line is invalid.
+     */
+    static int parseStatus(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // the android conscrypt supports the session tickets, but not enabled by default.
+    private static void enableSessionTickets(SSLSocket ssl) {
+        try {
+            Method m = ssl.getClass().getMethod("setUseSessionTickets", boolean.class);
+            m.invoke(ssl, true);
+        } catch (Exception e) {
+            // not supported, use the session cache only.
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (nb_buf >= max_chunk) {
+            flush();
+        }
+        buf[CHUNK_HEADER + nb_buf++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int size = Math.min(len, max_chunk - nb_buf);
+            if (size <= 0) {
+                flush();
+                continue;
+            }
+            System.arraycopy(b, off, buf, CHUNK_HEADER + nb_buf, size);
+            nb_buf += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    /**
+     * write the buffers to the current chunk without copy, which is sent by a gathering write
+     * of the socket channel when flush, so the chunks are coalesced by the flush policy of caller.
+     * when no channel, for example, TLS, file or loop, the buffers are copied as write.
+     * @param done run when the buffers are sent, copied or dropped, so the caller can reuse
+     *      or release them, null to ignore.
+     * @remark the buffers must not be modified before done.
+     */
+    public void writeGathering(ByteBuffer[] bufs, Runnable done) throws IOException {
+        if (channel == null) {
+            for (int i = 0; i < bufs.length; i++) {
+                ByteBuffer bb = bufs[i];
+                while (bb.hasRemaining()) {
+                    int size = Math.min(bb.remaining(), max_chunk - nb_buf);
+                    if (size <= 0) {
+                        flush();
+                        continue;
+                    }
+                    bb.get(buf, CHUNK_HEADER + nb_buf, size);
+                    nb_buf += size;
+                }
+            }
+            if (done != null) {
+                done.run();
+            }
+            return;
+        }
+
+        // the data written before, then the buffers.
+        markGathered();
+        for (int i = 0; i < bufs.length; i++) {
+            gathered.add(bufs[i]);
+            nb_gathered += bufs[i].remaining();
+        }
+        if (done != null) {
+            gathered_done.add(done);
+        }
+    }
+
+    /**
+     * copy the buffers of gathering write not sent, then run the done of them, for example,
+     * the codec buffers must not be referred when the codec is recreated.
+     */
+    public void copyGathered() {
+        for (int i = 0; i < gathered.size(); i++) {
+            ByteBuffer bb = gathered.get(i);
+            if (bb.hasArray() && bb.array() == buf) {
+                continue;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(bb.remaining());
+            copy.put(bb.duplicate());
+            copy.flip();
+            gathered.set(i, copy);
+        }
+        runGatheredDone();
+    }
+
+    // the data written after the last mark to a segment of the chunk.
+    private void markGathered() {
+        if (nb_buf > gathered_mark) {
+            gathered.add(ByteBuffer.wrap(buf, CHUNK_HEADER + gathered_mark, nb_buf - gathered_mark));
+            gathered_mark = nb_buf;
+        }
+    }
+
+    // send the chunk of the data and buffers, in one gathering write.
+    private void flushGathered() throws IOException {
+        try {
+            markGathered();
+            long size_data = nb_buf + nb_gathered;
+
+            // chunk-size CRLF, chunk-data, CRLF.
+            byte[] header = (Long.toHexString(size_data) + "\r\n").getBytes("UTF-8");
+            ByteBuffer[] all = new ByteBuffer[gathered.size() + 2];
+            all[0] = ByteBuffer.wrap(header);
+            for (int i = 0; i < gathered.size(); i++) {
+                all[i + 1] = gathered.get(i);
+            }
+            all[all.length - 1] = ByteBuffer.wrap(CRLF);
+
+            int size_chunk = (int) (header.length + size_data + 2);
+            SrsTracer.begin(SrsTracer.SOCKET_WRITE, size_chunk);
+            long left = size_chunk;
+            while (left > 0) {
+                left -= channel.write(all);
+            }
+            SrsTracer.end(SrsTracer.SOCKET_WRITE, size_chunk);
+
+            if (stats != null) {
+                stats.onWrite(size_chunk);
+            }
+        } finally {
+            // the buffers are sent, or dropped for error.
+            nb_buf = 0;
+            clearGathered();
+        }
+    }
+
+    private void clearGathered() {
+        gathered.clear();
+        nb_gathered = 0;
+        gathered_mark = 0;
+        runGatheredDone();
+    }
+
+    private void runGatheredDone() {
+        for (int i = 0; i < gathered_done.size(); i++) {
+            gathered_done.get(i).run();
+        }
+        gathered_done.clear();
+    }
+
+    /**
+     * send the buffered data as a chunk, in one write.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!gathered.isEmpty() && channel != null) {
+            flushGathered();
+            return;
+        }
+        if (nb_buf <= 0 || (os == null && connection == null)) {
+            return;
+        }
+
+        if (isFile()) {
+            os.write(buf, CHUNK_HEADER, nb_buf);
+            if (stats != null) {
+                stats.onWrite(nb_buf);
+            }
+            nb_buf = 0;
+            return;
+        }
+
+        // chunk-size CRLF, right aligned to the data.
+        String size = Integer.toHexString(nb_buf) + "\r\n";
+        int start = CHUNK_HEADER - size.length();
+        for (int i = 0; i < size.length(); i++) {
+            buf[start + i] = (byte) size.charAt(i);
+        }
+
+        // chunk-data CRLF
+        buf[CHUNK_HEADER + nb_buf] = '\r';
+        buf[CHUNK_HEADER + nb_buf + 1] = '\n';
+
+        int size_chunk = CHUNK_HEADER - start + nb_buf + 2;
+        if (connection != null) {
+            // the buffer is reused, so copy the chunk to queue.
+            byte[] chunk = new byte[size_chunk];
+            System.arraycopy(buf, start, chunk, 0, size_chunk);
+            connection.write(ByteBuffer.wrap(chunk));
+            nb_buf = 0;
+            if (stats != null) {
+                stats.onWrite(size_chunk);
+            }
+            return;
+        }
+
+        SrsTracer.begin(SrsTracer.SOCKET_WRITE, size_chunk);
+        os.write(buf, start, size_chunk);
+        os.flush();
+        SrsTracer.end(SrsTracer.SOCKET_WRITE, size_chunk);
+        nb_buf = 0;
+
+        if (stats != null) {
+            stats.onWrite(size_chunk);
+        }
+    }
+
+    /**
+     * send the last chunk and close the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (connection != null) {
+            try {
+                flush();
+                connection.write(ByteBuffer.wrap("0\r\n\r\n".getBytes("UTF-8")));
+            } finally {
+                // the queued bytes are written before closed.
+                connection.close();
+                connection = null;
+            }
+            return;
+        }
+
+        try {
+            if (os != null) {
+                flush();
+                if (!isFile()) {
+                    os.write("0\r\n\r\n".getBytes("UTF-8"));
+                }
+                os.flush();
+            }
+        } finally {
+            // the buffers not sent are dropped.
+            clearGathered();
+            if (isFile() && os != null) {
+                os.close();
+            }
+            if (socket != null) {
+                socket.close();
+            }
+            socket = null;
+            channel = null;
+            os = null;
+        }
+    }
+}
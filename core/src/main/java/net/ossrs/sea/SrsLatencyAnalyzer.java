@@ -0,0 +1,232 @@
+package net.ossrs.sea;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * pull the HTTP FLV streams of each stage of the delivery chain, for example, the origin,
+ * the edge and the CDN, extract the latency SEI and report the latency percentiles,
+ * the latency is the time the tag received minus the capture time, @see SrsLatencySei
+ * @remark the clocks of publisher and analyzer must be synchronized, for example, by NTP.
+ * usage:
+ *      SrsLatencyAnalyzer [-t seconds] <stage=url>...
+ * for example:
+ *      SrsLatencyAnalyzer -t 60 origin=http://origin:8080/live/sea.flv cdn=http://cdn/live/sea.flv
+ */
+public class SrsLatencyAnalyzer {
+    private String name;
+    private URL url;
+    private Thread worker;
+    private volatile boolean quit;
+
+    // the latency in ms of each SEI, guarded by this.
+    private ArrayList<Long> latencies;
+    private long last_sequence;
+    private long nb_lost;
+    private long nb_bytes;
+    private String error;
+
+    private final static int TIMEOUT_MS = 5000;
+    private final static int DEFAULT_SECONDS = 30;
+
+    /**
+     * constructor.
+     * @param n the name of stage.
+     * @param u the HTTP FLV url of stage, null when the tags are fed by onVideo.
+     */
+    public SrsLatencyAnalyzer(String n, URL u) {
+        name = n;
+        url = u;
+        latencies = new ArrayList<Long>();
+        last_sequence = -1;
+    }
+
+    public void start() {
+        quit = false;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pull();
+                } catch (IOException e) {
+                    if (!quit) {
+                        synchronized (SrsLatencyAnalyzer.this) {
+                            error = e.toString();
+                        }
+                    }
+                }
+            }
+        });
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public void stop() {
+        quit = true;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    private void pull() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(TIMEOUT_MS);
+        conn.setReadTimeout(TIMEOUT_MS);
+        DataInputStream is = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+        try {
+            // the 9B flv header and 4B previous tag size.
+            byte[] header = new byte[13];
+            is.readFully(header);
+            if (header[0] != 'F' || header[1] != 'L' || header[2] != 'V') {
+                throw new IOException("not flv");
+            }
+
+            byte[] data = new byte[64 * 1024];
+            while (!quit) {
+                int type = is.readUnsignedByte() & 0x1f;
+                int size = (is.readUnsignedByte() << 16) | is.readUnsignedShort();
+                // timestamp, extended and stream id.
+                is.readInt();
+                is.readUnsignedByte();
+                is.readUnsignedShort();
+                if (size > data.length) {
+                    data = new byte[size];
+                }
+                is.readFully(data, 0, size);
+                // previous tag size.
+                is.readInt();
+                long now = System.currentTimeMillis();
+
+                synchronized (this) {
+                    nb_bytes += 15 + size;
+                }
+                if (type == 9) {
+                    onVideo(data, size, now);
+                }
+            }
+        } finally {
+            is.close();
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * parse each NALU in 4B length for the latency SEI, for the flv tag received,
+     * for example, by the ingest sink, @see SrsIngestSink
+     * @param data the data of video tag.
+     * @param now the time in ms received.
+     */
+    public void onVideo(byte[] data, int size, long now) {
+        // the avc NALU, @see E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
+        if (size <= 5 || (data[0] & 0x0f) != 7 || data[1] != 1) {
+            return;
+        }
+
+        int p = 5;
+        while (p + 4 <= size) {
+            int length = ((data[p] & 0xff) << 24) | ((data[p + 1] & 0xff) << 16) | ((data[p + 2] & 0xff) << 8) | (data[p + 3] & 0xff);
+            p += 4;
+            if (length <= 0 || p + length > size) {
+                return;
+            }
+
+            SrsLatencySei.Timestamp ts = SrsLatencySei.parse(data, p, length);
+            if (ts != null) {
+                synchronized (this) {
+                    latencies.add(now - ts.capture_ms);
+                    if (last_sequence >= 0 && ts.sequence > last_sequence + 1) {
+                        nb_lost += ts.sequence - last_sequence - 1;
+                    }
+                    last_sequence = ts.sequence;
+                }
+                return;
+            }
+            p += length;
+        }
+    }
+
+    /**
+     * get the number of frames with the latency SEI.
+     */
+    public synchronized int getFrames() {
+        return latencies.size();
+    }
+
+    /**
+     * get the number of frames lost, by the gaps of sequence number.
+     */
+    public synchronized long getLost() {
+        return nb_lost;
+    }
+
+    /**
+     * get the percentile of latency in ms, -1 if no sample.
+     */
+    public synchronized long getPercentile(double v) {
+        if (latencies.isEmpty()) {
+            return -1;
+        }
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(v / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%-10s frames=%d, lost=%d, %dKB, p50=%dms, p90=%dms, p99=%dms, max=%dms%s",
+            name, latencies.size(), nb_lost, nb_bytes / 1024,
+            getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(100),
+            (error == null) ? "" : ", error=" + error);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = DEFAULT_SECONDS;
+        ArrayList<SrsLatencyAnalyzer> stages = new ArrayList<SrsLatencyAnalyzer>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-t".equals(args[i]) && i + 1 < args.length) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].contains("=")) {
+                int p = args[i].indexOf('=');
+                stages.add(new SrsLatencyAnalyzer(args[i].substring(0, p), new URL(args[i].substring(p + 1))));
+            }
+        }
+        if (stages.isEmpty()) {
+            System.err.println("usage: SrsLatencyAnalyzer [-t seconds] <stage=url>...");
+            System.exit(1);
+        }
+
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).start();
+        }
+        for (int elapsed = 0; elapsed < seconds; elapsed += 5) {
+            Thread.sleep(Math.min(5, seconds - elapsed) * 1000L);
+            System.out.println(String.format("after %ds:", Math.min(elapsed + 5, seconds)));
+            report(stages);
+        }
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).stop();
+        }
+    }
+
+    // each stage, and the p50 added by the stage to the previous.
+    private static void report(ArrayList<SrsLatencyAnalyzer> stages) {
+        long prev = -1;
+        for (int i = 0; i < stages.size(); i++) {
+            SrsLatencyAnalyzer s = stages.get(i);
+            long p50 = s.getPercentile(50);
+            String delta = (prev >= 0 && p50 >= 0) ? String.format(", %+dms", p50 - prev) : "";
+            System.out.println("    " + s + delta);
+            prev = p50;
+        }
+    }
+}
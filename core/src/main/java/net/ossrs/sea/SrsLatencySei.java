@@ -0,0 +1,140 @@
+package net.ossrs.sea;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * the SEI user_data_unregistered NALU to carry the capture wall-clock time and sequence
+ * number of each access unit, for the end-to-end latency measurement, @see SrsLatencyAnalyzer
+ * the payload is the 16B uuid, 8B capture time in ms since epoch and 4B sequence number,
+ * @see H.264-AVC-ISO_IEC_14496-10.pdf, page 331, D.1.6 User data unregistered SEI message syntax.
+ */
+public class SrsLatencySei {
+    // the uuid_iso_iec_11578 to identify our payload.
+    public final static byte[] UUID = {
+        (byte) 0x53, (byte) 0x45, (byte) 0x41, (byte) 0x2d, (byte) 0x4c, (byte) 0x41, (byte) 0x54, (byte) 0x45,
+        (byte) 0x4e, (byte) 0x43, (byte) 0x59, (byte) 0x2d, (byte) 0x76, (byte) 0x31, (byte) 0x00, (byte) 0x01,
+    };
+
+    public final static int NALU_SEI = 6;
+    public final static int PAYLOAD_USER_DATA_UNREGISTERED = 5;
+    private final static int PAYLOAD_SIZE = 16 + 8 + 4;
+
+    /**
+     * the capture time and sequence number parsed.
+     */
+    public static class Timestamp {
+        public long capture_ms;
+        public long sequence;
+    }
+
+    /**
+     * build the SEI NALU, with the nal header and without the start code.
+     */
+    public static byte[] build(long capture_ms, long sequence) {
+        byte[] rbsp = new byte[2 + PAYLOAD_SIZE + 1];
+        int p = 0;
+        rbsp[p++] = (byte) PAYLOAD_USER_DATA_UNREGISTERED;
+        rbsp[p++] = (byte) PAYLOAD_SIZE;
+        System.arraycopy(UUID, 0, rbsp, p, UUID.length);
+        p += UUID.length;
+        for (int i = 7; i >= 0; i--) {
+            rbsp[p++] = (byte) (capture_ms >> (i * 8));
+        }
+        for (int i = 3; i >= 0; i--) {
+            rbsp[p++] = (byte) (sequence >> (i * 8));
+        }
+        // rbsp_trailing_bits, the stop bit and alignment.
+        rbsp[p] = (byte) 0x80;
+
+        // forbidden_zero_bit 0, nal_ref_idc 0, nal_unit_type 6.
+        ByteArrayOutputStream nalu = new ByteArrayOutputStream(rbsp.length + 4);
+        nalu.write(NALU_SEI);
+
+        // insert the emulation_prevention_three_byte, 7.4.1, page 64.
+        int zeros = 0;
+        for (int i = 0; i < rbsp.length; i++) {
+            int v = rbsp[i] & 0xff;
+            if (zeros >= 2 && v <= 3) {
+                nalu.write(3);
+                zeros = 0;
+            }
+            nalu.write(v);
+            zeros = (v == 0) ? zeros + 1 : 0;
+        }
+        return nalu.toByteArray();
+    }
+
+    /**
+     * parse our SEI from the NALU, with the nal header and without the start code.
+     * @return the timestamp, null if not our SEI.
+     */
+    public static Timestamp parse(byte[] nalu, int offset, int size) {
+        if (size < 2 || (nalu[offset] & 0x1f) != NALU_SEI) {
+            return null;
+        }
+
+        // remove the emulation_prevention_three_byte.
+        byte[] rbsp = new byte[size];
+        int n = 0;
+        int zeros = 0;
+        for (int i = offset + 1; i < offset + size; i++) {
+            int v = nalu[i] & 0xff;
+            if (zeros >= 2 && v == 3) {
+                zeros = 0;
+                continue;
+            }
+            rbsp[n++] = (byte) v;
+            zeros = (v == 0) ? zeros + 1 : 0;
+        }
+
+        // each sei_message, until the rbsp_trailing_bits.
+        int p = 0;
+        while (p < n && (rbsp[p] & 0xff) != 0x80) {
+            int type = 0;
+            while (p < n && (rbsp[p] & 0xff) == 0xff) {
+                type += 255;
+                p++;
+            }
+            if (p >= n) {
+                return null;
+            }
+            type += rbsp[p++] & 0xff;
+
+            int payload = 0;
+            while (p < n && (rbsp[p] & 0xff) == 0xff) {
+                payload += 255;
+                p++;
+            }
+            if (p >= n) {
+                return null;
+            }
+            payload += rbsp[p++] & 0xff;
+            if (p + payload > n) {
+                return null;
+            }
+
+            if (type == PAYLOAD_USER_DATA_UNREGISTERED && payload >= PAYLOAD_SIZE && isUuid(rbsp, p)) {
+                Timestamp ts = new Timestamp();
+                int q = p + UUID.length;
+                for (int i = 0; i < 8; i++) {
+                    ts.capture_ms = (ts.capture_ms << 8) | (rbsp[q++] & 0xff);
+                }
+                for (int i = 0; i < 4; i++) {
+                    ts.sequence = (ts.sequence << 8) | (rbsp[q++] & 0xff);
+                }
+                return ts;
+            }
+            p += payload;
+        }
+        return null;
+    }
+
+    private static boolean isUuid(byte[] b, int p) {
+        for (int i = 0; i < UUID.length; i++) {
+            if (b[p + i] != UUID[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
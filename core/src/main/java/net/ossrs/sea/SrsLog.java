@@ -0,0 +1,47 @@
+package net.ossrs.sea;
+
+/**
+ * the log of the muxer and tools, which run on android and the desktop jvm.
+ * the app sets the backend to android.util.Log, the default prints to stderr.
+ */
+public class SrsLog {
+    // the same priorities to android.util.Log
+    public final static int DEBUG = 3;
+    public final static int INFO = 4;
+    public final static int WARN = 5;
+    public final static int ERROR = 6;
+
+    /**
+     * the backend to write the log, for example, android.util.Log.println
+     */
+    public interface Backend {
+        void println(int priority, String tag, String msg);
+    }
+
+    private static volatile Backend backend = new Backend() {
+        @Override
+        public void println(int priority, String tag, String msg) {
+            System.err.println(String.format("%c/%s: %s", "??VDIWE".charAt(priority), tag, msg));
+        }
+    };
+
+    public static void setBackend(Backend v) {
+        backend = v;
+    }
+
+    public static void d(String tag, String msg) {
+        backend.println(DEBUG, tag, msg);
+    }
+
+    public static void i(String tag, String msg) {
+        backend.println(INFO, tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        backend.println(WARN, tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        backend.println(ERROR, tag, msg);
+    }
+}
@@ -0,0 +1,227 @@
+package net.ossrs.sea;
+
+import java.util.ArrayList;
+
+/**
+ * the memory budget shared by all queues, caches and buffers of the publisher, each component
+ * reserves the bytes from its account before hold them, and releases when done, so the memory
+ * is bounded, and accounted by component. when the budget is reached, the policy of account:
+ *      POLICY_DROP, the reservation fails, the caller drops the item.
+ *      POLICY_BLOCK, wait for the others to release, then drop when timeout.
+ *      POLICY_DEGRADE, the reservation never fails, and the budget is pressured,
+ *          the publisher degrades the quality to use less memory, @see isPressured
+ * @remark thread-safe, the accounts are reserved by the encoder threads and released by workers.
+ */
+public class SrsMemoryBudget {
+    public final static int POLICY_DROP = 0;
+    public final static int POLICY_BLOCK = 1;
+    public final static int POLICY_DEGRADE = 2;
+
+    private long max_bytes;
+    private long used;
+    private long peak;
+    private int block_timeout_ms;
+    private ArrayList<Account> accounts;
+
+    // pressured when used exceeds the ratio of budget.
+    private final static double PRESSURE_RATIO = 0.8;
+    private final static int BLOCK_TIMEOUT_MS = 1000;
+
+    /**
+     * the bytes reserved by a component.
+     */
+    public class Account {
+        private String name;
+        private int policy;
+        private long used;
+        private long peak;
+        private long nb_drops;
+        private long nb_blocks;
+        private long blocked_ms;
+        private long nb_overs;
+
+        private Account(String n, int p) {
+            name = n;
+            policy = p;
+        }
+
+        /**
+         * reserve the bytes by the policy of account.
+         * @return false if the item should be dropped.
+         */
+        public boolean reserve(int bytes) {
+            return SrsMemoryBudget.this.reserve(this, bytes, policy);
+        }
+
+        /**
+         * reserve the bytes even the budget is reached, for the item must be held,
+         * for example, the sequence headers, or the buffers allocated at start.
+         */
+        public void force(int bytes) {
+            SrsMemoryBudget.this.reserve(this, bytes, POLICY_DEGRADE);
+        }
+
+        public void release(int bytes) {
+            SrsMemoryBudget.this.release(this, bytes);
+        }
+
+        /**
+         * move the bytes reserved to the other account, the used of budget is not changed,
+         * for example, the item is held by the other component when released by this one.
+         */
+        public void move(Account to, int bytes) {
+            SrsMemoryBudget.this.move(this, to, bytes);
+        }
+
+        /**
+         * release all bytes reserved, for example, when the component stopped.
+         */
+        public void releaseAll() {
+            synchronized (SrsMemoryBudget.this) {
+                SrsMemoryBudget.this.release(this, (int) used);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getUsed() {
+            synchronized (SrsMemoryBudget.this) {
+                return used;
+            }
+        }
+
+        public long getPeak() {
+            synchronized (SrsMemoryBudget.this) {
+                return peak;
+            }
+        }
+
+        /**
+         * get the number of reservations failed, the items are dropped.
+         */
+        public long getDrops() {
+            synchronized (SrsMemoryBudget.this) {
+                return nb_drops;
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (SrsMemoryBudget.this) {
+                return String.format("%s=%dKB/%dKB, drops=%d, blocks=%d/%dms, overs=%d",
+                    name, used / 1024, peak / 1024, nb_drops, nb_blocks, blocked_ms, nb_overs);
+            }
+        }
+    }
+
+    /**
+     * constructor.
+     * @param max the max bytes of all accounts.
+     */
+    public SrsMemoryBudget(long max) {
+        max_bytes = max;
+        block_timeout_ms = BLOCK_TIMEOUT_MS;
+        accounts = new ArrayList<Account>();
+    }
+
+    /**
+     * set the max time in ms to wait for the POLICY_BLOCK.
+     */
+    public void setBlockTimeout(int v) {
+        block_timeout_ms = v;
+    }
+
+    /**
+     * get the account of component by name, created when not exists.
+     * @param policy the policy when the budget is reached, ignored when exists.
+     */
+    public synchronized Account account(String name, int policy) {
+        for (int i = 0; i < accounts.size(); i++) {
+            if (accounts.get(i).name.equals(name)) {
+                return accounts.get(i);
+            }
+        }
+        Account v = new Account(name, policy);
+        accounts.add(v);
+        return v;
+    }
+
+    public long getMax() {
+        return max_bytes;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized long getPeak() {
+        return peak;
+    }
+
+    /**
+     * whether the used exceeds 80% of budget, the publisher should degrade.
+     */
+    public synchronized boolean isPressured() {
+        return used >= max_bytes * PRESSURE_RATIO;
+    }
+
+    private synchronized boolean reserve(Account a, int bytes, int policy) {
+        if (used + bytes > max_bytes) {
+            if (policy == POLICY_DROP) {
+                a.nb_drops++;
+                return false;
+            }
+
+            if (policy == POLICY_BLOCK) {
+                long start = System.nanoTime() / 1000000;
+                long deadline = start + block_timeout_ms;
+                a.nb_blocks++;
+                try {
+                    long now;
+                    while (used + bytes > max_bytes && (now = System.nanoTime() / 1000000) < deadline) {
+                        wait(deadline - now);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                a.blocked_ms += System.nanoTime() / 1000000 - start;
+                if (used + bytes > max_bytes) {
+                    a.nb_drops++;
+                    return false;
+                }
+            } else {
+                a.nb_overs++;
+            }
+        }
+
+        used += bytes;
+        peak = Math.max(peak, used);
+        a.used += bytes;
+        a.peak = Math.max(a.peak, a.used);
+        return true;
+    }
+
+    private synchronized void move(Account from, Account to, int bytes) {
+        from.used -= bytes;
+        to.used += bytes;
+        to.peak = Math.max(to.peak, to.used);
+    }
+
+    private synchronized void release(Account a, int bytes) {
+        used -= bytes;
+        a.used -= bytes;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("used=%dKB/%dKB, peak=%dKB", used / 1024, max_bytes / 1024, peak / 1024));
+        for (int i = 0; i < accounts.size(); i++) {
+            sb.append(", ").append(accounts.get(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,125 @@
+package net.ossrs.sea;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * record the encoded samples fed to the muxer, to replay by SrsSampleReplayer,
+ * for the bugs and the benchmark of the mux and send path with the real encoder output.
+ * the file is the magic and version, then the records in big-endian:
+ *      [1B 'T'][1B track][4B width or sample rate][4B height or channels]
+ *      [1B 'S'][1B track][4B flags][8B pts][4B offset][4B size][4B position][4B nb][nb bytes]
+ * the bytes are from the position of buffer to the size, which is what the muxer reads.
+ * @remark the recorder is thread-safe, for the audio and video are written by different threads.
+ */
+public class SrsSampleRecorder {
+    public final static int MAGIC = 0x53454152; // SEAR
+    public final static int VERSION = 1;
+    public final static int RECORD_TRACK = 'T';
+    public final static int RECORD_SAMPLE = 'S';
+    public final static int TRACK_VIDEO = 0;
+    public final static int TRACK_AUDIO = 1;
+
+    private File path;
+    private DataOutputStream os;
+    private byte[] buf;
+    private long nb_samples;
+    private long nb_bytes;
+    private boolean failed;
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static String TAG = "SrsRecorder";
+
+    /**
+     * constructor, the file is truncated.
+     * @param p the file to record to.
+     */
+    public SrsSampleRecorder(File p) throws IOException {
+        path = p;
+        os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(p), BUFFER_SIZE));
+        os.writeInt(MAGIC);
+        os.writeShort(VERSION);
+        buf = new byte[0];
+        SrsLog.i(TAG, String.format("record samples to %s", path));
+    }
+
+    /**
+     * record the format of track, must be written before its samples.
+     * @param v0 the width of video, or the sample rate of audio.
+     * @param v1 the height of video, or the channels of audio.
+     */
+    public synchronized void writeTrack(int track, int v0, int v1) {
+        if (os == null || failed) {
+            return;
+        }
+
+        try {
+            os.writeByte(RECORD_TRACK);
+            os.writeByte(track);
+            os.writeInt(v0);
+            os.writeInt(v1);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * record the sample, the position of bb is not changed.
+     */
+    public synchronized void writeSample(int track, ByteBuffer bb, SrsBufferInfo bi) {
+        if (os == null || failed) {
+            return;
+        }
+
+        int pos = bb.position();
+        int nb = Math.max(0, bi.size - pos);
+        if (buf.length < nb) {
+            buf = new byte[nb];
+        }
+        for (int i = 0; i < nb; i++) {
+            buf[i] = bb.get(pos + i);
+        }
+
+        try {
+            os.writeByte(RECORD_SAMPLE);
+            os.writeByte(track);
+            os.writeInt(bi.flags);
+            os.writeLong(bi.presentationTimeUs);
+            os.writeInt(bi.offset);
+            os.writeInt(bi.size);
+            os.writeInt(pos);
+            os.writeInt(nb);
+            os.write(buf, 0, nb);
+            nb_samples++;
+            nb_bytes += nb;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * flush and close the file.
+     */
+    public synchronized void close() {
+        if (os == null) {
+            return;
+        }
+
+        try {
+            os.close();
+        } catch (IOException e) {
+        }
+        os = null;
+        SrsLog.i(TAG, String.format("recorded %d samples, %dB to %s", nb_samples, nb_bytes, path));
+    }
+
+    // stop recording when the disk is full, the publishing continues.
+    private void fail(IOException e) {
+        failed = true;
+        SrsLog.e(TAG, String.format("record failed, stop recording, e=%s", e.getMessage()));
+    }
+}
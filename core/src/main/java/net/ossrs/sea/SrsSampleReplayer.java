@@ -0,0 +1,201 @@
+package net.ossrs.sea;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * replay the samples recorded by SrsSampleRecorder to the muxer, in realtime by the pts,
+ * or as fast as possible for benchmark.
+ * the file is loaded to memory before replay, so the disk is not in the path,
+ * and the output to a file:// url is identical for each replay of the same file.
+ * usage:
+ *      SrsSampleReplayer <file.rec> <url> [flv|cmaf|ts] [realtime]
+ * for example, to replay as fast as possible to a local file:
+ *      SrsSampleReplayer sea.rec file:///tmp/sea.flv
+ */
+public class SrsSampleReplayer {
+    private static class Record {
+        public int type;
+        public int track;
+        // for track, the width and height, or the sample rate and channels.
+        public int v0;
+        public int v1;
+        // for sample.
+        public int flags;
+        public long pts;
+        public int offset;
+        public int size;
+        public int position;
+        public byte[] data;
+    }
+
+    private File path;
+    private ArrayList<Record> records;
+    private long nb_samples;
+    private long nb_bytes;
+
+    // when replay as fast as possible, wait for the worker when too many frames queued.
+    private final static int MAX_PENDING_FRAMES = 256;
+
+    /**
+     * constructor, load all records of file.
+     * @param p the file recorded by SrsSampleRecorder.
+     */
+    public SrsSampleReplayer(File p) throws IOException {
+        path = p;
+        records = new ArrayList<Record>();
+
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(p), 64 * 1024));
+        try {
+            if (is.readInt() != SrsSampleRecorder.MAGIC) {
+                throw new IOException(String.format("%s is not a sample record", p));
+            }
+            int version = is.readUnsignedShort();
+            if (version != SrsSampleRecorder.VERSION) {
+                throw new IOException(String.format("%s version %d not supported", p, version));
+            }
+
+            while (true) {
+                int type = is.read();
+                if (type < 0) {
+                    break;
+                }
+                try {
+                    records.add(readRecord(is, type));
+                } catch (EOFException e) {
+                    // the last record is truncated when the recorder not closed.
+                    break;
+                }
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private Record readRecord(DataInputStream is, int type) throws IOException {
+        Record r = new Record();
+        r.type = type;
+        r.track = is.readUnsignedByte();
+
+        if (type == SrsSampleRecorder.RECORD_TRACK) {
+            r.v0 = is.readInt();
+            r.v1 = is.readInt();
+            return r;
+        }
+        if (type != SrsSampleRecorder.RECORD_SAMPLE) {
+            throw new IOException(String.format("invalid record type %d", type));
+        }
+
+        r.flags = is.readInt();
+        r.pts = is.readLong();
+        r.offset = is.readInt();
+        r.size = is.readInt();
+        r.position = is.readInt();
+        int nb = is.readInt();
+        // the bytes before position are never read by muxer.
+        r.data = new byte[r.position + nb];
+        is.readFully(r.data, r.position, nb);
+
+        nb_samples++;
+        nb_bytes += nb;
+        return r;
+    }
+
+    public long getSamples() {
+        return nb_samples;
+    }
+
+    public long getBytes() {
+        return nb_bytes;
+    }
+
+    /**
+     * add the tracks and write the samples to muxer, the muxer must be started.
+     * when return, all samples are processed by the worker of muxer.
+     * @param muxer the muxer to replay to.
+     * @param realtime whether write the sample at its pts, or as fast as possible.
+     */
+    public void replay(SrsHttpFlv muxer, boolean realtime) throws Exception {
+        int[] tracks = new int[2];
+        SrsBufferInfo bi = new SrsBufferInfo();
+        long start_us = System.nanoTime() / 1000;
+        long base_pts = -1;
+
+        for (int i = 0; i < records.size(); i++) {
+            Record r = records.get(i);
+
+            if (r.type == SrsSampleRecorder.RECORD_TRACK) {
+                if (r.track == SrsSampleRecorder.TRACK_VIDEO) {
+                    tracks[r.track] = muxer.addVideoTrack(r.v0, r.v1);
+                } else {
+                    tracks[r.track] = muxer.addAudioTrack(r.v0, r.v1);
+                }
+                continue;
+            }
+
+            if (realtime) {
+                if (base_pts < 0) {
+                    base_pts = r.pts;
+                }
+                long wait_us = r.pts - base_pts - (System.nanoTime() / 1000 - start_us);
+                if (wait_us > 0) {
+                    Thread.sleep(wait_us / 1000, (int) (wait_us % 1000) * 1000);
+                }
+            } else {
+                while (muxer.getPendingFrames() > MAX_PENDING_FRAMES) {
+                    Thread.sleep(1);
+                }
+            }
+
+            ByteBuffer bb = ByteBuffer.wrap(r.data);
+            bb.position(r.position);
+            bi.set(r.offset, r.size, r.pts, r.flags);
+            muxer.writeSampleData(tracks[r.track], bb, bi);
+        }
+
+        muxer.drain();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: SrsSampleReplayer <file.rec> <url> [flv|cmaf|ts] [realtime]");
+            System.exit(1);
+        }
+
+        int format = SrsHttpFlv.OutputFormat.MUXER_OUTPUT_HTTP_FLV;
+        boolean realtime = false;
+        for (int i = 2; i < args.length; i++) {
+            if ("cmaf".equals(args[i])) {
+                format = SrsHttpFlv.OutputFormat.MUXER_OUTPUT_CMAF;
+            } else if ("ts".equals(args[i])) {
+                format = SrsHttpFlv.OutputFormat.MUXER_OUTPUT_TS;
+            } else if ("realtime".equals(args[i])) {
+                realtime = true;
+            }
+        }
+
+        long load_start = System.nanoTime();
+        SrsSampleReplayer replayer = new SrsSampleReplayer(new File(args[0]));
+        long load_ms = (System.nanoTime() - load_start) / 1000000;
+
+        SrsHttpFlv muxer = new SrsHttpFlv(args[1], format);
+        muxer.start();
+        long start = System.nanoTime();
+        try {
+            replayer.replay(muxer, realtime);
+        } finally {
+            muxer.stop();
+        }
+        double elapsed = Math.max(1, System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("replay %s to %s, loaded in %dms, %d samples %dB in %.3fs, %.1f samples/s, %.2f MB/s",
+            args[0], args[1], load_ms, replayer.getSamples(), replayer.getBytes(), elapsed,
+            replayer.getSamples() / elapsed, replayer.getBytes() / elapsed / 1024 / 1024));
+    }
+}
@@ -0,0 +1,123 @@
+package net.ossrs.sea;
+
+/**
+ * to detect the static scene by the sampled luma, to skip the unchanged frames.
+ * the Y plane is sampled by a sparse grid of 8 bytes blocks, and compared to
+ * the last submitted frame by SAD(sum of absolute differences), so the cost is
+ * about grid_cols * grid_rows * 8 bytes, far less than the color transform.
+ * when static, the frames are admitted at the floor fps, or only the keepalive
+ * frame is admitted, for SRS and players not to timeout.
+ */
+public class SrsSceneDetector {
+    private int width;
+    private int height;
+    private int stride;
+
+    private int grid_cols;
+    private int grid_rows;
+    // the luma samples of the last submitted frame.
+    private byte[] reference;
+    private boolean reference_ok;
+
+    // the mean absolute difference per sample, below which is static.
+    private int threshold;
+    // the interval in ms to admit the static frames.
+    private long static_interval_ms;
+    private long last_submit_ms;
+
+    private long nb_static;
+    private long nb_skipped;
+
+    private final static int BLOCK_SIZE = 8;
+
+    /**
+     * constructor.
+     * @param w the width of the Y plane.
+     * @param h the height of the Y plane.
+     * @param s the stride of the Y plane.
+     * @param floor_fps the fps for static scene, 0 to skip all except the keepalive.
+     * @param keepalive_ms the max interval in ms between the submitted frames.
+     */
+    public SrsSceneDetector(int w, int h, int s, int floor_fps, int keepalive_ms) {
+        width = w;
+        height = h;
+        stride = s;
+
+        grid_cols = 16;
+        grid_rows = 12;
+        reference = new byte[grid_cols * grid_rows * BLOCK_SIZE];
+        reference_ok = false;
+
+        threshold = 2;
+        static_interval_ms = keepalive_ms;
+        if (floor_fps > 0) {
+            static_interval_ms = Math.min(keepalive_ms, 1000 / floor_fps);
+        }
+    }
+
+    /**
+     * set the mean absolute difference per luma sample, below which the frame is static.
+     */
+    public void setThreshold(int v) {
+        threshold = v;
+    }
+
+    /**
+     * whether the frame should be submitted to vencoder.
+     * @param yuv the frame, starts with the Y plane.
+     * @param now_ms the monotonic time in ms.
+     */
+    public boolean admit(byte[] yuv, long now_ms) {
+        int sad = sample(yuv, false);
+
+        boolean is_static = reference_ok && sad < threshold * reference.length;
+        if (is_static) {
+            nb_static++;
+            if (now_ms - last_submit_ms < static_interval_ms) {
+                nb_skipped++;
+                return false;
+            }
+        }
+
+        // the frame to submit is the new reference.
+        sample(yuv, true);
+        reference_ok = true;
+        last_submit_ms = now_ms;
+        return true;
+    }
+
+    // get the SAD of the grid to reference, or update the reference.
+    private int sample(byte[] yuv, boolean update) {
+        int sad = 0;
+        int dx = (width - BLOCK_SIZE) / grid_cols;
+        int dy = height / grid_rows;
+
+        int r = 0;
+        for (int row = 0; row < grid_rows; row++) {
+            // sample at the center of cell.
+            int line = (row * dy + dy / 2) * stride;
+            for (int col = 0; col < grid_cols; col++) {
+                int pos = line + col * dx + dx / 2;
+                if (update) {
+                    System.arraycopy(yuv, pos, reference, r, BLOCK_SIZE);
+                    r += BLOCK_SIZE;
+                    continue;
+                }
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    int d = (yuv[pos + i] & 0xff) - (reference[r++] & 0xff);
+                    sad += (d < 0) ? -d : d;
+                }
+            }
+        }
+
+        return sad;
+    }
+
+    public long getStatic() {
+        return nb_static;
+    }
+
+    public long getSkipped() {
+        return nb_skipped;
+    }
+}
@@ -0,0 +1,118 @@
+package net.ossrs.sea;
+
+/**
+ * to detect the silence by the peak of the 16-bit PCM, for the discontinuous transmission,
+ * when silent, the aac encoder is bypassed and a pre-encoded silent aac frame is sent
+ * for each 1024 samples, so the audio timestamps are continuous for the interleaving
+ * of muxer and players, while the encoder is idle and the frames are a few bytes.
+ * the silence starts after the hangover, for the tail of speech not to be cut.
+ */
+public class SrsSilenceDetector {
+    private int sample_rate;
+    private int channels;
+
+    // the peak of the absolute sample, below which is silent.
+    private int threshold;
+    private long hangover_samples;
+    // the samples of the continuous silence.
+    private long silent_samples;
+
+    private long nb_silent;
+    private long nb_frames;
+
+    // the raw_data_block of aac-lc for silence, @see aac-iso-13818-7.pdf, page 22:
+    //      SCE or CPE(common_window=1), global_gain=160, ONLY_LONG_SEQUENCE, max_sfb=0,
+    //      no pulse, tns or gain control, then the END element.
+    private final static byte[] SILENT_MONO = {
+        (byte) 0x01, (byte) 0x40, (byte) 0x20, (byte) 0x07,
+    };
+    private final static byte[] SILENT_STEREO = {
+        (byte) 0x21, (byte) 0x10, (byte) 0x05, (byte) 0x00, (byte) 0xa0, (byte) 0x1c,
+    };
+
+    // each aac frame is 1024 samples.
+    public final static int SAMPLES_PER_FRAME = 1024;
+
+    /**
+     * constructor.
+     * @param r the sample rate.
+     * @param c the channels.
+     * @param hangover_ms the time in ms of the continuous silence to start the silence.
+     */
+    public SrsSilenceDetector(int r, int c, int hangover_ms) {
+        sample_rate = r;
+        channels = c;
+        // about -50dBFS.
+        threshold = 100;
+        hangover_samples = (long) hangover_ms * r / 1000;
+    }
+
+    /**
+     * set the peak of the absolute sample, below which is silent.
+     */
+    public void setThreshold(int v) {
+        threshold = v;
+    }
+
+    /**
+     * whether the PCM is in the silence, which lasts for the hangover.
+     * @param pcm the 16-bit little-endian interleaved samples.
+     * @param size the bytes of samples.
+     */
+    public boolean isSilent(byte[] pcm, int size) {
+        int peak = 0;
+        for (int i = 0; i + 1 < size; i += 2) {
+            int v = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+            if (v < 0) {
+                v = -v;
+            }
+            if (v > peak) {
+                peak = v;
+                if (peak >= threshold) {
+                    break;
+                }
+            }
+        }
+
+        if (peak >= threshold) {
+            silent_samples = 0;
+            return false;
+        }
+
+        silent_samples += size / 2 / channels;
+        if (silent_samples < hangover_samples) {
+            return false;
+        }
+        nb_silent++;
+        return true;
+    }
+
+    /**
+     * get the pre-encoded silent aac frame of the channels.
+     */
+    public byte[] getSilentFrame() {
+        nb_frames++;
+        return (channels == 2) ? SILENT_STEREO : SILENT_MONO;
+    }
+
+    /**
+     * get the duration in us of an aac frame.
+     */
+    public long getFrameDuration() {
+        return (long) SAMPLES_PER_FRAME * 1000000 / sample_rate;
+    }
+
+    /**
+     * get the number of silent PCM buffers, which bypass the encoder.
+     */
+    public long getSilent() {
+        return nb_silent;
+    }
+
+    /**
+     * get the number of silent aac frames sent.
+     */
+    public long getFrames() {
+        return nb_frames;
+    }
+}
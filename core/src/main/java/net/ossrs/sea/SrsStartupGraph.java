@@ -0,0 +1,258 @@
+package net.ossrs.sea;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * the startup steps in a dependency graph, the step runs in the executor when all
+ * its dependencies done, so the independent steps run in parallel.
+ * when a step failed or the graph canceled, the steps not started are skipped.
+ * the time of each step is reported, for the time to publish.
+ */
+public class SrsStartupGraph {
+    /**
+     * a step of startup, throw to fail the graph.
+     */
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    /**
+     * the callback when all running steps done, invoked in the executor thread.
+     */
+    public interface OnCompleteListener {
+        void onComplete(boolean ok, String report);
+    }
+
+    private class Node {
+        public String name;
+        public Step step;
+        public ArrayList<Node> dependents;
+        public int nb_deps;
+
+        public long start_ms;
+        public long end_ms;
+        public String thread;
+        public Exception error;
+    }
+
+    private String name;
+    private ArrayList<Node> nodes;
+    private HashMap<String, Node> index;
+
+    private ExecutorService executor;
+    private OnCompleteListener listener;
+    private long start_ms;
+    private int nb_running;
+    private int nb_left;
+    private boolean failed;
+    private boolean canceled;
+    private boolean completed;
+
+    private final static String TAG = "SrsStartup";
+
+    /**
+     * constructor.
+     * @param n the name of graph for the report.
+     */
+    public SrsStartupGraph(String n) {
+        name = n;
+        nodes = new ArrayList<Node>();
+        index = new HashMap<String, Node>();
+    }
+
+    /**
+     * add a step, the dependencies must be added before.
+     * @param n the unique name of step.
+     * @param step the step to run.
+     * @param deps the name of steps to run before this one.
+     */
+    public void add(String n, Step step, String... deps) {
+        Node node = new Node();
+        node.name = n;
+        node.step = step;
+        node.dependents = new ArrayList<Node>();
+        node.start_ms = -1;
+        node.end_ms = -1;
+
+        for (int i = 0; i < deps.length; i++) {
+            Node dep = index.get(deps[i]);
+            if (dep == null) {
+                throw new IllegalArgumentException(String.format("step %s depends on unknown step %s", n, deps[i]));
+            }
+            dep.dependents.add(node);
+            node.nb_deps++;
+        }
+
+        nodes.add(node);
+        index.put(n, node);
+    }
+
+    /**
+     * start the steps without dependencies, the others are started when ready.
+     */
+    public synchronized void start(ExecutorService e, OnCompleteListener l) {
+        executor = e;
+        listener = l;
+        start_ms = System.nanoTime() / 1000000;
+        nb_left = nodes.size();
+
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (node.nb_deps == 0) {
+                submit(node);
+            }
+        }
+    }
+
+    /**
+     * do not start any more step, the running steps continue.
+     */
+    public void cancel() {
+        cancel(null);
+    }
+
+    /**
+     * do not start any more step, and notify when the running steps done, instead of the
+     * listener of start, so the caller need not to wait for them.
+     * @param l the listener, invoked in the caller thread if no running step, null to ignore.
+     */
+    public void cancel(OnCompleteListener l) {
+        OnCompleteListener notify = null;
+        synchronized (this) {
+            canceled = true;
+            listener = l;
+            if (completed) {
+                notify = l;
+            } else if (nb_running == 0) {
+                notify = complete();
+            }
+        }
+
+        if (notify != null) {
+            notify.onComplete(false, getReport());
+        }
+    }
+
+    /**
+     * wait for all running steps done, for the resources created by steps to release.
+     */
+    public synchronized void await() {
+        while (executor != null && !completed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * whether all steps done without failure.
+     */
+    public synchronized boolean isSucceeded() {
+        return completed && !failed && !canceled && nb_left == 0;
+    }
+
+    /**
+     * get the time in ms from start to the last step done.
+     */
+    public synchronized long getElapsed() {
+        long end = start_ms;
+        for (int i = 0; i < nodes.size(); i++) {
+            end = Math.max(end, nodes.get(i).end_ms);
+        }
+        return end - start_ms;
+    }
+
+    /**
+     * get the time in ms of each step, which is started after the graph started.
+     */
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(node.name);
+            if (node.start_ms < 0) {
+                sb.append(" skipped");
+                continue;
+            }
+            if (node.end_ms < 0) {
+                sb.append(" running");
+                continue;
+            }
+            sb.append(String.format(" +%d/%dms", node.start_ms - start_ms, node.end_ms - node.start_ms));
+            if (node.error != null) {
+                sb.append(String.format(" failed(%s)", node.error.getMessage()));
+            }
+        }
+        return String.format("%s %dms: %s", name, getElapsed(), sb.toString());
+    }
+
+    private void submit(final Node node) {
+        nb_running++;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runStep(node);
+            }
+        });
+    }
+
+    private void runStep(Node node) {
+        synchronized (this) {
+            node.start_ms = System.nanoTime() / 1000000;
+            node.thread = Thread.currentThread().getName();
+        }
+
+        Exception error = null;
+        try {
+            node.step.run();
+        } catch (Exception e) {
+            SrsLog.e(TAG, String.format("%s: step %s failed, e=%s", name, node.name, e.toString()));
+            error = e;
+        }
+
+        OnCompleteListener l = null;
+        boolean ok = false;
+        synchronized (this) {
+            node.end_ms = System.nanoTime() / 1000000;
+            node.error = error;
+            nb_running--;
+            nb_left--;
+            if (error != null) {
+                failed = true;
+            }
+
+            // start the ready steps, unless failed or canceled.
+            for (int i = 0; i < node.dependents.size(); i++) {
+                Node dep = node.dependents.get(i);
+                if (--dep.nb_deps == 0 && !failed && !canceled) {
+                    submit(dep);
+                }
+            }
+
+            if (nb_running == 0 && !completed) {
+                l = complete();
+                ok = !failed && !canceled && nb_left == 0;
+            }
+        }
+
+        if (l != null) {
+            l.onComplete(ok, getReport());
+        }
+    }
+
+    // mark completed and wakeup the waiters, return the listener to notify out of lock,
+    // which is the listener of cancel if canceled.
+    private OnCompleteListener complete() {
+        completed = true;
+        notifyAll();
+        return listener;
+    }
+}
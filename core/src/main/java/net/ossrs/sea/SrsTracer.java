@@ -0,0 +1,214 @@
+package net.ossrs.sea;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * the event tracer of the publishing pipeline, dumps to the Chrome trace json,
+ * which can be viewed by chrome://tracing or https://ui.perfetto.dev
+ * each thread records to its own preallocated ring, so there is no lock or
+ * allocation when recording, except the ring is created for the first event
+ * of the thread. when disabled, each call is a check of a static flag.
+ * @remark the ring keeps the latest events, the old events are overwritten.
+ */
+public class SrsTracer {
+    // the events, the arg of event is dts in ms, or bytes for socket write.
+    public final static int CAPTURE = 0;
+    public final static int CONVERT = 1;
+    public final static int ENCODE_SUBMIT = 2;
+    public final static int ENCODE_DRAIN = 3;
+    public final static int FLV_VIDEO = 4;
+    public final static int FLV_AUDIO = 5;
+    public final static int QUEUE_PUT = 6;
+    public final static int QUEUE_GET = 7;
+    public final static int SOCKET_WRITE = 8;
+    private final static String[] NAMES = {
+        "capture", "convert", "encode_submit", "encode_drain",
+        "flv_video", "flv_audio", "queue_put", "queue_get", "socket_write",
+    };
+    private final static String[] ARGS = {
+        "dts", "dts", "dts", "dts", "dts", "dts", "dts", "dts", "bytes",
+    };
+
+    private final static byte PHASE_BEGIN = 'B';
+    private final static byte PHASE_END = 'E';
+    private final static byte PHASE_INSTANT = 'i';
+
+    private final static int RING_SIZE = 16 * 1024;
+    private final static String TAG = "SrsTracer";
+
+    private static volatile boolean enabled;
+    private static ArrayList<Ring> rings = new ArrayList<Ring>();
+    private static ThreadLocal<Ring> local = new ThreadLocal<Ring>();
+
+    /**
+     * the events of a thread, written only by the thread.
+     */
+    private static class Ring {
+        public Thread owner;
+        public String thread;
+        public long tid;
+        public long[] times;
+        public int[] events;
+        public int[] args;
+        public byte[] phases;
+        // the total events written, the ring index is count % RING_SIZE.
+        public volatile long count;
+
+        public Ring() {
+            Thread t = Thread.currentThread();
+            owner = t;
+            thread = t.getName();
+            tid = t.getId();
+            times = new long[RING_SIZE];
+            events = new int[RING_SIZE];
+            args = new int[RING_SIZE];
+            phases = new byte[RING_SIZE];
+        }
+
+        // copy the latest events of ring in order.
+        public Ring(Ring src) {
+            owner = src.owner;
+            thread = src.thread;
+            tid = src.tid;
+
+            long total = src.count;
+            int n = (int) Math.min(total, RING_SIZE);
+            times = new long[n];
+            events = new int[n];
+            args = new int[n];
+            phases = new byte[n];
+            for (int j = 0; j < n; j++) {
+                int i = (int) ((total - n + j) % RING_SIZE);
+                times[j] = src.times[i];
+                events[j] = src.events[i];
+                args[j] = src.args[i];
+                phases[j] = src.phases[i];
+            }
+            count = n;
+        }
+    }
+
+    /**
+     * enable or disable the tracer, the recorded events are kept.
+     */
+    public static void setEnabled(boolean v) {
+        enabled = v;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void begin(int event, int arg) {
+        if (enabled) {
+            record(event, arg, PHASE_BEGIN);
+        }
+    }
+
+    public static void end(int event, int arg) {
+        if (enabled) {
+            record(event, arg, PHASE_END);
+        }
+    }
+
+    public static void instant(int event, int arg) {
+        if (enabled) {
+            record(event, arg, PHASE_INSTANT);
+        }
+    }
+
+    private static void record(int event, int arg, byte phase) {
+        Ring ring = local.get();
+        if (ring == null) {
+            ring = new Ring();
+            local.set(ring);
+            synchronized (rings) {
+                rings.add(ring);
+            }
+        }
+
+        int i = (int) (ring.count % RING_SIZE);
+        ring.times[i] = System.nanoTime() / 1000;
+        ring.events[i] = event;
+        ring.args[i] = arg;
+        ring.phases[i] = phase;
+        ring.count++;
+    }
+
+    /**
+     * dump the events of all threads to the Chrome trace json, then clear them,
+     * and the rings of the dead threads are removed.
+     * @remark the events recorded while dumping maybe lost, so disable it before dump.
+     */
+    public static void dump(File file) throws IOException {
+        snapshot().write(file);
+    }
+
+    /**
+     * copy the events of all threads then clear them, and the rings of the dead threads
+     * are removed, so the file is written later in other thread, @see Snapshot.write
+     * @remark the events recorded while copying maybe lost, so disable it before snapshot.
+     */
+    public static Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        synchronized (rings) {
+            for (int r = rings.size() - 1; r >= 0; r--) {
+                Ring ring = rings.get(r);
+                snapshot.rings.add(0, new Ring(ring));
+                ring.count = 0;
+                if (!ring.owner.isAlive()) {
+                    rings.remove(r);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * the events copied from the rings, @see snapshot
+     */
+    public static class Snapshot {
+        private ArrayList<Ring> rings = new ArrayList<Ring>();
+
+        /**
+         * write the events to the Chrome trace json.
+         */
+        public void write(File file) throws IOException {
+            long nb_events = 0;
+            Writer w = new BufferedWriter(new FileWriter(file));
+            try {
+                w.write("{\"traceEvents\":[\n");
+                boolean first = true;
+                for (int r = 0; r < rings.size(); r++) {
+                    Ring ring = rings.get(r);
+
+                    // the thread name for viewer.
+                    if (!first) {
+                        w.write(",\n");
+                    }
+                    first = false;
+                    w.write(String.format("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                        ring.tid, ring.thread.replace("\"", "'")));
+
+                    for (int i = 0; i < ring.count; i++) {
+                        int event = ring.events[i];
+                        w.write(String.format(",\n{\"name\":\"%s\",\"ph\":\"%c\",\"ts\":%d,\"pid\":1,\"tid\":%d,%s\"args\":{\"%s\":%d}}",
+                            NAMES[event], (char) ring.phases[i], ring.times[i], ring.tid,
+                            (ring.phases[i] == PHASE_INSTANT) ? "\"s\":\"t\"," : "",
+                            ARGS[event], ring.args[i]));
+                        nb_events++;
+                    }
+                }
+                w.write("\n]}\n");
+            } finally {
+                w.close();
+            }
+            SrsLog.i(TAG, String.format("dump %d events of %d threads to %s", nb_events, rings.size(), file));
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package net.ossrs.sea;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * remux the flv tags to MPEG-TS, for SRS to deliver HLS without remux.
+ * the video is h.264 in annexb, the AVCC NALUs of flv tag are converted to annexb
+ * in place, and the sps/pps is inserted before each keyframe; the audio is aac in
+ * ADTS, one frame per PES; the PAT/PMT is written before each keyframe.
+ * the packets are built in a preallocated buffer, without allocation per packet.
+ * @see ISO_IEC_13818-1 MPEG-2 Systems, aac-iso-13818-7.pdf for ADTS.
+ */
+public class SrsTsMuxer implements SrsHttpFlv.SrsFrameMuxer {
+    private SrsHttpFlv.SrsUtils utils;
+
+    // the sps and pps in annexb, from the avc sequence header.
+    private byte[] sps_pps;
+    // the AudioSpecificConfig, from the aac sequence header.
+    private int aac_object;
+    private int aac_sample_rate_index;
+    private int aac_channels;
+    private boolean aac_ok;
+
+    // the continuity counter of each pid.
+    private int cc_pat;
+    private int cc_pmt;
+    private int cc_video;
+    private int cc_audio;
+    private boolean pmt_ok;
+
+    // the buffer of packets, written to stream when full or at the end of frame.
+    private byte[] packets;
+    private int nb_packets;
+
+    // the PES to packetize, the header and at most 3 pieces of payload.
+    private byte[] pes_header;
+    private int nb_pes_header;
+    private byte[] adts;
+    private byte[][] pieces;
+    private int[] piece_offsets;
+    private int[] piece_sizes;
+    private int nb_pieces;
+    // the read cursor of PES.
+    private int cursor_piece;
+    private int cursor_pos;
+
+    private final static int TS_PACKET_SIZE = 188;
+    private final static int TS_PACKETS_PER_WRITE = 64;
+    private final static int PID_PMT = 0x1001;
+    private final static int PID_VIDEO = 0x100;
+    private final static int PID_AUDIO = 0x101;
+    // the stream type in PMT, @see ISO_IEC_13818-1 Table 2-29.
+    private final static int STREAM_TYPE_AVC = 0x1b;
+    private final static int STREAM_TYPE_AAC = 0x0f;
+    private final static int STREAM_ID_VIDEO = 0xe0;
+    private final static int STREAM_ID_AUDIO = 0xc0;
+    private final static byte[] AUD = {0x00, 0x00, 0x00, 0x01, 0x09, (byte) 0xf0};
+    private final static int[] CRC_TABLE = crc32_table();
+    private final static String TAG = "SrsTs";
+
+    /**
+     * constructor.
+     * @param u the utils for the aac profile.
+     */
+    public SrsTsMuxer(SrsHttpFlv.SrsUtils u) {
+        utils = u;
+        packets = new byte[TS_PACKET_SIZE * TS_PACKETS_PER_WRITE];
+        pes_header = new byte[19];
+        adts = new byte[7];
+        pieces = new byte[3][];
+        piece_offsets = new int[3];
+        piece_sizes = new int[3];
+    }
+
+    /**
+     * reset for a new stream, the PAT/PMT is written again.
+     */
+    @Override
+    public void reset() {
+        nb_packets = 0;
+        pmt_ok = false;
+    }
+
+    /**
+     * write the flv tag as TS packets.
+     * @remark the NALUs of video tag is converted to annexb in place, so the tag
+     *      must not be used after written.
+     */
+    @Override
+    public void write(OutputStream os, SrsHttpFlv.SrsFlvFrame frame) throws IOException {
+        byte[] tag = frame.tag.frame.array();
+        int size = frame.tag.size;
+
+        if (frame.is_video()) {
+            if (size < 5) {
+                return;
+            }
+            if (frame.avc_aac_type == SrsHttpFlv.SrsCodecVideoAVCType.SequenceHeader) {
+                parseAvcc(tag, 5, size - 5);
+                return;
+            }
+            if (frame.avc_aac_type != SrsHttpFlv.SrsCodecVideoAVCType.NALU || sps_pps == null) {
+                return;
+            }
+
+            // the stream starts with PAT/PMT and keyframe.
+            if (frame.is_keyframe()) {
+                writePsi(os);
+                pmt_ok = true;
+            }
+            if (!pmt_ok) {
+                return;
+            }
+
+            // CompositionTime SI24
+            int cts = ((tag[2] & 0xff) << 16) | ((tag[3] & 0xff) << 8) | (tag[4] & 0xff);
+            if ((cts & 0x800000) != 0) {
+                cts |= 0xff000000;
+            }
+            if (!avcc2annexb(tag, 5, size)) {
+                SrsLog.w(TAG, String.format("ts: drop invalid avc frame %dB, dts=%d", size, frame.dts));
+                return;
+            }
+
+            nb_pieces = 0;
+            addPiece(AUD, 0, AUD.length);
+            if (frame.is_keyframe()) {
+                addPiece(sps_pps, 0, sps_pps.length);
+            }
+            addPiece(tag, 5, size - 5);
+
+            long dts = (long) frame.dts * 90;
+            long pts = (long) (frame.dts + cts) * 90;
+            writePesHeader(STREAM_ID_VIDEO, pts, dts, false);
+            writePes(os, PID_VIDEO, true, frame.is_keyframe(), dts);
+        } else if (frame.is_audio()) {
+            if (size < 2) {
+                return;
+            }
+            if (frame.avc_aac_type == 0) {
+                parseAsc(tag, 2, size - 2);
+                return;
+            }
+            if (!pmt_ok || !aac_ok) {
+                return;
+            }
+
+            int raw = size - 2;
+            writeAdtsHeader(raw);
+
+            nb_pieces = 0;
+            addPiece(adts, 0, adts.length);
+            addPiece(tag, 2, raw);
+
+            long pts = (long) frame.dts * 90;
+            writePesHeader(STREAM_ID_AUDIO, pts, pts, true);
+            writePes(os, PID_AUDIO, false, false, 0);
+        }
+
+        // a frame in a write to stream.
+        flushPackets(os);
+    }
+
+    // parse the AVCDecoderConfigurationRecord to sps/pps in annexb.
+    // @see: 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
+    private void parseAvcc(byte[] b, int off, int len) {
+        // 5bytes header, 1byte numOfSequenceParameterSets, 2bytes sequenceParameterSetLength
+        if (len < 8) {
+            return;
+        }
+        int p = off + 6;
+        int sps_size = ((b[p] & 0xff) << 8) | (b[p + 1] & 0xff);
+        p += 2;
+        int sps_off = p;
+        p += sps_size;
+        // 1byte numOfPictureParameterSets, 2bytes pictureParameterSetLength
+        if (p + 3 > off + len) {
+            return;
+        }
+        int pps_size = ((b[p + 1] & 0xff) << 8) | (b[p + 2] & 0xff);
+        p += 3;
+        if (p + pps_size > off + len) {
+            return;
+        }
+
+        sps_pps = new byte[4 + sps_size + 4 + pps_size];
+        sps_pps[3] = 0x01;
+        System.arraycopy(b, sps_off, sps_pps, 4, sps_size);
+        sps_pps[4 + sps_size + 3] = 0x01;
+        System.arraycopy(b, p, sps_pps, 4 + sps_size + 4, pps_size);
+        SrsLog.i(TAG, String.format("ts: sps=%dB, pps=%dB", sps_size, pps_size));
+    }
+
+    // parse the AudioSpecificConfig for the ADTS header.
+    // @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf, page 33
+    private void parseAsc(byte[] b, int off, int len) {
+        if (len < 2) {
+            return;
+        }
+        aac_object = (b[off] >> 3) & 0x1f;
+        aac_sample_rate_index = ((b[off] & 0x07) << 1) | ((b[off + 1] >> 7) & 0x01);
+        aac_channels = (b[off + 1] >> 3) & 0x0f;
+        aac_ok = true;
+    }
+
+    // convert the NALUs from AVCC(4B NALUnitLength) to annexb(4B start code) in place.
+    private static boolean avcc2annexb(byte[] b, int off, int end) {
+        int p = off;
+        while (p < end) {
+            if (end - p < 4) {
+                return false;
+            }
+            int size = ((b[p] & 0xff) << 24) | ((b[p + 1] & 0xff) << 16) | ((b[p + 2] & 0xff) << 8) | (b[p + 3] & 0xff);
+            if (size < 0 || size > end - p - 4) {
+                return false;
+            }
+            b[p] = 0x00;
+            b[p + 1] = 0x00;
+            b[p + 2] = 0x00;
+            b[p + 3] = 0x01;
+            p += 4 + size;
+        }
+        return true;
+    }
+
+    // the 7bytes ADTS header, without crc.
+    // @see 6.2 Audio Data Transport Stream, aac-iso-13818-7.pdf, page 26
+    private void writeAdtsHeader(int raw) {
+        int profile = utils.srs_codec_aac_rtmp2ts(aac_object);
+        int frame_length = 7 + raw;
+
+        // syncword 0xfff, ID 0(MPEG-4), layer 0, protection_absent 1
+        adts[0] = (byte) 0xff;
+        adts[1] = (byte) 0xf1;
+        // profile 2bits, sampling_frequency_index 4bits, private_bit 1bit, channel_configuration 3bits
+        adts[2] = (byte) (((profile << 6) & 0xc0) | ((aac_sample_rate_index << 2) & 0x3c) | ((aac_channels >> 2) & 0x01));
+        // original_copy, home, copyright_identification_bit, copyright_identification_start, frame_length 13bits
+        adts[3] = (byte) (((aac_channels << 6) & 0xc0) | ((frame_length >> 11) & 0x03));
+        adts[4] = (byte) (frame_length >> 3);
+        // adts_buffer_fullness 0x7ff, number_of_raw_data_blocks_in_frame 0
+        adts[5] = (byte) (((frame_length << 5) & 0xe0) | 0x1f);
+        adts[6] = (byte) 0xfc;
+    }
+
+    private void addPiece(byte[] b, int off, int len) {
+        pieces[nb_pieces] = b;
+        piece_offsets[nb_pieces] = off;
+        piece_sizes[nb_pieces] = len;
+        nb_pieces++;
+    }
+
+    // @see 2.4.3.6 PES packet, ISO_IEC_13818-1.
+    private void writePesHeader(int stream_id, long pts, long dts, boolean bounded) {
+        boolean with_dts = pts != dts;
+        int header_data_length = with_dts ? 10 : 5;
+
+        int payload = 0;
+        for (int i = 0; i < nb_pieces; i++) {
+            payload += piece_sizes[i];
+        }
+        // the video PES is unbounded, for the frame maybe larger than 64KB.
+        int pes_packet_length = 3 + header_data_length + payload;
+        if (!bounded || pes_packet_length > 0xffff) {
+            pes_packet_length = 0;
+        }
+
+        byte[] h = pes_header;
+        h[0] = 0x00;
+        h[1] = 0x00;
+        h[2] = 0x01;
+        h[3] = (byte) stream_id;
+        h[4] = (byte) (pes_packet_length >> 8);
+        h[5] = (byte) pes_packet_length;
+        // '10', no scrambling, no priority, data_alignment_indicator, no copyright, original
+        h[6] = (byte) 0x84;
+        // PTS_DTS_flags
+        h[7] = (byte) (with_dts ? 0xc0 : 0x80);
+        h[8] = (byte) header_data_length;
+        writeTimestamp(h, 9, with_dts ? 0x03 : 0x02, pts);
+        if (with_dts) {
+            writeTimestamp(h, 14, 0x01, dts);
+        }
+        nb_pes_header = 9 + header_data_length;
+
+        cursor_piece = -1;
+        cursor_pos = 0;
+    }
+
+    // the 33bits timestamp in 5bytes with markers.
+    private static void writeTimestamp(byte[] b, int p, int prefix, long ts) {
+        b[p] = (byte) (((prefix << 4) & 0xf0) | (((ts >> 30) & 0x07) << 1) | 0x01);
+        b[p + 1] = (byte) (ts >> 22);
+        b[p + 2] = (byte) (((ts >> 14) & 0xfe) | 0x01);
+        b[p + 3] = (byte) (ts >> 7);
+        b[p + 4] = (byte) (((ts << 1) & 0xfe) | 0x01);
+    }
+
+    // the bytes of PES not packetized.
+    private int pesRemaining() {
+        int n = 0;
+        if (cursor_piece < 0) {
+            n += nb_pes_header - cursor_pos;
+            for (int i = 0; i < nb_pieces; i++) {
+                n += piece_sizes[i];
+            }
+            return n;
+        }
+        n += piece_sizes[cursor_piece] - cursor_pos;
+        for (int i = cursor_piece + 1; i < nb_pieces; i++) {
+            n += piece_sizes[i];
+        }
+        return n;
+    }
+
+    // copy n bytes of PES to packet at p.
+    private void pesRead(byte[] dst, int p, int n) {
+        while (n > 0) {
+            byte[] src = (cursor_piece < 0) ? pes_header : pieces[cursor_piece];
+            int off = (cursor_piece < 0) ? 0 : piece_offsets[cursor_piece];
+            int size = (cursor_piece < 0) ? nb_pes_header : piece_sizes[cursor_piece];
+
+            int copy = Math.min(n, size - cursor_pos);
+            System.arraycopy(src, off + cursor_pos, dst, p, copy);
+            p += copy;
+            n -= copy;
+            cursor_pos += copy;
+
+            if (cursor_pos >= size) {
+                cursor_piece++;
+                cursor_pos = 0;
+            }
+        }
+    }
+
+    // packetize the PES, the first packet has the PCR of video.
+    private void writePes(OutputStream os, int pid, boolean pcr, boolean keyframe, long pcr_base) throws IOException {
+        boolean first = true;
+        int remaining = pesRemaining();
+
+        while (remaining > 0) {
+            int p = allocPacket(os);
+
+            // the flags and PCR in adaptation field of first packet.
+            int af_fixed = 0;
+            if (first && (pcr || keyframe)) {
+                af_fixed = pcr ? 7 : 1;
+            }
+            int max_payload = 184 - ((af_fixed > 0) ? 1 + af_fixed : 0);
+            int payload = Math.min(remaining, max_payload);
+
+            // the adaptation_field_length, -1 for no adaptation field, stuffing for the last packet.
+            int af_length = -1;
+            if (af_fixed > 0) {
+                af_length = af_fixed + max_payload - payload;
+            } else if (payload < 184) {
+                af_length = 184 - payload - 1;
+            }
+
+            int cc = (pid == PID_VIDEO) ? cc_video++ : cc_audio++;
+            packets[p] = 0x47;
+            packets[p + 1] = (byte) ((first ? 0x40 : 0x00) | ((pid >> 8) & 0x1f));
+            packets[p + 2] = (byte) pid;
+            packets[p + 3] = (byte) (((af_length >= 0) ? 0x30 : 0x10) | (cc & 0x0f));
+
+            int q = p + 4;
+            if (af_length >= 0) {
+                packets[q++] = (byte) af_length;
+                int af_end = q + af_length;
+                if (af_length > 0) {
+                    int flags = 0;
+                    if (af_fixed > 0 && keyframe) {
+                        flags |= 0x40; // random_access_indicator
+                    }
+                    if (af_fixed > 0 && pcr) {
+                        flags |= 0x10; // PCR_flag
+                    }
+                    packets[q++] = (byte) flags;
+                    if (af_fixed > 0 && pcr) {
+                        // program_clock_reference_base 33bits, reserved 6bits, extension 9bits
+                        packets[q++] = (byte) (pcr_base >> 25);
+                        packets[q++] = (byte) (pcr_base >> 17);
+                        packets[q++] = (byte) (pcr_base >> 9);
+                        packets[q++] = (byte) (pcr_base >> 1);
+                        packets[q++] = (byte) (((pcr_base << 7) & 0x80) | 0x7e);
+                        packets[q++] = 0x00;
+                    }
+                }
+                while (q < af_end) {
+                    packets[q++] = (byte) 0xff;
+                }
+            }
+
+            pesRead(packets, q, payload);
+            remaining -= payload;
+            first = false;
+        }
+    }
+
+    // the PAT and PMT, each in a packet.
+    private void writePsi(OutputStream os) throws IOException {
+        // @see 2.4.4.3 Program association Table, ISO_IEC_13818-1.
+        int p = allocPacket(os);
+        int q = writePsiHeader(p, 0x0000, cc_pat++, 0x00, 13, 0x0001);
+        // program_number 1, program_map_PID
+        packets[q++] = 0x00;
+        packets[q++] = 0x01;
+        packets[q++] = (byte) (0xe0 | ((PID_PMT >> 8) & 0x1f));
+        packets[q++] = (byte) PID_PMT;
+        writePsiTail(p, q);
+
+        // @see 2.4.4.8 Program Map Table, ISO_IEC_13818-1.
+        int nb_streams = aac_ok ? 2 : 1;
+        p = allocPacket(os);
+        q = writePsiHeader(p, PID_PMT, cc_pmt++, 0x02, 9 + 5 * nb_streams + 4, 0x0001);
+        // PCR_PID
+        packets[q++] = (byte) (0xe0 | ((PID_VIDEO >> 8) & 0x1f));
+        packets[q++] = (byte) PID_VIDEO;
+        // program_info_length 0
+        packets[q++] = (byte) 0xf0;
+        packets[q++] = 0x00;
+        q = writePmtStream(q, STREAM_TYPE_AVC, PID_VIDEO);
+        if (aac_ok) {
+            q = writePmtStream(q, STREAM_TYPE_AAC, PID_AUDIO);
+        }
+        writePsiTail(p, q);
+    }
+
+    // the TS header, pointer_field and the section header to the id, return the position of section data.
+    private int writePsiHeader(int p, int pid, int cc, int table_id, int section_length, int id) {
+        packets[p] = 0x47;
+        packets[p + 1] = (byte) (0x40 | ((pid >> 8) & 0x1f));
+        packets[p + 2] = (byte) pid;
+        packets[p + 3] = (byte) (0x10 | (cc & 0x0f));
+        // pointer_field
+        packets[p + 4] = 0x00;
+        packets[p + 5] = (byte) table_id;
+        // section_syntax_indicator 1, '0', reserved '11', section_length 12bits
+        packets[p + 6] = (byte) (0xb0 | ((section_length >> 8) & 0x0f));
+        packets[p + 7] = (byte) section_length;
+        packets[p + 8] = (byte) (id >> 8);
+        packets[p + 9] = (byte) id;
+        // reserved '11', version_number 0, current_next_indicator 1
+        packets[p + 10] = (byte) 0xc1;
+        // section_number, last_section_number
+        packets[p + 11] = 0x00;
+        packets[p + 12] = 0x00;
+        return p + 13;
+    }
+
+    private int writePmtStream(int q, int stream_type, int pid) {
+        packets[q++] = (byte) stream_type;
+        packets[q++] = (byte) (0xe0 | ((pid >> 8) & 0x1f));
+        packets[q++] = (byte) pid;
+        // ES_info_length 0
+        packets[q++] = (byte) 0xf0;
+        packets[q++] = 0x00;
+        return q;
+    }
+
+    // the CRC32 of section from table_id, and the stuffing bytes.
+    private void writePsiTail(int p, int q) {
+        int crc = crc32(packets, p + 5, q - p - 5);
+        packets[q++] = (byte) (crc >> 24);
+        packets[q++] = (byte) (crc >> 16);
+        packets[q++] = (byte) (crc >> 8);
+        packets[q++] = (byte) crc;
+        while (q < p + TS_PACKET_SIZE) {
+            packets[q++] = (byte) 0xff;
+        }
+    }
+
+    // get the position of a free packet, write the packets to stream when full.
+    private int allocPacket(OutputStream os) throws IOException {
+        if (nb_packets >= TS_PACKETS_PER_WRITE) {
+            flushPackets(os);
+        }
+        return TS_PACKET_SIZE * nb_packets++;
+    }
+
+    private void flushPackets(OutputStream os) throws IOException {
+        if (nb_packets > 0) {
+            os.write(packets, 0, TS_PACKET_SIZE * nb_packets);
+            nb_packets = 0;
+        }
+    }
+
+    // the CRC32 of MPEG-2, polynomial 0x04c11db7, MSB first, no reflect.
+    private static int crc32(byte[] b, int off, int len) {
+        int crc = 0xffffffff;
+        for (int i = off; i < off + len; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int[] crc32_table() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int v = i << 24;
+            for (int j = 0; j < 8; j++) {
+                v = ((v & 0x80000000) != 0) ? (v << 1) ^ 0x04c11db7 : v << 1;
+            }
+            table[i] = v;
+        }
+        return table;
+    }
+}
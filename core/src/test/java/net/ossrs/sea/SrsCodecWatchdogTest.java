@@ -0,0 +1,123 @@
+package net.ossrs.sea;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * feed the watchdog with the time in ms of input and output, as the encoder thread does.
+ */
+public class SrsCodecWatchdogTest {
+    private final static int THRESHOLD_MS = 2000;
+
+    @Test
+    public void outputInTimeIsNotStalled() {
+        SrsCodecWatchdog w = new SrsCodecWatchdog("vencoder", THRESHOLD_MS);
+        for (long now = 0; now < 10000; now += 50) {
+            w.onInput(now);
+            assertFalse(w.isStalled(now));
+            // the output of the previous input, with the latency of encoder.
+            w.onOutput(now + 30);
+        }
+        assertEquals(0, w.getStalls());
+    }
+
+    @Test
+    public void stalledWhenNoOutputForThreshold() {
+        SrsCodecWatchdog w = new SrsCodecWatchdog("vencoder", THRESHOLD_MS);
+        w.onInput(1000);
+        w.onOutput(1030);
+
+        // the inputs are queued, but never followed by output, since the first of them.
+        for (long now = 1040; now < 1040 + THRESHOLD_MS; now += 50) {
+            w.onInput(now);
+            assertFalse(w.isStalled(now));
+        }
+        assertTrue(w.isStalled(1040 + THRESHOLD_MS));
+    }
+
+    @Test
+    public void noInputIsNotStalled() {
+        SrsCodecWatchdog w = new SrsCodecWatchdog("vencoder", THRESHOLD_MS);
+        w.onInput(0);
+        w.onOutput(30);
+        // for example, the camera is paused, no input and no output.
+        assertFalse(w.isStalled(60000));
+    }
+
+    @Test
+    public void inputTimeoutsAreProgress() {
+        SrsCodecWatchdog w = new SrsCodecWatchdog("vencoder", THRESHOLD_MS);
+        // the encoder never returns an input buffer.
+        for (long now = 0; now < THRESHOLD_MS; now += 200) {
+            w.onInputTimeout(now);
+            assertFalse(w.isStalled(now));
+        }
+        assertTrue(w.isStalled(THRESHOLD_MS));
+        assertEquals(THRESHOLD_MS / 200, w.getInputTimeouts());
+    }
+
+    @Test
+    public void errorStallsRightNow() {
+        SrsCodecWatchdog w = new SrsCodecWatchdog("vencoder", THRESHOLD_MS);
+        w.onError(5000);
+        assertTrue(w.isStalled(5000));
+    }
+
+    @Test
+    public void disabledNeverStalls() {
+        SrsCodecWatchdog w = new SrsCodecWatchdog("vencoder", 0);
+        w.onInput(0);
+        w.onError(10);
+        assertFalse(w.isStalled(60000));
+    }
+
+    @Test
+    public void recoveryFromStallToFirstOutput() {
+        SrsCodecWatchdog w = new SrsCodecWatchdog("vencoder", THRESHOLD_MS);
+        w.onInput(900);
+        w.onOutput(1000);
+        w.onInput(1100);
+        assertTrue(w.isStalled(3100));
+
+        // the new encoder takes 150ms to recreate, the first output after 100ms more.
+        w.onStall(3100);
+        w.onRecreated(150);
+        assertFalse(w.isStalled(3250));
+        w.onInput(3250);
+        w.onOutput(3350);
+
+        assertEquals(1, w.getStalls());
+        assertEquals(1, w.getRecovered());
+        assertEquals(150, w.getAverageRecreateTime());
+        assertEquals(250, w.getAverageRecoveryTime());
+        assertEquals(250, w.getMaxRecoveryTime());
+        // from the last output of the stalled encoder.
+        assertEquals(2350, w.getLastOutage());
+    }
+
+    @Test
+    public void failedRecreateIsDetectedAgain() {
+        SrsCodecWatchdog w = new SrsCodecWatchdog("vencoder", THRESHOLD_MS);
+        w.onInput(0);
+        w.onOutput(100);
+        w.onInput(200);
+        w.onStall(2200);
+
+        // the recreate failed, stalled again after the threshold since the stall.
+        assertFalse(w.isStalled(2200 + THRESHOLD_MS - 1));
+        assertTrue(w.isStalled(2200 + THRESHOLD_MS));
+        w.onStall(2200 + THRESHOLD_MS);
+        w.onRecreated(100);
+        w.onInput(4400);
+        w.onOutput(4500);
+
+        // the recovery is from the first stall detected.
+        assertEquals(2, w.getStalls());
+        assertEquals(1, w.getRecovered());
+        assertEquals(2300, w.getMaxRecoveryTime());
+        assertEquals(4400, w.getLastOutage());
+    }
+}
@@ -0,0 +1,118 @@
+package net.ossrs.sea;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * admit the frames of a camera at the time in ms, and update the pressure as the camera callback.
+ */
+public class SrsFramePacerTest {
+    private final static int FPS = 20;
+    private final static int FPS_MIN = 5;
+
+    @Test
+    public void admitAtTargetFps() {
+        SrsFramePacer p = new SrsFramePacer(FPS, FPS_MIN);
+        int admitted = camera(p, 30, 10000);
+
+        assertTrue(String.format("admitted %d", admitted), admitted >= 19 * 10 && admitted <= 20 * 10 + 1);
+        assertEquals(admitted, p.getAdmitted());
+        assertEquals(300 - admitted, p.getDropped());
+    }
+
+    @Test
+    public void admitAllWhenCameraSlower() {
+        SrsFramePacer p = new SrsFramePacer(FPS, FPS_MIN);
+        assertEquals(150, camera(p, 15, 10000));
+        assertEquals(0, p.getDropped());
+    }
+
+    @Test
+    public void restartScheduleAfterStall() {
+        SrsFramePacer p = new SrsFramePacer(FPS, FPS_MIN);
+        assertTrue(p.admit(0));
+        // the camera stalled for 1s, no burst to catch up.
+        assertTrue(p.admit(1000));
+        assertFalse(p.admit(1010));
+        assertTrue(p.admit(1050));
+    }
+
+    @Test
+    public void decreaseToFloorWhenBackingUp() {
+        SrsFramePacer p = new SrsFramePacer(FPS, FPS_MIN);
+        p.update(1, 0);
+        assertEquals(FPS * 0.75, p.getFps(), 0.001);
+
+        for (int i = 0; i < 20; i++) {
+            p.update(1, 0);
+        }
+        assertEquals(FPS_MIN, p.getFps(), 0.001);
+
+        // admit at the floor fps.
+        int admitted = camera(p, 30, 10000);
+        assertTrue(String.format("admitted %d", admitted), admitted >= 49 && admitted <= 51);
+    }
+
+    @Test
+    public void recoverSlowly() {
+        SrsFramePacer p = new SrsFramePacer(FPS, FPS_MIN);
+        for (int i = 0; i < 20; i++) {
+            p.update(1, 0);
+        }
+
+        // 5% of target fps each update.
+        p.update(0, 0);
+        assertEquals(FPS_MIN + FPS * 0.05, p.getFps(), 0.001);
+        for (int i = 0; i < 20; i++) {
+            p.update(0, 0);
+        }
+        assertEquals(FPS, p.getFps(), 0.001);
+    }
+
+    @Test
+    public void decreaseByNetworkOrMemory() {
+        SrsFramePacer p = new SrsFramePacer(FPS, FPS_MIN);
+        // the default threshold of network is a second of frames.
+        p.update(0, FPS);
+        assertEquals(FPS, p.getFps(), 0.001);
+        p.update(0, FPS + 1);
+        assertTrue(p.getFps() < FPS);
+
+        SrsFramePacer m = new SrsFramePacer(FPS, FPS_MIN);
+        m.update(0, 0, true);
+        assertTrue(m.getFps() < FPS);
+    }
+
+    @Test
+    public void customThresholds() {
+        SrsFramePacer p = new SrsFramePacer(FPS, FPS_MIN);
+        p.setThresholds(3, 100);
+        p.update(2, 100);
+        assertEquals(FPS, p.getFps(), 0.001);
+        p.update(3, 0);
+        assertTrue(p.getFps() < FPS);
+    }
+
+    @Test
+    public void floorNotAboveTarget() {
+        SrsFramePacer p = new SrsFramePacer(10, 15);
+        for (int i = 0; i < 20; i++) {
+            p.update(1, 0);
+        }
+        assertEquals(10, p.getFps(), 0.001);
+    }
+
+    // the camera callbacks at fps for the duration, return the frames admitted.
+    private static int camera(SrsFramePacer p, int fps, int duration_ms) {
+        int admitted = 0;
+        for (int i = 0; i < duration_ms * fps / 1000; i++) {
+            if (p.admit(i * 1000L / fps)) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+}
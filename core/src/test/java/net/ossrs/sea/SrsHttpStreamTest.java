@@ -0,0 +1,185 @@
+package net.ossrs.sea;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * post to a local server, which responds the status after the request header.
+ */
+public class SrsHttpStreamTest {
+    private ServerSocket server;
+    private Thread acceptor;
+    private volatile String response;
+
+    private final static int WAIT_MS = 3000;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        respond(server.accept());
+                    }
+                } catch (IOException e) {
+                    // closed.
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        acceptor.join();
+    }
+
+    @Test
+    public void errorStatusIsNotAlive() throws Exception {
+        response = "HTTP/1.1 403 Forbidden\r\nConnection: close\r\n\r\n";
+        SrsHttpStream s = new SrsHttpStream(url());
+        s.connect();
+        try {
+            assertTrue(waitNotAlive(s));
+            assertEquals(403, s.getStatus());
+        } finally {
+            s.close();
+        }
+    }
+
+    @Test
+    public void okStatusIsAlive() throws Exception {
+        response = "HTTP/1.1 200 OK\r\n\r\n";
+        SrsHttpStream s = new SrsHttpStream(url());
+        s.connect();
+        try {
+            assertFalse(waitNotAlive(s));
+            assertEquals(200, s.getStatus());
+        } finally {
+            s.close();
+        }
+    }
+
+    @Test
+    public void errorStatusIsNotAliveInLoop() throws Exception {
+        response = "HTTP/1.1 503 Service Unavailable\r\n\r\n";
+        final SrsEventLoop loop = new SrsEventLoop(0);
+        loop.start();
+        try {
+            final SrsHttpStream s = new SrsHttpStream(url());
+            s.setEventLoop(loop);
+            final CountDownLatch done = new CountDownLatch(1);
+            final int[] status = new int[1];
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        s.connect();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    poll(loop, s, status, done, System.nanoTime() / 1000000 + WAIT_MS);
+                }
+            });
+            assertTrue(done.await(WAIT_MS * 2, TimeUnit.MILLISECONDS));
+            assertEquals(503, status[0]);
+        } finally {
+            loop.stop();
+        }
+    }
+
+    @Test
+    public void parseStatusLine() {
+        assertEquals(200, SrsHttpStream.parseStatus("HTTP/1.1 200 OK"));
+        assertEquals(404, SrsHttpStream.parseStatus("HTTP/1.0 404 Not Found"));
+        assertEquals(-1, SrsHttpStream.parseStatus("ICY 200 OK"));
+        assertEquals(-1, SrsHttpStream.parseStatus("HTTP/1.1"));
+        assertEquals(-1, SrsHttpStream.parseStatus("HTTP/1.1 abc"));
+    }
+
+    // in the loop thread, check the stream until closed by the response or timeout.
+    private static void poll(final SrsEventLoop loop, final SrsHttpStream s, final int[] status,
+        final CountDownLatch done, final long deadline_ms) {
+        if (!s.isAlive() || System.nanoTime() / 1000000 > deadline_ms) {
+            status[0] = s.getStatus();
+            try {
+                s.close();
+            } catch (IOException e) {
+            }
+            done.countDown();
+            return;
+        }
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll(loop, s, status, done, deadline_ms);
+            }
+        }, 10);
+    }
+
+    // read the request header, then respond and keep the connection until the client closed.
+    private void respond(final Socket s) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream is = s.getInputStream();
+                    int matched = 0;
+                    byte[] eoh = {'\r', '\n', '\r', '\n'};
+                    while (matched < eoh.length) {
+                        int b = is.read();
+                        if (b < 0) {
+                            return;
+                        }
+                        matched = (b == eoh[matched]) ? matched + 1 : ((b == '\r') ? 1 : 0);
+                    }
+                    s.getOutputStream().write(response.getBytes("UTF-8"));
+                    s.getOutputStream().flush();
+                    while (is.read() >= 0) {
+                    }
+                } catch (IOException e) {
+                } finally {
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private URL url() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getLocalPort() + "/live/sea.flv");
+    }
+
+    // wait until the stream is not alive, false when timeout.
+    private static boolean waitNotAlive(SrsHttpStream s) throws InterruptedException {
+        long deadline = System.nanoTime() / 1000000 + 500;
+        while (System.nanoTime() / 1000000 < deadline) {
+            if (!s.isAlive()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
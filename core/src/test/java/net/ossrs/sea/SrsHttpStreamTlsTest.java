@@ -0,0 +1,221 @@
+package net.ossrs.sea;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * post over https to a local TLS server, with a self-signed certificate of localhost
+ * generated by the keytool of the jvm, and trusted by the factory of the client.
+ */
+public class SrsHttpStreamTlsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private KeyStore keys;
+    private SSLServerSocket server;
+    private Thread acceptor;
+
+    private final static char[] PASSWORD = "sea-test".toCharArray();
+    private final static int WAIT_MS = 3000;
+
+    @Before
+    public void setUp() throws Exception {
+        File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+        Assume.assumeTrue(keytool.exists());
+
+        File ks = new File(tmp.getRoot(), "localhost.jks");
+        Process p = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "localhost",
+            "-keyalg", "RSA", "-keysize", "2048", "-validity", "1", "-dname", "CN=localhost",
+            "-keystore", ks.getPath(), "-storetype", "JKS",
+            "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+            .redirectErrorStream(true).start();
+        drain(p.getInputStream());
+        assertEquals(0, p.waitFor());
+
+        keys = KeyStore.getInstance("JKS");
+        FileInputStream fis = new FileInputStream(ks);
+        try {
+            keys.load(fis, PASSWORD);
+        } finally {
+            fis.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+            acceptor.join();
+        }
+    }
+
+    @Test
+    public void resumeTls12Session() throws Exception {
+        assertResumed("TLSv1.2");
+    }
+
+    @Test
+    public void resumeTls13Session() throws Exception {
+        Assume.assumeTrue(Arrays.asList(SSLContext.getDefault().getSupportedSSLParameters().getProtocols()).contains("TLSv1.3"));
+        assertResumed("TLSv1.3");
+    }
+
+    @Test
+    public void rejectMismatchedHost() throws Exception {
+        startServer("TLSv1.2");
+
+        // the certificate is trusted, but it is for localhost.
+        SrsHttpStream s = new SrsHttpStream(new URL("https://127.0.0.1:" + server.getLocalPort() + "/live/sea.flv"));
+        s.setSslSocketFactory(clientFactory());
+        s.setHostnameVerifier(new CommonNameVerifier());
+        try {
+            s.connect();
+            fail("connected to a host not in certificate");
+        } catch (SSLPeerUnverifiedException e) {
+        }
+        assertFalse(s.isAlive());
+    }
+
+    // connect twice by the same factory, the second handshake resumes the session of the first.
+    private void assertResumed(String protocol) throws Exception {
+        startServer(protocol);
+        SSLSocketFactory factory = clientFactory();
+
+        SrsHttpStream first = post(factory);
+        assertFalse(first.isResumed());
+        assertTrue(first.getHandshakeTime() >= 0);
+
+        // the creation time of session is in ms.
+        Thread.sleep(10);
+
+        SrsHttpStream second = post(factory);
+        assertTrue(second.isResumed());
+    }
+
+    // post a chunk, wait for the response, which is after the session ticket of TLS1.3.
+    private SrsHttpStream post(SSLSocketFactory factory) throws Exception {
+        SrsHttpStream s = new SrsHttpStream(new URL("https://localhost:" + server.getLocalPort() + "/live/sea.flv"));
+        s.setSslSocketFactory(factory);
+        s.setHostnameVerifier(new CommonNameVerifier());
+        s.connect();
+        try {
+            s.write(new byte[]{'F', 'L', 'V', 1});
+            s.flush();
+
+            long deadline = System.nanoTime() / 1000000 + WAIT_MS;
+            while (s.getStatus() == 0 && System.nanoTime() / 1000000 < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(200, s.getStatus());
+        } finally {
+            s.close();
+        }
+        return s;
+    }
+
+    private void startServer(String protocol) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, PASSWORD);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+
+        server = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(0);
+        server.setEnabledProtocols(new String[]{protocol});
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        respond((SSLSocket) server.accept());
+                    }
+                } catch (IOException e) {
+                    // closed.
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // trust the self-signed certificate only.
+    private SSLSocketFactory clientFactory() throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keys);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf.getTrustManagers(), null);
+        return ctx.getSocketFactory();
+    }
+
+    // respond 200 after the first bytes, then drain until the client closed.
+    private static void respond(final SSLSocket s) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream is = s.getInputStream();
+                    if (is.read() < 0) {
+                        return;
+                    }
+                    s.getOutputStream().write("HTTP/1.1 200 OK\r\n\r\n".getBytes("UTF-8"));
+                    s.getOutputStream().flush();
+                    drain(is);
+                } catch (IOException e) {
+                } finally {
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void drain(InputStream is) throws IOException {
+        byte[] b = new byte[1024];
+        while (is.read(b) >= 0) {
+        }
+    }
+
+    // the host must be the common name of the peer certificate.
+    private static class CommonNameVerifier implements HostnameVerifier {
+        @Override
+        public boolean verify(String host, SSLSession session) {
+            try {
+                X509Certificate cert = (X509Certificate) session.getPeerCertificates()[0];
+                return cert.getSubjectX500Principal().getName().equals("CN=" + host);
+            } catch (SSLPeerUnverifiedException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package net.ossrs.sea;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * build the latency SEI and parse it back, with the emulation prevention and other SEI messages.
+ */
+public class SrsLatencySeiTest {
+    @Test
+    public void parseWhatBuilt() {
+        long[] times = {0, 1, 1445580000000L, 0x0000010000000300L, Long.MAX_VALUE};
+        long[] sequences = {0, 3, 0x00000300L, 0xffffffffL};
+        for (int i = 0; i < times.length; i++) {
+            for (int j = 0; j < sequences.length; j++) {
+                byte[] nalu = SrsLatencySei.build(times[i], sequences[j]);
+                assertEquals(SrsLatencySei.NALU_SEI, nalu[0]);
+
+                SrsLatencySei.Timestamp ts = SrsLatencySei.parse(nalu, 0, nalu.length);
+                assertNotNull(ts);
+                assertEquals(times[i], ts.capture_ms);
+                assertEquals(sequences[j], ts.sequence);
+            }
+        }
+    }
+
+    @Test
+    public void noStartCodeInNalu() {
+        // the zeros of time and sequence require the emulation prevention.
+        byte[] nalu = SrsLatencySei.build(0, 0);
+        assertTrue(nalu.length > 1 + 2 + 28 + 1);
+        for (int i = 2; i < nalu.length; i++) {
+            boolean emulated = nalu[i - 2] == 0 && nalu[i - 1] == 0 && (nalu[i] & 0xff) <= 3;
+            assertTrue(String.format("emulated start code at %d", i), !emulated || nalu[i] == 3);
+        }
+
+        SrsLatencySei.Timestamp ts = SrsLatencySei.parse(nalu, 0, nalu.length);
+        assertNotNull(ts);
+        assertEquals(0, ts.capture_ms);
+        assertEquals(0, ts.sequence);
+    }
+
+    @Test
+    public void parseInAccessUnit() {
+        byte[] sei = SrsLatencySei.build(1445580000123L, 7);
+        byte[] au = new byte[4 + sei.length + 6];
+        au[3] = 1;
+        System.arraycopy(sei, 0, au, 4, sei.length);
+        au[4 + sei.length + 3] = 1;
+        au[4 + sei.length + 4] = 0x41;
+
+        SrsLatencySei.Timestamp ts = SrsLatencySei.parse(au, 4, sei.length);
+        assertNotNull(ts);
+        assertEquals(1445580000123L, ts.capture_ms);
+        assertEquals(7, ts.sequence);
+    }
+
+    @Test
+    public void skipOtherSeiMessages() {
+        byte[] sei = SrsLatencySei.build(1000, 1);
+        // the pic_timing of type 1 with 2B payload, then ours.
+        byte[] nalu = new byte[3 + 2 + sei.length - 1];
+        nalu[0] = SrsLatencySei.NALU_SEI;
+        nalu[1] = 1;
+        nalu[2] = 2;
+        nalu[3] = 0x11;
+        nalu[4] = 0x22;
+        System.arraycopy(sei, 1, nalu, 5, sei.length - 1);
+
+        SrsLatencySei.Timestamp ts = SrsLatencySei.parse(nalu, 0, nalu.length);
+        assertNotNull(ts);
+        assertEquals(1000, ts.capture_ms);
+        assertEquals(1, ts.sequence);
+    }
+
+    @Test
+    public void ignoreOthers() {
+        byte[] nalu = SrsLatencySei.build(1000, 1);
+
+        // not SEI, for example, the IDR.
+        byte[] idr = nalu.clone();
+        idr[0] = 0x65;
+        assertNull(SrsLatencySei.parse(idr, 0, idr.length));
+
+        // the user data of others.
+        byte[] other = nalu.clone();
+        other[3] ^= 0x01;
+        assertNull(SrsLatencySei.parse(other, 0, other.length));
+
+        // truncated.
+        assertNull(SrsLatencySei.parse(nalu, 0, 10));
+        assertNull(SrsLatencySei.parse(nalu, 0, 1));
+    }
+}
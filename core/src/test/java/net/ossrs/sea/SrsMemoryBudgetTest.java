@@ -0,0 +1,167 @@
+package net.ossrs.sea;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * reserve and release the bytes of accounts, by the policies when the budget is reached.
+ */
+public class SrsMemoryBudgetTest {
+    private final static int WAIT_MS = 3000;
+
+    @Test
+    public void accountsShareTheBudget() {
+        SrsMemoryBudget b = new SrsMemoryBudget(1000);
+        SrsMemoryBudget.Account queue = b.account("muxer.queue", SrsMemoryBudget.POLICY_DROP);
+        SrsMemoryBudget.Account cache = b.account("muxer.cache", SrsMemoryBudget.POLICY_DEGRADE);
+
+        assertTrue(queue.reserve(300));
+        assertTrue(cache.reserve(500));
+        assertEquals(800, b.getUsed());
+        assertEquals(300, queue.getUsed());
+        assertEquals(500, cache.getUsed());
+
+        queue.release(300);
+        assertEquals(500, b.getUsed());
+        assertEquals(800, b.getPeak());
+        assertEquals(300, queue.getPeak());
+    }
+
+    @Test
+    public void accountIsCreatedOnce() {
+        SrsMemoryBudget b = new SrsMemoryBudget(1000);
+        SrsMemoryBudget.Account a = b.account("muxer.gop", SrsMemoryBudget.POLICY_DROP);
+        // the policy is ignored when exists.
+        assertSame(a, b.account("muxer.gop", SrsMemoryBudget.POLICY_DEGRADE));
+        assertEquals("muxer.gop", a.getName());
+    }
+
+    @Test
+    public void dropWhenReached() {
+        SrsMemoryBudget b = new SrsMemoryBudget(1000);
+        SrsMemoryBudget.Account a = b.account("muxer.queue", SrsMemoryBudget.POLICY_DROP);
+
+        assertTrue(a.reserve(900));
+        assertFalse(a.reserve(200));
+        assertEquals(1, a.getDrops());
+        assertEquals(900, b.getUsed());
+        // the item fits is not dropped.
+        assertTrue(a.reserve(100));
+    }
+
+    @Test
+    public void degradeNeverFailsButPressured() {
+        SrsMemoryBudget b = new SrsMemoryBudget(1000);
+        SrsMemoryBudget.Account a = b.account("muxer.cache", SrsMemoryBudget.POLICY_DEGRADE);
+
+        assertTrue(a.reserve(799));
+        assertFalse(b.isPressured());
+        assertTrue(a.reserve(1));
+        assertTrue(b.isPressured());
+        assertTrue(a.reserve(500));
+        assertEquals(1300, b.getUsed());
+        assertEquals(0, a.getDrops());
+    }
+
+    @Test
+    public void forceEvenTheDropPolicy() {
+        SrsMemoryBudget b = new SrsMemoryBudget(1000);
+        SrsMemoryBudget.Account a = b.account("muxer.queue", SrsMemoryBudget.POLICY_DROP);
+
+        assertTrue(a.reserve(1000));
+        a.force(100);
+        assertEquals(1100, a.getUsed());
+        assertEquals(0, a.getDrops());
+    }
+
+    @Test
+    public void blockUntilReleased() throws Exception {
+        SrsMemoryBudget b = new SrsMemoryBudget(1000);
+        final SrsMemoryBudget.Account cache = b.account("muxer.cache", SrsMemoryBudget.POLICY_DEGRADE);
+        SrsMemoryBudget.Account queue = b.account("muxer.queue", SrsMemoryBudget.POLICY_BLOCK);
+        b.setBlockTimeout(WAIT_MS);
+        assertTrue(cache.reserve(1000));
+
+        // the worker releases the bytes later.
+        final CountDownLatch blocked = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cache.release(500);
+            }
+        });
+        t.start();
+
+        long start = System.nanoTime() / 1000000;
+        blocked.countDown();
+        assertTrue(queue.reserve(300));
+        long elapsed = System.nanoTime() / 1000000 - start;
+        t.join();
+
+        assertTrue(String.format("blocked %dms", elapsed), elapsed >= 40 && elapsed < WAIT_MS);
+        assertEquals(800, b.getUsed());
+        assertEquals(0, queue.getDrops());
+    }
+
+    @Test
+    public void blockDropsWhenTimeout() {
+        SrsMemoryBudget b = new SrsMemoryBudget(1000);
+        SrsMemoryBudget.Account a = b.account("muxer.queue", SrsMemoryBudget.POLICY_BLOCK);
+        b.setBlockTimeout(50);
+
+        assertTrue(a.reserve(1000));
+        long start = System.nanoTime() / 1000000;
+        assertFalse(a.reserve(1));
+        assertTrue(System.nanoTime() / 1000000 - start >= 40);
+        assertEquals(1, a.getDrops());
+        assertEquals(1000, b.getUsed());
+    }
+
+    @Test
+    public void moveKeepsTheUsed() {
+        SrsMemoryBudget b = new SrsMemoryBudget(1000);
+        SrsMemoryBudget.Account cache = b.account("muxer.cache", SrsMemoryBudget.POLICY_DEGRADE);
+        SrsMemoryBudget.Account gop = b.account("muxer.gop", SrsMemoryBudget.POLICY_DROP);
+
+        // the frame in cache is held by the gop, then released by the gop while in cache.
+        cache.force(400);
+        cache.move(gop, 400);
+        assertEquals(0, cache.getUsed());
+        assertEquals(400, gop.getUsed());
+        assertEquals(400, gop.getPeak());
+        assertEquals(400, b.getUsed());
+
+        gop.move(cache, 400);
+        cache.release(400);
+        assertEquals(0, gop.getUsed());
+        assertEquals(0, b.getUsed());
+        assertEquals(400, b.getPeak());
+    }
+
+    @Test
+    public void releaseAllOfAccount() {
+        SrsMemoryBudget b = new SrsMemoryBudget(1000);
+        SrsMemoryBudget.Account queue = b.account("muxer.queue", SrsMemoryBudget.POLICY_DROP);
+        SrsMemoryBudget.Account cache = b.account("muxer.cache", SrsMemoryBudget.POLICY_DEGRADE);
+        queue.reserve(100);
+        queue.reserve(200);
+        cache.reserve(50);
+
+        queue.releaseAll();
+        assertEquals(0, queue.getUsed());
+        assertEquals(50, b.getUsed());
+    }
+}
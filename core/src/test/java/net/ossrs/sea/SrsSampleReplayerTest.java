@@ -0,0 +1,141 @@
+package net.ossrs.sea;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * publish the synthetic samples to a file with the recorder, then replay the record to files,
+ * the output of each replay is identical to the published one, bit for bit.
+ */
+public class SrsSampleReplayerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final static int VIDEO_FRAMES = 60;
+    private final static int GOP = 25;
+    private final static int FPS = 25;
+    private final static int SAMPLE_RATE = 44100;
+
+    @Test
+    public void replayFlvIsBitExact() throws Exception {
+        assertReplayBitExact(SrsHttpFlv.OutputFormat.MUXER_OUTPUT_HTTP_FLV, "flv");
+    }
+
+    @Test
+    public void replayCmafIsBitExact() throws Exception {
+        assertReplayBitExact(SrsHttpFlv.OutputFormat.MUXER_OUTPUT_CMAF, "mp4");
+    }
+
+    @Test
+    public void replayTsIsBitExact() throws Exception {
+        assertReplayBitExact(SrsHttpFlv.OutputFormat.MUXER_OUTPUT_TS, "ts");
+    }
+
+    private void assertReplayBitExact(int format, String ext) throws Exception {
+        File rec = tmp.newFile("sea.rec");
+        File published = new File(tmp.getRoot(), "published." + ext);
+        publish(rec, published, format);
+
+        byte[] expect = readFully(published);
+        assertTrue(expect.length > 0);
+
+        SrsSampleReplayer replayer = new SrsSampleReplayer(rec);
+        assertTrue(replayer.getSamples() > VIDEO_FRAMES);
+        for (int i = 0; i < 2; i++) {
+            File replayed = new File(tmp.getRoot(), "replayed" + i + "." + ext);
+            SrsHttpFlv muxer = new SrsHttpFlv(replayed.toURI().toString(), format);
+            muxer.start();
+            try {
+                replayer.replay(muxer, false);
+            } finally {
+                muxer.stop();
+            }
+            assertArrayEquals(expect, readFully(replayed));
+        }
+    }
+
+    /**
+     * publish the avc and aac samples interleaved by pts, and record them.
+     */
+    private void publish(File rec, File output, int format) throws Exception {
+        SrsHttpFlv muxer = new SrsHttpFlv(output.toURI().toString(), format);
+        muxer.setRecorder(new SrsSampleRecorder(rec));
+        int vtrack = muxer.addVideoTrack(320, 240);
+        int atrack = muxer.addAudioTrack(SAMPLE_RATE, 2);
+        muxer.start();
+
+        Random random = new Random(1);
+        SrsBufferInfo bi = new SrsBufferInfo();
+        try {
+            // the AudioSpecificConfig of aac LC, 44100, stereo.
+            byte[] asc = new byte[]{0x12, 0x10};
+            bi.set(0, asc.length, 0, SrsBufferInfo.BUFFER_FLAG_CODEC_CONFIG);
+            muxer.writeSampleData(atrack, ByteBuffer.wrap(asc), bi);
+
+            long nb_aframes = 0;
+            for (int i = 0; i < VIDEO_FRAMES; i++) {
+                long vpts = i * 1000000L / FPS;
+                for (long apts = 0; (apts = nb_aframes * 1024 * 1000000L / SAMPLE_RATE) < vpts; nb_aframes++) {
+                    byte[] aac = payload(random, 100 + random.nextInt(300));
+                    bi.set(0, aac.length, apts, 0);
+                    muxer.writeSampleData(atrack, ByteBuffer.wrap(aac), bi);
+                }
+
+                byte[] avc = accessUnit(random, (i % GOP) == 0);
+                bi.set(0, avc.length, vpts, (i % GOP) == 0 ? SrsBufferInfo.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(vtrack, ByteBuffer.wrap(avc), bi);
+            }
+            muxer.drain();
+        } finally {
+            muxer.stop();
+        }
+    }
+
+    // the annexb access unit, the sps, pps and idr for keyframe, or a p slice.
+    private static byte[] accessUnit(Random random, boolean keyframe) {
+        ByteBuffer bb = ByteBuffer.allocate(8 * 1024);
+        if (keyframe) {
+            bb.put(new byte[]{0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x0d, (byte) 0x8c, 0x68});
+            bb.put(new byte[]{0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80});
+            bb.put(new byte[]{0, 0, 0, 1, 0x65, (byte) 0x88});
+            bb.put(payload(random, 3000 + random.nextInt(1000)));
+        } else {
+            bb.put(new byte[]{0, 0, 0, 1, 0x41, (byte) 0x9a});
+            bb.put(payload(random, 100 + random.nextInt(700)));
+        }
+        byte[] au = new byte[bb.position()];
+        bb.flip();
+        bb.get(au);
+        return au;
+    }
+
+    // the bytes without zero, never a start code.
+    private static byte[] payload(Random random, int size) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++) {
+            b[i] = (byte) (1 + random.nextInt(255));
+        }
+        return b;
+    }
+
+    private static byte[] readFully(File f) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int) raf.length()];
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+}
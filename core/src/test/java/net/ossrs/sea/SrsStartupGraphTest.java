@@ -0,0 +1,188 @@
+package net.ossrs.sea;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * run the steps of startup graph in the executor, the independent steps in parallel.
+ */
+public class SrsStartupGraphTest {
+    private ExecutorService executor;
+    private List<String> events;
+
+    private final static int WAIT_MS = 3000;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        events = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(WAIT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * the graph of publish, the time to first frame is the critical path, camera -> vencoder -> tracks -> start,
+     * about 140ms, while the steps in sequence take 400ms.
+     */
+    @Test
+    public void publishGraphTakesTheCriticalPath() throws Exception {
+        SrsStartupGraph graph = new SrsStartupGraph("publish");
+        graph.add("muxer", sleep("muxer", 100));
+        graph.add("mic", sleep("mic", 50));
+        graph.add("aencoder", sleep("aencoder", 50), "mic");
+        graph.add("camera", sleep("camera", 80));
+        graph.add("vcodec", sleep("vcodec", 60));
+        graph.add("vencoder", sleep("vencoder", 40), "camera", "vcodec");
+        graph.add("tracks", sleep("tracks", 10), "muxer", "aencoder", "vencoder");
+        graph.add("start", sleep("start", 10), "tracks");
+
+        Result r = run(graph);
+        assertTrue(r.ok);
+        assertTrue(graph.isSucceeded());
+        assertTrue(graph.getElapsed() >= 140);
+        assertTrue(String.format("elapsed %dms, %s", graph.getElapsed(), r.report), graph.getElapsed() < 300);
+        assertTrue(r.report.startsWith("publish "));
+
+        // the dependencies are done before the step starts.
+        assertBefore("end camera", "begin vencoder");
+        assertBefore("end vcodec", "begin vencoder");
+        assertBefore("end mic", "begin aencoder");
+        assertBefore("end muxer", "begin tracks");
+        assertBefore("end aencoder", "begin tracks");
+        assertBefore("end vencoder", "begin tracks");
+        assertBefore("end tracks", "begin start");
+    }
+
+    @Test
+    public void failedStepSkipsDependents() throws Exception {
+        SrsStartupGraph graph = new SrsStartupGraph("publish");
+        graph.add("mic", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                throw new Exception("no mic");
+            }
+        });
+        graph.add("aencoder", sleep("aencoder", 0), "mic");
+        graph.add("camera", sleep("camera", 20));
+
+        Result r = run(graph);
+        assertFalse(r.ok);
+        assertFalse(graph.isSucceeded());
+        assertFalse(events.contains("begin aencoder"));
+        assertTrue(events.contains("end camera"));
+        assertTrue(r.report, r.report.contains("mic +"));
+        assertTrue(r.report, r.report.contains("failed(no mic)"));
+        assertTrue(r.report, r.report.contains("aencoder skipped"));
+    }
+
+    @Test
+    public void cancelNotifiesWhenRunningStepsDone() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        SrsStartupGraph graph = new SrsStartupGraph("publish");
+        graph.add("camera", new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                events.add("begin camera");
+                release.await();
+                events.add("end camera");
+            }
+        });
+        graph.add("vencoder", sleep("vencoder", 0), "camera");
+
+        final Result started = new Result();
+        graph.start(executor, started);
+        while (!events.contains("begin camera")) {
+            Thread.sleep(1);
+        }
+
+        // not notified until the running step done, the steps not started are skipped.
+        Result canceled = new Result();
+        graph.cancel(canceled);
+        assertFalse(canceled.done.await(50, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(canceled.done.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(canceled.ok);
+        assertTrue(canceled.report, canceled.report.contains("vencoder skipped"));
+        assertFalse(events.contains("begin vencoder"));
+
+        // the listener of start is replaced by the one of cancel.
+        assertEquals(1, started.done.getCount());
+    }
+
+    @Test
+    public void cancelCompletedNotifiesInCaller() throws Exception {
+        SrsStartupGraph graph = new SrsStartupGraph("publish");
+        graph.add("muxer", sleep("muxer", 0));
+        assertTrue(run(graph).ok);
+
+        Result canceled = new Result();
+        graph.cancel(canceled);
+        assertEquals(0, canceled.done.getCount());
+        assertFalse(canceled.ok);
+        assertEquals(Thread.currentThread().getName(), canceled.thread);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownDependencyIsRejected() {
+        SrsStartupGraph graph = new SrsStartupGraph("publish");
+        graph.add("tracks", sleep("tracks", 0), "muxer");
+    }
+
+    private SrsStartupGraph.Step sleep(final String name, final int ms) {
+        return new SrsStartupGraph.Step() {
+            @Override
+            public void run() throws Exception {
+                events.add("begin " + name);
+                Thread.sleep(ms);
+                events.add("end " + name);
+            }
+        };
+    }
+
+    private Result run(SrsStartupGraph graph) throws InterruptedException {
+        Result r = new Result();
+        graph.start(executor, r);
+        assertTrue(r.done.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        return r;
+    }
+
+    private void assertBefore(String a, String b) {
+        int ia = events.indexOf(a);
+        int ib = events.indexOf(b);
+        assertTrue(a, ia >= 0);
+        assertTrue(b, ib >= 0);
+        assertTrue(String.format("%s after %s, %s", a, b, events), ia < ib);
+    }
+
+    private static class Result implements SrsStartupGraph.OnCompleteListener {
+        public CountDownLatch done = new CountDownLatch(1);
+        public volatile boolean ok;
+        public volatile String report;
+        public volatile String thread;
+
+        @Override
+        public void onComplete(boolean v, String r) {
+            ok = v;
+            report = r;
+            thread = Thread.currentThread().getName();
+            done.countDown();
+        }
+    }
+}
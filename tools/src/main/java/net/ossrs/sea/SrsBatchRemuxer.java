@@ -0,0 +1,278 @@
+package net.ossrs.sea;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * remux the recorded elementary streams to flv files in parallel, the base.h264 annexb
+ * and base.aac adts, either is optional, are remuxed to base.flv by SrsFlv.
+ * the files are split by a fork-join pool, each file is remuxed in one thread,
+ * the inputs are memory-mapped and the output is written in large sequential writes.
+ * usage:
+ *      SrsBatchRemuxer [-j threads] [-fps fps] <output dir> <input file or dir>...
+ */
+public class SrsBatchRemuxer {
+    private File output;
+    private int fps;
+
+    private AtomicInteger nb_files;
+    private AtomicInteger nb_errors;
+    private AtomicLong nb_bytes_in;
+    private AtomicLong nb_bytes_out;
+
+    // the write buffer of each output, large for sequential write.
+    private final static int WRITE_BUFFER = 1024 * 1024;
+    private final static int DEFAULT_FPS = 25;
+
+    /**
+     * constructor.
+     * @param dir the directory to write the flv files.
+     * @param v the fps of video, for the annexb has no timestamp.
+     */
+    public SrsBatchRemuxer(File dir, int v) {
+        output = dir;
+        fps = v;
+        nb_files = new AtomicInteger(0);
+        nb_errors = new AtomicInteger(0);
+        nb_bytes_in = new AtomicLong(0);
+        nb_bytes_out = new AtomicLong(0);
+    }
+
+    public int getFiles() {
+        return nb_files.get();
+    }
+
+    public int getErrors() {
+        return nb_errors.get();
+    }
+
+    public long getBytesIn() {
+        return nb_bytes_in.get();
+    }
+
+    public long getBytesOut() {
+        return nb_bytes_out.get();
+    }
+
+    /**
+     * remux all streams in the pool, return when all done.
+     * @param bases the path of streams without the extension.
+     */
+    public void remux(ForkJoinPool pool, List<String> bases) {
+        pool.invoke(new RemuxTask(bases, 0, bases.size()));
+    }
+
+    /**
+     * split the streams by half, until one stream for each task.
+     */
+    private class RemuxTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private List<String> bases;
+        private int from;
+        private int to;
+
+        public RemuxTask(List<String> b, int f, int t) {
+            bases = b;
+            from = f;
+            to = t;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RemuxTask(bases, from, mid), new RemuxTask(bases, mid, to));
+                return;
+            }
+            if (to > from) {
+                remuxFile(bases.get(from));
+            }
+        }
+    }
+
+    private void remuxFile(String base) {
+        File h264 = new File(base + ".h264");
+        File aac = new File(base + ".aac");
+        File flv = new File(output, new File(base).getName() + ".flv");
+
+        try {
+            long size = remux(h264.exists() ? h264 : null, aac.exists() ? aac : null, flv);
+            nb_bytes_out.addAndGet(size);
+            nb_files.incrementAndGet();
+        } catch (Exception e) {
+            nb_errors.incrementAndGet();
+            System.err.println(String.format("remux %s failed, e=%s", base, e.toString()));
+        }
+    }
+
+    /**
+     * remux a stream to flv, the audio and video are interleaved by timestamp.
+     * @return the bytes of flv.
+     */
+    public long remux(File h264, File aac, File flv) throws Exception {
+        SrsHttpFlv muxer = new SrsHttpFlv(null, SrsHttpFlv.OutputFormat.MUXER_OUTPUT_HTTP_FLV);
+        SrsAnnexbReader video = null;
+        SrsAdtsReader audio = null;
+        int vtrack = 0;
+        int atrack = 0;
+        if (h264 != null) {
+            video = new SrsAnnexbReader(h264);
+            nb_bytes_in.addAndGet(video.length());
+            vtrack = muxer.addVideoTrack(0, 0);
+        }
+        if (aac != null) {
+            audio = new SrsAdtsReader(aac, muxer.new SrsUtils());
+            nb_bytes_in.addAndGet(audio.length());
+            atrack = muxer.addAudioTrack(audio.getSampleRate(), audio.getChannels());
+        }
+
+        CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(flv));
+        OutputStream os = new BufferedOutputStream(counter, WRITE_BUFFER);
+        try {
+            muxer.startOffline(os);
+
+            SrsBufferInfo bi = new SrsBufferInfo();
+            if (audio != null) {
+                ByteBuffer asc = ByteBuffer.wrap(audio.getAudioSpecificConfig());
+                bi.set(0, asc.remaining(), 0, SrsBufferInfo.BUFFER_FLAG_CODEC_CONFIG);
+                muxer.writeSampleData(atrack, asc, bi);
+            }
+
+            ByteBuffer vframe = (video == null) ? null : video.next();
+            ByteBuffer aframe = (audio == null) ? null : audio.next();
+            long nb_vframes = 0;
+            long nb_aframes = 0;
+            while (vframe != null || aframe != null) {
+                long vpts = nb_vframes * 1000000 / fps;
+                long apts = (audio == null) ? 0 : nb_aframes * SrsAdtsReader.SAMPLES_PER_FRAME * 1000000 / audio.getSampleRate();
+
+                if (vframe != null && (aframe == null || vpts <= apts)) {
+                    bi.set(0, vframe.remaining(), vpts, 0);
+                    muxer.writeSampleData(vtrack, vframe, bi);
+                    vframe = video.next();
+                    nb_vframes++;
+                } else {
+                    bi.set(0, aframe.remaining(), apts, 0);
+                    muxer.writeSampleData(atrack, aframe, bi);
+                    aframe = audio.next();
+                    nb_aframes++;
+                }
+            }
+        } finally {
+            os.close();
+        }
+        return counter.getCount();
+    }
+
+    /**
+     * count the bytes written to the stream.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private OutputStream os;
+        private long count;
+
+        public CountingOutputStream(OutputStream v) {
+            os = v;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            os.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            os.close();
+        }
+    }
+
+    /**
+     * collect the streams of the file or the files in directory, by the path without extension.
+     */
+    private static void collect(File f, TreeSet<String> bases) {
+        if (f.isDirectory()) {
+            File[] files = f.listFiles();
+            if (files != null) {
+                for (int i = 0; i < files.length; i++) {
+                    collect(files[i], bases);
+                }
+            }
+            return;
+        }
+
+        String path = f.getPath();
+        if (path.endsWith(".h264") || path.endsWith(".aac")) {
+            bases.add(path.substring(0, path.lastIndexOf('.')));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int fps = DEFAULT_FPS;
+        File output = null;
+        TreeSet<String> bases = new TreeSet<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("-j".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-fps".equals(args[i]) && i + 1 < args.length) {
+                fps = Integer.parseInt(args[++i]);
+            } else if (output == null) {
+                output = new File(args[i]);
+            } else {
+                collect(new File(args[i]), bases);
+            }
+        }
+        if (output == null || bases.isEmpty()) {
+            System.err.println("usage: SrsBatchRemuxer [-j threads] [-fps fps] <output dir> <input file or dir>...");
+            System.exit(1);
+        }
+        output.mkdirs();
+
+        List<String> streams = Collections.unmodifiableList(new ArrayList<String>(bases));
+        SrsBatchRemuxer remuxer = new SrsBatchRemuxer(output, fps);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        long start = System.nanoTime();
+        try {
+            remuxer.remux(pool, streams);
+        } finally {
+            pool.shutdown();
+        }
+        double elapsed = Math.max(1, System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("remux %d files, %d failed, %dB to %dB in %.3fs with %d threads, %.1f files/s, %.2f MB/s",
+            remuxer.getFiles(), remuxer.getErrors(), remuxer.getBytesIn(), remuxer.getBytesOut(), elapsed, threads,
+            remuxer.getFiles() / elapsed, remuxer.getBytesIn() / elapsed / 1024 / 1024));
+        System.exit(remuxer.getErrors() > 0 ? 1 : 0);
+    }
+}
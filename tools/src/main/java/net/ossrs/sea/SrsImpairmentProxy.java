@@ -0,0 +1,434 @@
+package net.ossrs.sea;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * the TCP proxy to impair the uplink between the publisher and the ingest, for the test
+ * of bad mobile networks on one box, the bandwidth cap, latency, jitter, stalls and
+ * resets are applied to the upstream, from the publisher to the ingest.
+ * the bytes in flight are bounded, so the publisher is pushed back by TCP as on a slow link.
+ * the impairments are set by the methods, or by a script of steps at the time, @see runScript
+ * @remark the packet loss is not simulated, which is seen by TCP as the jitter and stalls.
+ * usage:
+ *      SrsImpairmentProxy <listen port> <target host:port> [script]
+ * for example:
+ *      SrsImpairmentProxy 1936 127.0.0.1:8936 "0 bw=2000 delay=50 jitter=20; 10000 stall=3000; 20000 reset"
+ */
+public class SrsImpairmentProxy {
+    private int port;
+    private InetSocketAddress target;
+    private ServerSocket server;
+    private Thread acceptor;
+    private Thread scripter;
+    private volatile boolean quit;
+    private ArrayList<Socket> sockets;
+    private Random random;
+
+    // the impairments, 0 to disable.
+    private volatile long bandwidth_bps;
+    private volatile int delay_ms;
+    private volatile int jitter_ms;
+    private volatile long stall_until_ms;
+    // the time in ns the link is free to send, for the bandwidth cap of all connections.
+    private long link_free_ns;
+    // the max chunks in flight of each connection, the buffer of the bottleneck.
+    private volatile int max_chunks;
+
+    private long nb_connections;
+    private long nb_resets;
+    private long nb_bytes;
+
+    // the bytes read and paced each time, about a few TCP segments.
+    private final static int CHUNK = 4 * 1024;
+    private final static int SOCKET_BUFFER = 16 * 1024;
+    private final static String TAG = "SrsImpairmentProxy";
+
+    /**
+     * constructor.
+     * @param p the port to listen, 0 for any free port, @see getPort
+     * @param t the address of ingest.
+     */
+    public SrsImpairmentProxy(int p, InetSocketAddress t) {
+        port = p;
+        target = t;
+        sockets = new ArrayList<Socket>();
+        random = new Random();
+        max_chunks = 16;
+    }
+
+    /**
+     * set the bandwidth cap in bits per second of all connections, 0 for no cap.
+     */
+    public void setBandwidth(long bps) {
+        bandwidth_bps = bps;
+    }
+
+    /**
+     * set the one-way delay and the jitter in ms, the order of bytes is kept.
+     */
+    public void setDelay(int delay, int jitter) {
+        delay_ms = delay;
+        jitter_ms = jitter;
+    }
+
+    /**
+     * set the bytes in flight of each connection, the buffer of bottleneck, which should
+     * exceed the bandwidth-delay product, or the throughput is limited by it.
+     */
+    public void setQueue(int bytes) {
+        max_chunks = Math.max(1, bytes / CHUNK);
+    }
+
+    /**
+     * stop forwarding for the time in ms, the publisher is blocked when the buffers are full.
+     */
+    public void stall(int ms) {
+        stall_until_ms = System.currentTimeMillis() + ms;
+    }
+
+    /**
+     * reset all connections, by RST to both the publisher and ingest.
+     */
+    public void reset() {
+        int n = closeAll();
+        synchronized (this) {
+            nb_resets++;
+        }
+        SrsLog.i(TAG, String.format("proxy: reset %d sockets", n));
+    }
+
+    // close all sockets by RST.
+    private int closeAll() {
+        Socket[] all;
+        synchronized (sockets) {
+            all = sockets.toArray(new Socket[sockets.size()]);
+            sockets.clear();
+        }
+        for (int i = 0; i < all.length; i++) {
+            try {
+                all[i].setSoLinger(true, 0);
+                all[i].close();
+            } catch (IOException e) {
+            }
+        }
+        return all.length;
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public synchronized long getConnections() {
+        return nb_connections;
+    }
+
+    public synchronized long getResets() {
+        return nb_resets;
+    }
+
+    public synchronized long getBytes() {
+        return nb_bytes;
+    }
+
+    public void start() throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        // the receive window is negotiated when connect, so set for the accepted sockets.
+        server.setReceiveBufferSize(SOCKET_BUFFER);
+        server.bind(new InetSocketAddress(port));
+        quit = false;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!quit) {
+                    try {
+                        accept(server.accept());
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        SrsLog.i(TAG, String.format("proxy: listen at %d, target %s", getPort(), target));
+    }
+
+    public void stop() {
+        quit = true;
+        if (scripter != null) {
+            scripter.interrupt();
+            scripter = null;
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+        closeAll();
+    }
+
+    /**
+     * run the script in a thread, each step is the time in ms since start and the impairments:
+     *      bw=kbps, the bandwidth cap, 0 for no cap.
+     *      delay=ms, jitter=ms, the one-way delay and jitter.
+     *      queue=KB, the bytes in flight of each connection.
+     *      stall=ms, stop forwarding for the time.
+     *      reset, reset all connections.
+     * the steps are separated by semicolon or newline, for example:
+     *      "0 bw=1000 delay=80 jitter=30; 5000 stall=2000; 9000 reset; 12000 bw=0 delay=0 jitter=0"
+     */
+    public void runScript(String script) {
+        final String[] steps = script.split("[;\n]");
+        final long start = System.currentTimeMillis();
+        scripter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < steps.length; i++) {
+                        String[] words = steps[i].trim().split("\\s+");
+                        if (words.length < 2) {
+                            continue;
+                        }
+                        long wait = start + Long.parseLong(words[0]) - System.currentTimeMillis();
+                        if (wait > 0) {
+                            Thread.sleep(wait);
+                        }
+                        for (int j = 1; j < words.length; j++) {
+                            apply(words[j]);
+                        }
+                        SrsLog.i(TAG, String.format("proxy: step %s", steps[i].trim()));
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        scripter.setDaemon(true);
+        scripter.start();
+    }
+
+    /**
+     * apply an impairment of script, for example, bw=1000.
+     */
+    public void apply(String v) {
+        String key = v;
+        int value = 0;
+        if (v.contains("=")) {
+            key = v.substring(0, v.indexOf('='));
+            value = Integer.parseInt(v.substring(v.indexOf('=') + 1));
+        }
+
+        if ("bw".equals(key)) {
+            setBandwidth(value * 1000L);
+        } else if ("delay".equals(key)) {
+            setDelay(value, jitter_ms);
+        } else if ("jitter".equals(key)) {
+            setDelay(delay_ms, value);
+        } else if ("queue".equals(key)) {
+            setQueue(value * 1024);
+        } else if ("stall".equals(key)) {
+            stall(value);
+        } else if ("reset".equals(key)) {
+            reset();
+        } else {
+            throw new IllegalArgumentException("unknown impairment " + v);
+        }
+    }
+
+    /**
+     * the bytes read from publisher, to send at the time.
+     */
+    private static class Chunk {
+        public byte[] data;
+        public int size;
+        public long at_ms;
+    }
+
+    private void accept(final Socket client) throws IOException {
+        final Socket upstream = new Socket();
+        try {
+            // the small buffers, so the publisher sees the impairments soon.
+            upstream.setSendBufferSize(SOCKET_BUFFER);
+            upstream.connect(target, 3000);
+        } catch (IOException e) {
+            client.setSoLinger(true, 0);
+            client.close();
+            upstream.close();
+            throw e;
+        }
+        synchronized (sockets) {
+            sockets.add(client);
+            sockets.add(upstream);
+        }
+        synchronized (this) {
+            nb_connections++;
+        }
+
+        final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+        // the upstream is impaired, read and delay, then paced to send.
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(client.getInputStream(), queue);
+                } catch (Exception e) {
+                }
+                offerEof(queue);
+            }
+        });
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send(queue, upstream.getOutputStream());
+                } catch (Exception e) {
+                }
+                close(client, upstream);
+                // for the reader waiting for the full queue to quit.
+                queue.clear();
+            }
+        });
+        // the downstream, for example, the HTTP response, is not impaired.
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    copy(upstream.getInputStream(), client.getOutputStream());
+                } catch (IOException e) {
+                }
+                close(client, upstream);
+            }
+        });
+    }
+
+    private static void start(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void read(InputStream is, LinkedBlockingQueue<Chunk> queue) throws Exception {
+        long last_ms = 0;
+        while (true) {
+            // the queue is full, stop reading, so the publisher is pushed back.
+            while (queue.size() >= max_chunks) {
+                Thread.sleep(5);
+            }
+
+            Chunk c = new Chunk();
+            c.data = new byte[CHUNK];
+            c.size = is.read(c.data);
+            if (c.size < 0) {
+                return;
+            }
+
+            // the jitter never reorders the bytes.
+            int jitter = jitter_ms;
+            long at = System.currentTimeMillis() + delay_ms + ((jitter > 0) ? random.nextInt(2 * jitter + 1) - jitter : 0);
+            c.at_ms = Math.max(last_ms, at);
+            last_ms = c.at_ms;
+            queue.put(c);
+        }
+    }
+
+    private static void offerEof(LinkedBlockingQueue<Chunk> queue) {
+        Chunk eof = new Chunk();
+        eof.size = -1;
+        try {
+            queue.put(eof);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private void send(LinkedBlockingQueue<Chunk> queue, OutputStream os) throws Exception {
+        while (true) {
+            Chunk c = queue.take();
+            if (c.size < 0) {
+                return;
+            }
+
+            // wait for the delay and the stall.
+            while (true) {
+                long wait = Math.max(c.at_ms, stall_until_ms) - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                Thread.sleep(Math.min(wait, 100));
+            }
+
+            // pace by the bandwidth of link.
+            long wait_ns = reserve(c.size);
+            if (wait_ns > 0) {
+                Thread.sleep(wait_ns / 1000000, (int) (wait_ns % 1000000));
+            }
+
+            os.write(c.data, 0, c.size);
+            synchronized (this) {
+                nb_bytes += c.size;
+            }
+        }
+    }
+
+    // reserve the link to send the bytes, return the time in ns to wait.
+    private synchronized long reserve(int size) {
+        long bps = bandwidth_bps;
+        long now = System.nanoTime();
+        if (bps <= 0) {
+            link_free_ns = now;
+            return 0;
+        }
+
+        long start = Math.max(now, link_free_ns);
+        link_free_ns = start + size * 8L * 1000000000L / bps;
+        return start - now;
+    }
+
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte[] b = new byte[CHUNK];
+        int n;
+        while ((n = is.read(b)) >= 0) {
+            os.write(b, 0, n);
+        }
+    }
+
+    private void close(Socket client, Socket upstream) {
+        synchronized (sockets) {
+            sockets.remove(client);
+            sockets.remove(upstream);
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+        }
+        try {
+            upstream.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: SrsImpairmentProxy <listen port> <target host:port> [script]");
+            System.exit(1);
+        }
+
+        String[] hp = args[1].split(":");
+        SrsImpairmentProxy proxy = new SrsImpairmentProxy(Integer.parseInt(args[0]),
+            new InetSocketAddress(hp[0], Integer.parseInt(hp[1])));
+        proxy.start();
+        if (args.length > 2) {
+            proxy.runScript(args[2]);
+        }
+        while (true) {
+            Thread.sleep(5000);
+            System.out.println(String.format("connections=%d, resets=%d, bytes=%d",
+                proxy.getConnections(), proxy.getResets(), proxy.getBytes()));
+        }
+    }
+}
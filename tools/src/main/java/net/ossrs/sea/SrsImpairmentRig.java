@@ -0,0 +1,204 @@
+package net.ossrs.sea;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * publish the files through the impairment proxy to the ingest sink on one box,
+ * then assert on the metrics of publisher and ingest, to evaluate the congestion handling,
+ *      SrsFileSource -> SrsHttpFlv -> SrsImpairmentProxy -> SrsIngestSink
+ * the publisher runs in an event loop, with the latency SEI for the ingest to measure.
+ * the metrics:
+ *      reconnects, failovers, congestions, drops, pending, the publisher, @see SrsHttpFlvStats
+ *      connections, frames, lost, p50, p90, p99, max, kbps, the ingest, @see SrsIngestSink
+ *      resets, the proxy.
+ * usage:
+ *      SrsImpairmentRig [-t seconds] [-queue KB] [-script script] [-expect metric<=value]... <base path of .h264 and .aac>
+ * for example:
+ *      SrsImpairmentRig -t 30 -script "0 bw=800 delay=60 jitter=20; 10000 stall=3000; 20000 reset"
+ *          -expect "reconnects>=1" -expect "p99<=3000" sea
+ * the congestion, the queue of publisher and the buffer of bottleneck are small, so latency is bounded by drops:
+ *      SrsImpairmentRig -t 20 -queue 8 -script "0 queue=8 bw=150 delay=100" -expect "congestions>=1" -expect "p90<=3000" sea
+ * the regression of these scenarios is SrsImpairmentRigTest.
+ */
+public class SrsImpairmentRig {
+    private SrsIngestSink sink;
+    private SrsImpairmentProxy proxy;
+    private SrsEventLoopGroup loops;
+    private SrsHttpFlv muxer;
+    private SrsFileSource source;
+    private long elapsed_ms;
+
+    private final static int DEFAULT_SECONDS = 30;
+    private final static int FPS = 25;
+    private final static int SEND_BUFFER = 16 * 1024;
+
+    /**
+     * constructor, listen the sink and proxy at any free port.
+     * @param base the path of .h264 and .aac without the extension.
+     */
+    public SrsImpairmentRig(String base) throws IOException {
+        sink = new SrsIngestSink(0);
+        sink.start();
+        proxy = new SrsImpairmentProxy(0, new InetSocketAddress("127.0.0.1", sink.getPort()));
+        proxy.start();
+
+        loops = new SrsEventLoopGroup(1);
+        loops.start();
+        muxer = new SrsHttpFlv(String.format("http://127.0.0.1:%d/live/rig.flv", proxy.getPort()),
+            SrsHttpFlv.OutputFormat.MUXER_OUTPUT_HTTP_FLV);
+        muxer.setEventLoop(loops);
+
+        File h264 = new File(base + ".h264");
+        File aac = new File(base + ".aac");
+        source = new SrsFileSource(muxer, h264.exists() ? h264 : null, aac.exists() ? aac : null, FPS);
+        source.setLoop(true);
+    }
+
+    /**
+     * set the max bytes queued by the publisher, exceed which it drops until keyframe.
+     */
+    public void setMaxQueued(int v) {
+        loops.setMaxQueued(v);
+    }
+
+    /**
+     * set the SO_SNDBUF of the publisher, for the congestion to be seen by the queue.
+     */
+    public void setSendBuffer(int v) {
+        loops.setSendBuffer(v);
+    }
+
+    /**
+     * the proxy to impair, by the methods or script.
+     */
+    public SrsImpairmentProxy getProxy() {
+        return proxy;
+    }
+
+    /**
+     * publish for the time, then stop all.
+     * @param script the script of proxy, null for no impairment, @see SrsImpairmentProxy.runScript
+     */
+    public void run(int seconds, String script) throws Exception {
+        muxer.start();
+        // the pts of file source is the time since started.
+        muxer.setLatencySei(System.currentTimeMillis() * 1000);
+        source.start();
+        if (script != null) {
+            proxy.runScript(script);
+        }
+
+        long start = System.currentTimeMillis();
+        Thread.sleep(seconds * 1000L);
+        elapsed_ms = System.currentTimeMillis() - start;
+
+        source.stop();
+        muxer.stop();
+        loops.stop();
+        proxy.stop();
+        sink.stop();
+    }
+
+    /**
+     * get the metrics after run, by name.
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> v = new LinkedHashMap<String, Long>();
+        SrsHttpFlvStats stats = muxer.getStats();
+        v.put("reconnects", stats.getReconnects());
+        v.put("failovers", stats.getFailovers());
+        v.put("congestions", stats.getCongestions());
+        v.put("drops", stats.getDrops());
+        v.put("pending", (long) muxer.getPendingFrames());
+
+        SrsLatencyAnalyzer latency = sink.getLatency();
+        v.put("connections", sink.getConnections());
+        v.put("frames", (long) latency.getFrames());
+        v.put("lost", latency.getLost());
+        v.put("p50", latency.getPercentile(50));
+        v.put("p90", latency.getPercentile(90));
+        v.put("p99", latency.getPercentile(99));
+        v.put("max", latency.getPercentile(100));
+        v.put("kbps", sink.getBytes() * 8 / Math.max(1, elapsed_ms));
+
+        v.put("resets", proxy.getResets());
+        return v;
+    }
+
+    /**
+     * check the expectation, for example, p99<=2000, the operator is <=, >=, <, > or ==.
+     */
+    public boolean check(String expect) {
+        String[] ops = {"<=", ">=", "==", "<", ">"};
+        for (int i = 0; i < ops.length; i++) {
+            int p = expect.indexOf(ops[i]);
+            if (p <= 0) {
+                continue;
+            }
+
+            Long actual = getMetrics().get(expect.substring(0, p).trim());
+            if (actual == null) {
+                throw new IllegalArgumentException("unknown metric " + expect);
+            }
+            long value = Long.parseLong(expect.substring(p + ops[i].length()).trim());
+            if ("<=".equals(ops[i])) {
+                return actual <= value;
+            } else if (">=".equals(ops[i])) {
+                return actual >= value;
+            } else if ("==".equals(ops[i])) {
+                return actual == value;
+            } else if ("<".equals(ops[i])) {
+                return actual < value;
+            }
+            return actual > value;
+        }
+        throw new IllegalArgumentException("invalid expectation " + expect);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = DEFAULT_SECONDS;
+        int queue_kb = 0;
+        String script = null;
+        String base = null;
+        ArrayList<String> expects = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-t".equals(args[i]) && i + 1 < args.length) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if ("-queue".equals(args[i]) && i + 1 < args.length) {
+                queue_kb = Integer.parseInt(args[++i]);
+            } else if ("-script".equals(args[i]) && i + 1 < args.length) {
+                script = args[++i];
+            } else if ("-expect".equals(args[i]) && i + 1 < args.length) {
+                expects.add(args[++i]);
+            } else {
+                base = args[i];
+            }
+        }
+        if (base == null) {
+            System.err.println("usage: SrsImpairmentRig [-t seconds] [-queue KB] [-script script] [-expect metric<=value]... <base path of .h264 and .aac>");
+            System.exit(1);
+        }
+
+        SrsImpairmentRig rig = new SrsImpairmentRig(base);
+        if (queue_kb > 0) {
+            // the kernel buffer is also bounded, or the backlog never reaches the queue.
+            rig.setMaxQueued(queue_kb * 1024);
+            rig.setSendBuffer(Math.min(queue_kb * 1024, SEND_BUFFER));
+        }
+        rig.run(seconds, script);
+
+        System.out.println(String.format("metrics after %ds: %s", seconds, rig.getMetrics()));
+        int failed = 0;
+        for (int i = 0; i < expects.size(); i++) {
+            boolean ok = rig.check(expects.get(i));
+            System.out.println(String.format("%s %s", ok ? "PASS" : "FAIL", expects.get(i)));
+            failed += ok ? 0 : 1;
+        }
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
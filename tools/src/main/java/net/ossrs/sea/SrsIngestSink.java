@@ -0,0 +1,238 @@
+package net.ossrs.sea;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * the stand-in of the ingest server, receives the HTTP FLV POST of SrsHttpFlv in chunked
+ * encoding, counts the connections, tags and bytes, and the latency by the SEI of each
+ * video frame, @see SrsLatencySei
+ * usage:
+ *      SrsIngestSink <port>
+ */
+public class SrsIngestSink {
+    private int port;
+    private ServerSocket server;
+    private volatile boolean quit;
+    private SrsLatencyAnalyzer latency;
+
+    private long nb_connections;
+    private long nb_tags;
+    private long nb_bytes;
+
+    private final static String TAG = "SrsIngestSink";
+
+    /**
+     * constructor.
+     * @param p the port to listen, 0 for any free port, @see getPort
+     */
+    public SrsIngestSink(int p) {
+        port = p;
+        latency = new SrsLatencyAnalyzer("ingest", null);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public synchronized long getConnections() {
+        return nb_connections;
+    }
+
+    public synchronized long getTags() {
+        return nb_tags;
+    }
+
+    public synchronized long getBytes() {
+        return nb_bytes;
+    }
+
+    /**
+     * get the latency of the frames received, the publisher should enable the SEI,
+     * @see SrsHttpFlv.setLatencySei
+     */
+    public SrsLatencyAnalyzer getLatency() {
+        return latency;
+    }
+
+    public void start() throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        quit = false;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!quit) {
+                    try {
+                        serve(server.accept());
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        SrsLog.i(TAG, String.format("sink: listen at %d", getPort()));
+    }
+
+    public void stop() {
+        quit = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void serve(final Socket s) {
+        synchronized (this) {
+            nb_connections++;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    receive(s);
+                } catch (IOException e) {
+                    // closed or reset by publisher.
+                } finally {
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void receive(Socket s) throws IOException {
+        InputStream is = new BufferedInputStream(s.getInputStream());
+
+        // the request line and headers.
+        String line = readLine(is);
+        boolean chunked = false;
+        String header;
+        while (!(header = readLine(is)).isEmpty()) {
+            if (header.toLowerCase().startsWith("transfer-encoding:") && header.toLowerCase().contains("chunked")) {
+                chunked = true;
+            }
+        }
+        SrsLog.i(TAG, String.format("sink: %s from %s, chunked=%b", line, s.getRemoteSocketAddress(), chunked));
+
+        DataInputStream flv = new DataInputStream(chunked ? new ChunkedInputStream(is) : is);
+        byte[] h = new byte[13];
+        flv.readFully(h);
+        synchronized (this) {
+            nb_bytes += h.length;
+        }
+
+        byte[] data = new byte[64 * 1024];
+        try {
+            while (true) {
+                int type = flv.readUnsignedByte() & 0x1f;
+                int size = (flv.readUnsignedByte() << 16) | flv.readUnsignedShort();
+                flv.readInt();
+                flv.readUnsignedByte();
+                flv.readUnsignedShort();
+                if (size > data.length) {
+                    data = new byte[size];
+                }
+                flv.readFully(data, 0, size);
+                flv.readInt();
+
+                synchronized (this) {
+                    nb_tags++;
+                    nb_bytes += 15 + size;
+                }
+                if (type == 9) {
+                    latency.onVideo(data, size, System.currentTimeMillis());
+                }
+            }
+        } catch (EOFException e) {
+            // the last chunk.
+        }
+        s.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("UTF-8"));
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = is.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * the data of HTTP chunks, EOF at the last chunk.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private InputStream is;
+        private int left;
+        private boolean eof;
+
+        public ChunkedInputStream(InputStream v) {
+            is = v;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) <= 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (left <= 0) {
+                // the CRLF of last chunk data, then the chunk size.
+                String size = readLine(is).trim();
+                if (size.isEmpty()) {
+                    size = readLine(is).trim();
+                }
+                left = Integer.parseInt(size, 16);
+                if (left == 0) {
+                    eof = true;
+                    return -1;
+                }
+            }
+
+            int n = is.read(b, off, Math.min(len, left));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            left -= n;
+            return n;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: SrsIngestSink <port>");
+            System.exit(1);
+        }
+
+        SrsIngestSink sink = new SrsIngestSink(Integer.parseInt(args[0]));
+        sink.start();
+        while (true) {
+            Thread.sleep(5000);
+            System.out.println(String.format("connections=%d, tags=%d, bytes=%d, %s",
+                sink.getConnections(), sink.getTags(), sink.getBytes(), sink.getLatency()));
+        }
+    }
+}
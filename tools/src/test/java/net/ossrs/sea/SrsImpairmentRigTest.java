@@ -0,0 +1,124 @@
+package net.ossrs.sea;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the regression of the congestion handling, publish the synthetic files through
+ * the impairment proxy to the ingest sink, then assert on the metrics, @see SrsImpairmentRig
+ */
+public class SrsImpairmentRigTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String base;
+
+    private final static int FPS = 25;
+    private final static int GOP = 25;
+    private final static int SAMPLE_RATE = 44100;
+
+    @Before
+    public void setUp() throws IOException {
+        base = new File(tmp.getRoot(), "rig").getPath();
+        writeAnnexb(new File(base + ".h264"), 10 * FPS);
+        writeAdts(new File(base + ".aac"), 10 * SAMPLE_RATE / 1024);
+    }
+
+    @Test
+    public void cleanLinkDeliversAllFrames() throws Exception {
+        SrsImpairmentRig rig = new SrsImpairmentRig(base);
+        rig.run(4, "0 bw=2000 delay=20");
+
+        Map<String, Long> m = rig.getMetrics();
+        assertEquals(m.toString(), 1L, (long) m.get("reconnects"));
+        assertEquals(m.toString(), 0L, (long) m.get("congestions"));
+        assertEquals(m.toString(), 0L, (long) m.get("lost"));
+        assertTrue(m.toString(), m.get("frames") >= 3 * FPS);
+        assertTrue(m.toString(), m.get("p99") <= 1000);
+    }
+
+    @Test
+    public void resetReconnects() throws Exception {
+        SrsImpairmentRig rig = new SrsImpairmentRig(base);
+        rig.run(5, "0 bw=2000 delay=20; 2000 reset");
+
+        Map<String, Long> m = rig.getMetrics();
+        assertTrue(m.toString(), m.get("resets") >= 1);
+        assertTrue(m.toString(), m.get("reconnects") >= 2);
+        assertTrue(m.toString(), m.get("connections") >= 2);
+    }
+
+    @Test
+    public void congestionBoundsLatencyByDrops() throws Exception {
+        SrsImpairmentRig rig = new SrsImpairmentRig(base);
+        // the queue of publisher and the buffer of bottleneck are small, below the bitrate.
+        rig.setMaxQueued(8 * 1024);
+        rig.setSendBuffer(8 * 1024);
+        rig.run(8, "0 queue=2 bw=150 delay=100");
+
+        assertTrue(rig.getMetrics().toString(), rig.check("congestions>=1"));
+        assertTrue(rig.getMetrics().toString(), rig.check("drops>=1"));
+        assertTrue(rig.getMetrics().toString(), rig.check("p90<=3000"));
+    }
+
+    // the annexb of the sps, pps and idr for keyframe, or a p slice, about 300kbps.
+    private static void writeAnnexb(File f, int frames) throws IOException {
+        Random random = new Random(1);
+        OutputStream os = new FileOutputStream(f);
+        try {
+            for (int i = 0; i < frames; i++) {
+                if ((i % GOP) == 0) {
+                    os.write(new byte[]{0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x0d, (byte) 0x8c, 0x68});
+                    os.write(new byte[]{0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80});
+                    os.write(new byte[]{0, 0, 0, 1, 0x65, (byte) 0x88});
+                    os.write(payload(random, 8000));
+                } else {
+                    os.write(new byte[]{0, 0, 0, 1, 0x41, (byte) 0x9a});
+                    os.write(payload(random, 1000 + random.nextInt(500)));
+                }
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    // the adts of aac LC, 44100, stereo.
+    private static void writeAdts(File f, int frames) throws IOException {
+        Random random = new Random(2);
+        OutputStream os = new FileOutputStream(f);
+        try {
+            for (int i = 0; i < frames; i++) {
+                byte[] raw = payload(random, 100 + random.nextInt(100));
+                int size = raw.length + 7;
+                os.write(new byte[]{
+                    (byte) 0xff, (byte) 0xf1, (byte) ((1 << 6) | (4 << 2)), (byte) ((2 << 6) | ((size >> 11) & 0x03)),
+                    (byte) (size >> 3), (byte) (((size & 0x07) << 5) | 0x1f), (byte) 0xfc,
+                });
+                os.write(raw);
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    // the bytes without zero, never a start code.
+    private static byte[] payload(Random random, int size) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++) {
+            b[i] = (byte) (1 + random.nextInt(255));
+        }
+        return b;
+    }
+}